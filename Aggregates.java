@@ -0,0 +1,211 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aggregate tables kept up to date by triggers, read by the report
+ * operations instead of scanning Booking and Repair.
+ *
+ *   revenue_daily   (customer, hotelid, day) -> total price, bookings
+ *   repair_yearly   (hotelid, roomno, year)  -> repairs
+ *   company_repairs (cmpid)                  -> repairs
+ *
+ * The triggers run once per statement over its transition table, so a bulk
+ * insert costs one grouped upsert rather than one per row. Counts of groups
+ * that lost all their rows stay behind as zero and are filtered by the
+ * readers. The tables are created by schema migration 7.
+ */
+public class Aggregates {
+
+    static final String REVENUE_FROM_BOOKINGS = "SELECT customer, hotelid, bookingdate, SUM(price), COUNT(*) "
+            + "FROM booking GROUP BY customer, hotelid, bookingdate";
+    static final String REPAIRS_BY_ROOM = "SELECT hotelid, roomno, CAST(DATE_PART('year', repairdate) AS INTEGER), "
+            + "COUNT(*) FROM repair GROUP BY 1, 2, 3";
+    static final String REPAIRS_BY_COMPANY = "SELECT mcompany, COUNT(*) FROM repair GROUP BY mcompany";
+
+    // DDL of schema migration 7
+    static final String[] DDL = {
+            "CREATE TABLE IF NOT EXISTS revenue_daily (customer INTEGER NOT NULL, hotelid INTEGER NOT NULL, "
+                    + "day DATE NOT NULL, total NUMERIC NOT NULL, bookings BIGINT NOT NULL, "
+                    + "PRIMARY KEY (customer, hotelid, day))",
+            "CREATE TABLE IF NOT EXISTS repair_yearly (hotelid INTEGER NOT NULL, roomno INTEGER NOT NULL, "
+                    + "year INTEGER NOT NULL, repairs BIGINT NOT NULL, PRIMARY KEY (hotelid, roomno, year))",
+            "CREATE TABLE IF NOT EXISTS company_repairs (cmpid INTEGER PRIMARY KEY, repairs BIGINT NOT NULL)",
+            "CREATE INDEX IF NOT EXISTS company_repairs_count ON company_repairs (repairs DESC)",
+
+            "CREATE OR REPLACE FUNCTION booking_aggregates() RETURNS trigger LANGUAGE plpgsql AS $$\n"
+                    + "BEGIN\n"
+                    + "  IF TG_OP IN ('DELETE', 'UPDATE') THEN\n"
+                    + "    INSERT INTO revenue_daily AS r SELECT customer, hotelid, bookingdate, -SUM(price), -COUNT(*)\n"
+                    + "      FROM old_rows GROUP BY customer, hotelid, bookingdate\n"
+                    + "      ON CONFLICT (customer, hotelid, day) DO UPDATE\n"
+                    + "      SET total = r.total + EXCLUDED.total, bookings = r.bookings + EXCLUDED.bookings;\n"
+                    + "  END IF;\n"
+                    + "  IF TG_OP IN ('INSERT', 'UPDATE') THEN\n"
+                    + "    INSERT INTO revenue_daily AS r SELECT customer, hotelid, bookingdate, SUM(price), COUNT(*)\n"
+                    + "      FROM new_rows GROUP BY customer, hotelid, bookingdate\n"
+                    + "      ON CONFLICT (customer, hotelid, day) DO UPDATE\n"
+                    + "      SET total = r.total + EXCLUDED.total, bookings = r.bookings + EXCLUDED.bookings;\n"
+                    + "  END IF;\n"
+                    + "  RETURN NULL;\n"
+                    + "END $$",
+            "CREATE OR REPLACE FUNCTION repair_aggregates() RETURNS trigger LANGUAGE plpgsql AS $$\n"
+                    + "BEGIN\n"
+                    + "  IF TG_OP IN ('DELETE', 'UPDATE') THEN\n"
+                    + "    INSERT INTO repair_yearly AS r SELECT hotelid, roomno, DATE_PART('year', repairdate), -COUNT(*)\n"
+                    + "      FROM old_rows GROUP BY 1, 2, 3\n"
+                    + "      ON CONFLICT (hotelid, roomno, year) DO UPDATE SET repairs = r.repairs + EXCLUDED.repairs;\n"
+                    + "    INSERT INTO company_repairs AS c SELECT mcompany, -COUNT(*) FROM old_rows GROUP BY mcompany\n"
+                    + "      ON CONFLICT (cmpid) DO UPDATE SET repairs = c.repairs + EXCLUDED.repairs;\n"
+                    + "  END IF;\n"
+                    + "  IF TG_OP IN ('INSERT', 'UPDATE') THEN\n"
+                    + "    INSERT INTO repair_yearly AS r SELECT hotelid, roomno, DATE_PART('year', repairdate), COUNT(*)\n"
+                    + "      FROM new_rows GROUP BY 1, 2, 3\n"
+                    + "      ON CONFLICT (hotelid, roomno, year) DO UPDATE SET repairs = r.repairs + EXCLUDED.repairs;\n"
+                    + "    INSERT INTO company_repairs AS c SELECT mcompany, COUNT(*) FROM new_rows GROUP BY mcompany\n"
+                    + "      ON CONFLICT (cmpid) DO UPDATE SET repairs = c.repairs + EXCLUDED.repairs;\n"
+                    + "  END IF;\n"
+                    + "  RETURN NULL;\n"
+                    + "END $$",
+
+            "DROP TRIGGER IF EXISTS booking_aggregates_insert ON booking",
+            "CREATE TRIGGER booking_aggregates_insert AFTER INSERT ON booking REFERENCING NEW TABLE AS new_rows "
+                    + "FOR EACH STATEMENT EXECUTE PROCEDURE booking_aggregates()",
+            "DROP TRIGGER IF EXISTS booking_aggregates_update ON booking",
+            "CREATE TRIGGER booking_aggregates_update AFTER UPDATE ON booking REFERENCING OLD TABLE AS old_rows "
+                    + "NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE booking_aggregates()",
+            "DROP TRIGGER IF EXISTS booking_aggregates_delete ON booking",
+            "CREATE TRIGGER booking_aggregates_delete AFTER DELETE ON booking REFERENCING OLD TABLE AS old_rows "
+                    + "FOR EACH STATEMENT EXECUTE PROCEDURE booking_aggregates()",
+            "DROP TRIGGER IF EXISTS repair_aggregates_insert ON repair",
+            "CREATE TRIGGER repair_aggregates_insert AFTER INSERT ON repair REFERENCING NEW TABLE AS new_rows "
+                    + "FOR EACH STATEMENT EXECUTE PROCEDURE repair_aggregates()",
+            "DROP TRIGGER IF EXISTS repair_aggregates_update ON repair",
+            "CREATE TRIGGER repair_aggregates_update AFTER UPDATE ON repair REFERENCING OLD TABLE AS old_rows "
+                    + "NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE repair_aggregates()",
+            "DROP TRIGGER IF EXISTS repair_aggregates_delete ON repair",
+            "CREATE TRIGGER repair_aggregates_delete AFTER DELETE ON repair REFERENCING OLD TABLE AS old_rows "
+                    + "FOR EACH STATEMENT EXECUTE PROCEDURE repair_aggregates()",
+
+            // the triggers hold their tables until commit, so nothing is counted twice or missed
+            "DELETE FROM revenue_daily", "INSERT INTO revenue_daily " + REVENUE_FROM_BOOKINGS,
+            "DELETE FROM repair_yearly", "INSERT INTO repair_yearly " + REPAIRS_BY_ROOM,
+            "DELETE FROM company_repairs", "INSERT INTO company_repairs " + REPAIRS_BY_COMPANY };
+
+    /**
+     * Returns the statements of migration 7 that create the triggers of one
+     * table, for a migration that creates the table again.
+     *
+     * @param table booking or repair
+     * @return the DROP TRIGGER and CREATE TRIGGER statements
+     */
+    static String[] triggers(String table) {
+        List<String> statements = new ArrayList<>();
+        for (String ddl : DDL) {
+            if (ddl.contains(" TRIGGER ") && (ddl.contains(" ON " + table + " ") || ddl.endsWith(" ON " + table)))
+                statements.add(ddl);
+        } // end for
+        return statements.toArray(new String[0]);
+    }// end triggers
+
+    private static volatile Boolean available = null;
+
+    /**
+     * Tells whether migration 7 has created the aggregate tables. Checked once
+     * per process.
+     *
+     * @param esql the connected client
+     * @return true when the report operations can read the aggregates
+     * @throws java.sql.SQLException when the catalog could not be read
+     */
+    public static boolean available(DBProject esql) throws SQLException {
+        Boolean known = available;
+        if (known == null) {
+            ConnectionPool.Pooled p = esql.acquire();
+            try (Statement stmt = p.connection.createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT to_regclass('company_repairs') IS NOT NULL")) {
+                rs.next();
+                available = known = rs.getBoolean(1);
+            } finally {
+                esql.release(p);
+            } // end try
+        } // end if
+        return known;
+    }// end available
+
+    /**
+     * Compares every aggregate with the base tables and prints the groups
+     * that differ.
+     *
+     * @param pool the pool to run the comparison on
+     * @return the number of groups that differ
+     * @throws java.sql.SQLException when the comparison failed
+     */
+    public static long verify(ConnectionPool pool) throws SQLException {
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            // one snapshot for the base tables and the aggregates
+            p.connection.setAutoCommit(false);
+            stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            long differences = 0;
+            differences += compare(stmt, "revenue_daily", "SELECT * FROM (" + REVENUE_FROM_BOOKINGS
+                    + ") b (customer, hotelid, day, total, bookings) FULL JOIN (SELECT * FROM revenue_daily "
+                    + "WHERE bookings <> 0) a USING (customer, hotelid, day) "
+                    + "WHERE b.total IS DISTINCT FROM a.total OR b.bookings IS DISTINCT FROM a.bookings");
+            differences += compare(stmt, "repair_yearly", "SELECT * FROM (" + REPAIRS_BY_ROOM
+                    + ") b (hotelid, roomno, year, repairs) FULL JOIN (SELECT * FROM repair_yearly "
+                    + "WHERE repairs <> 0) a USING (hotelid, roomno, year) WHERE b.repairs IS DISTINCT FROM a.repairs");
+            differences += compare(stmt, "company_repairs", "SELECT * FROM (" + REPAIRS_BY_COMPANY
+                    + ") b (cmpid, repairs) FULL JOIN (SELECT * FROM company_repairs WHERE repairs <> 0) a "
+                    + "USING (cmpid) WHERE b.repairs IS DISTINCT FROM a.repairs");
+            p.connection.commit();
+            return differences;
+        } finally {
+            pool.release(p);
+        } // end try
+    }// end verify
+
+    private static long compare(Statement stmt, String table, String query) throws SQLException {
+        long rows = 0;
+        try (ResultSet rs = stmt.executeQuery(query)) {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                if (rows++ < 20) {
+                    StringBuilder line = new StringBuilder("\t" + table + ":");
+                    for (int i = 1; i <= columns; i++)
+                        line.append(' ').append(rs.getMetaData().getColumnName(i)).append('=').append(rs.getString(i));
+                    System.out.println(line);
+                } // end if
+            } // end while
+        } // end try
+        System.out.println(String.format("%-16s %s", table, rows == 0 ? "ok" : rows + " groups differ"));
+        return rows;
+    }// end compare
+
+    /**
+     * Recomputes every aggregate from the base tables in one transaction
+     * that blocks writers to Booking and Repair meanwhile.
+     *
+     * @param pool the pool to run the rebuild on
+     * @throws java.sql.SQLException when the rebuild failed; nothing is changed
+     */
+    public static void rebuild(ConnectionPool pool) throws SQLException {
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            p.connection.setAutoCommit(false);
+            stmt.execute("LOCK TABLE booking, repair IN SHARE MODE");
+            stmt.execute("DELETE FROM revenue_daily");
+            stmt.execute("INSERT INTO revenue_daily " + REVENUE_FROM_BOOKINGS);
+            stmt.execute("DELETE FROM repair_yearly");
+            stmt.execute("INSERT INTO repair_yearly " + REPAIRS_BY_ROOM);
+            stmt.execute("DELETE FROM company_repairs");
+            stmt.execute("INSERT INTO company_repairs " + REPAIRS_BY_COMPANY);
+            p.connection.commit();
+        } finally {
+            pool.release(p);
+        } // end try
+    }// end rebuild
+
+}// end Aggregates
@@ -0,0 +1,288 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory occupancy of every hotel: one bitmap of rooms per booked day.
+ *
+ * The index is loaded from Room and Booking on first use, updated by the
+ * bookRoom and addRoom paths of this client, and reloaded once it is older
+ * than dbproject.availability.maxAge seconds so bookings made by other
+ * clients are picked up. The reload runs on a background thread while the
+ * old index keeps answering; the rooms and bookings this client records in
+ * the meantime are replayed into the new one under the same lock, and a
+ * reload that started before invalidate() is dropped. Answers take one
+ * bitmap OR per day in the range.
+ */
+public class AvailabilityIndex {
+
+    // occupancy of one hotel, guarded by its own monitor
+    static final class Hotel {
+        // room number to bit position
+        final HashMap<Integer, Integer> slots = new HashMap<>();
+        // epoch day to bitmap of booked rooms
+        final HashMap<Long, long[]> days = new HashMap<>();
+
+        synchronized void addRoom(int roomNo) {
+            slots.putIfAbsent(roomNo, slots.size());
+        }
+
+        synchronized void book(int roomNo, long day) {
+            Integer slot = slots.get(roomNo);
+            if (slot == null)
+                return;
+            long[] bits = days.get(day);
+            if (bits == null || bits.length <= slot >> 6) {
+                bits = bits == null ? new long[(slots.size() + 63) >> 6]
+                        : Arrays.copyOf(bits, (slots.size() + 63) >> 6);
+                days.put(day, bits);
+            } // end if
+            bits[slot >> 6] |= 1L << slot;
+        }
+
+        // rooms without a booking on any day of [from, to]
+        synchronized int available(long from, long to) {
+            long[] union = new long[(slots.size() + 63) >> 6];
+            for (long day = from; day <= to; day++) {
+                long[] bits = days.get(day);
+                if (bits == null)
+                    continue;
+                for (int i = 0; i < bits.length; i++)
+                    union[i] |= bits[i];
+            } // end for
+            int booked = 0;
+            for (long word : union)
+                booked += Long.bitCount(word);
+            return slots.size() - booked;
+        }
+    }// end Hotel
+
+    private final long maxAgeMillis = Long.getLong("dbproject.availability.maxAge", 300) * 1000;
+    private volatile ConcurrentHashMap<Integer, Hotel> hotels = null;
+    private volatile long loadedAt = 0;
+
+    // guards the swap of hotels against the changes of this client, and the fields below
+    private final Object changes = new Object();
+    // bumped by invalidate(), so a load started before it is dropped
+    private long generation = 0;
+    // loads running, and what this client recorded meanwhile, as {hotel, roomNo, day or -1}
+    private int loading = 0;
+    private final ArrayList<long[]> missed = new ArrayList<>();
+
+    /**
+     * Returns the number of rooms of a hotel that have no booking on any day
+     * of the range.
+     *
+     * @param esql  the client to load the index with
+     * @param hotel the hotel id
+     * @param from  the first day, as an epoch day
+     * @param to    the last day, as an epoch day
+     * @return the number of free rooms
+     * @throws java.sql.SQLException when the index could not be loaded
+     */
+    public int available(DBProject esql, int hotel, long from, long to) throws SQLException {
+        Hotel h = hotels(esql).get(hotel);
+        return h == null ? 0 : h.available(from, to);
+    }// end available
+
+    /**
+     * Records a booking made by this client.
+     *
+     * @param hotel  the hotel id
+     * @param roomNo the room number
+     * @param day    the booked day, as an epoch day
+     */
+    public void booked(int hotel, int roomNo, long day) {
+        record(new long[] { hotel, roomNo, day });
+    }// end booked
+
+    /**
+     * Records a room added by this client.
+     *
+     * @param hotel  the hotel id
+     * @param roomNo the room number
+     */
+    public void roomAdded(int hotel, int roomNo) {
+        record(new long[] { hotel, roomNo, -1 });
+    }// end roomAdded
+
+    // applies a change to the index, and keeps it for the loads running
+    private void record(long[] change) {
+        synchronized (changes) {
+            ConcurrentHashMap<Integer, Hotel> current = hotels;
+            if (current != null)
+                apply(current, change);
+            if (loading > 0)
+                missed.add(change);
+        } // end synchronized
+    }// end record
+
+    private static void apply(ConcurrentHashMap<Integer, Hotel> into, long[] change) {
+        if (change[2] < 0) {
+            into.computeIfAbsent((int) change[0], k -> new Hotel()).addRoom((int) change[1]);
+        } else {
+            Hotel h = into.get((int) change[0]);
+            if (h != null)
+                h.book((int) change[1], change[2]);
+        } // end if
+    }// end apply
+
+    /**
+     * Drops the index so the next question reloads it, along with any load
+     * still running.
+     */
+    public void invalidate() {
+        synchronized (changes) {
+            hotels = null;
+            generation++;
+            missed.clear();
+        } // end synchronized
+    }// end invalidate
+
+    private ConcurrentHashMap<Integer, Hotel> hotels(DBProject esql) throws SQLException {
+        ConcurrentHashMap<Integer, Hotel> current = hotels;
+        if (current != null) {
+            if (System.currentTimeMillis() - loadedAt >= maxAgeMillis) {
+                synchronized (changes) {
+                    // one reload at a time; loadedAt is moved on so it is not started again meanwhile
+                    if (hotels == current && System.currentTimeMillis() - loadedAt >= maxAgeMillis) {
+                        loadedAt = System.currentTimeMillis();
+                        long started = begin();
+                        Thread reload = new Thread(() -> reload(esql, started), "availability-reload");
+                        reload.setDaemon(true);
+                        reload.start();
+                    } // end if
+                } // end synchronized
+            } // end if
+            return current;
+        } // end if
+
+        // nothing to answer from yet
+        synchronized (this) {
+            current = hotels;
+            if (current != null)
+                return current;
+            long started;
+            synchronized (changes) {
+                started = begin();
+            } // end synchronized
+            ConcurrentHashMap<Integer, Hotel> loaded = null;
+            try {
+                loaded = load(esql);
+            } finally {
+                publish(loaded, started);
+            } // end try
+            return loaded;
+        } // end synchronized
+    }// end hotels
+
+    // registers a load, guarded by changes; returns the generation it belongs to
+    private long begin() {
+        loading++;
+        return generation;
+    }// end begin
+
+    // replaces a stale index in the background, keeping the old one when the load fails
+    private void reload(DBProject esql, long started) {
+        ConcurrentHashMap<Integer, Hotel> loaded = null;
+        try {
+            loaded = load(esql);
+        } catch (SQLException e) {
+            // tried again on the next question after maxAge
+        } finally {
+            publish(loaded, started);
+        } // end try
+    }// end reload
+
+    // swaps a load in with the changes recorded meanwhile, unless invalidate() ran since it started
+    private void publish(ConcurrentHashMap<Integer, Hotel> loaded, long started) {
+        synchronized (changes) {
+            if (loaded != null && started == generation) {
+                for (long[] change : missed)
+                    apply(loaded, change);
+                hotels = loaded;
+                loadedAt = System.currentTimeMillis();
+            } // end if
+            if (--loading == 0)
+                missed.clear();
+        } // end synchronized
+    }// end publish
+
+    private static ConcurrentHashMap<Integer, Hotel> load(DBProject esql) throws SQLException {
+        ConcurrentHashMap<Integer, Hotel> loaded = new ConcurrentHashMap<>();
+        ConnectionPool.Pooled p = esql.acquire();
+        // Postgres only honours the fetch size inside a transaction
+        boolean cursor = p.connection.getAutoCommit();
+        if (cursor)
+            p.connection.setAutoCommit(false);
+        try {
+            PreparedStatement stmt = p.statements.get("SELECT hotelid, roomno FROM Room ORDER BY hotelid, roomno");
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next())
+                    loaded.computeIfAbsent(rs.getInt(1), k -> new Hotel()).addRoom(rs.getInt(2));
+            } // end try
+
+            // the day as an epoch day, so no Date is made per row
+            stmt = p.statements.get("SELECT hotelid, roomno, bookingdate - DATE '1970-01-01' FROM Booking");
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Hotel h = loaded.get(rs.getInt(1));
+                    if (h != null)
+                        h.book(rs.getInt(2), rs.getInt(3));
+                } // end while
+            } // end try
+            if (cursor)
+                p.connection.commit();
+        } catch (SQLException e) {
+            if (cursor)
+                p.connection.rollback();
+            throw e;
+        } finally {
+            if (cursor)
+                p.connection.setAutoCommit(true);
+            esql.release(p);
+        } // end try
+        return loaded;
+    }// end load
+
+    /**
+     * Compares the index with the SQL answer for every day of a range and for
+     * the range as a whole, printing each mismatch.
+     *
+     * @param esql  the connected client
+     * @param hotel the hotel id
+     * @param from  the first day, as an epoch day
+     * @param to    the last day, as an epoch day
+     * @return the number of mismatches
+     * @throws java.sql.SQLException when a query failed
+     */
+    public int check(DBProject esql, int hotel, long from, long to) throws SQLException {
+        invalidate();
+        int mismatches = 0;
+        for (long day = from; day <= to; day++) {
+            Date date = Dates.sql(day);
+            int expected = esql.queryInt(Sql.AVAILABLE_ROOMS_BETWEEN, 0, hotel, date, date);
+            int actual = available(esql, hotel, day, day);
+            if (expected != actual) {
+                mismatches++;
+                System.out.println("\t" + date + ": index " + actual + ", database " + expected);
+            } // end if
+        } // end for
+
+        int expected = esql.queryInt(Sql.AVAILABLE_ROOMS_BETWEEN, 0, hotel, Dates.sql(from), Dates.sql(to));
+        int actual = available(esql, hotel, from, to);
+        if (expected != actual) {
+            mismatches++;
+            System.out.println("\twhole range: index " + actual + ", database " + expected);
+        } // end if
+        return mismatches;
+    }// end check
+
+}// end AvailabilityIndex
@@ -0,0 +1,806 @@
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micro-benchmarks for the client, run through the bench-* modes of DBProject.
+ * Every write runs inside a transaction that is rolled back at the end.
+ *
+ * bench-seed grows the database to a given number of bookings, and bench-ops
+ * then times every menu operation against it. Seed a dedicated database:
+ * the seeded rows are not removed. bench-writes commits its writes and
+ * deletes them afterwards.
+ */
+public class Bench {
+
+    /**
+     * Compares the original String.format + Statement path with the cached
+     * prepared statements for bookRoom and totalCostForCustomer.
+     *
+     * @param esql  the connected client
+     * @param calls the number of calls per variant
+     * @throws java.sql.SQLException when the benchmark could not run
+     */
+    public static void statements(DBProject esql, int calls) throws SQLException {
+        String fname, lname;
+        int customerid, hotelID, roomNo;
+
+        esql.begin();
+        ConnectionPool.Pooled p = esql.acquire();
+        Statement stmt = p.connection.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("select customerid, fname, lname from customer limit 1");
+            if (!rs.next())
+                throw new SQLException("The benchmark needs at least one customer");
+            customerid = rs.getInt(1);
+            fname = rs.getString(2).trim();
+            lname = rs.getString(3).trim();
+            rs = stmt.executeQuery("select hotelid, roomno from room limit 1");
+            if (!rs.next())
+                throw new SQLException("The benchmark needs at least one room");
+            hotelID = rs.getInt(1);
+            roomNo = rs.getInt(2);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                stmt.executeUpdate(String.format(
+                        "insert into booking select %s, c.customerid, %s,%s,'%s',%s,%s from customer c where c.fname = '%s' and c.lname = '%s' limit 1",
+                        esql.getNextId(esql, "bID", "booking"), hotelID, roomNo, "01/01/2020", 1,
+                        String.format("%.2f", 100.0), fname, lname));
+            } // end for
+            report("bookRoom", "statement", calls, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                esql.executeUpdate(Sql.BOOK_ROOM, esql.getNextId(esql, "bID", "booking"), hotelID, roomNo,
+                        "01/01/2020", 1, new BigDecimal("100.00"), fname, lname);
+            } // end for
+            report("bookRoom", "prepared", calls, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                rs = stmt.executeQuery(String.format(
+                        "select COALESCE(sum(price), 0) as TotalIncurred from booking  where hotelID = %s and customer = %s and bookingdate between '%s' and '%s' ",
+                        hotelID, customerid, "01/01/2019", "12/31/2020"));
+                rs.next();
+                rs.close();
+            } // end for
+            report("totalCostForCustomer", "statement", calls, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                PreparedStatement ps = p.statements.get(Sql.TOTAL_COST);
+                DBProject.bind(ps, hotelID, customerid, "01/01/2019", "12/31/2020");
+                rs = ps.executeQuery();
+                rs.next();
+                rs.close();
+            } // end for
+            report("totalCostForCustomer", "prepared", calls, System.nanoTime() - start);
+        } finally {
+            stmt.close();
+            esql.end();
+        } // end try
+    }// end statements
+
+    /**
+     * Runs a short query from many threads for a while, so that borrowers
+     * outnumber the pooled connections, and reports throughput and pool waits.
+     *
+     * @param esql    the connected client
+     * @param threads the number of concurrent callers
+     * @param seconds how long to run
+     * @throws java.lang.InterruptedException when interrupted while waiting
+     */
+    public static void pool(DBProject esql, int threads, int seconds) throws InterruptedException {
+        AtomicLong calls = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try {
+                        esql.queryInt(Sql.BOOKED_ROOMS, 0, 1);
+                        calls.incrementAndGet();
+                    } catch (SQLException e) {
+                        errors.incrementAndGet();
+                    } // end try
+                } // end while
+            });
+            workers[t].start();
+        } // end for
+        for (Thread worker : workers)
+            worker.join();
+
+        System.out.println(String.format("%d threads, %d calls in %d s (%.0f calls/s), %d errors", threads,
+                calls.get(), seconds, calls.get() / (double) seconds, errors.get()));
+        System.out.println(esql.pool().metrics());
+    }// end pool
+
+    /**
+     * One operation of the menu, called with random arguments.
+     */
+    interface Operation {
+        void call(Random random) throws SQLException;
+    }// end Operation
+
+    /**
+     * Adds customers, bookings and repairs until Booking holds the given
+     * number of rows. The rows are generated by the server in chunks of
+     * dbproject.bench.chunk rows over the existing hotels, rooms and
+     * maintenance companies, and their ids are taken past the id counters so
+     * running clients never hand them out again.
+     *
+     * @param esql     the connected client
+     * @param bookings the number of bookings wanted, e.g. 1000, 100000 or 10000000
+     * @throws java.sql.SQLException when the seeding failed
+     */
+    public static void seed(DBProject esql, long bookings) throws SQLException {
+        int chunk = Integer.getInteger("dbproject.bench.chunk", 100000);
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            long rooms = count(stmt, "SELECT COUNT(*) FROM room");
+            long companies = count(stmt, "SELECT COUNT(*) FROM maintenancecompany");
+            if (rooms == 0)
+                throw new SQLException("The benchmark needs hotels and rooms, load the course data first");
+
+            long missing = bookings - count(stmt, "SELECT COUNT(*) FROM booking");
+            if (missing <= 0) {
+                System.out.println("Booking already holds " + (bookings - missing) + " rows");
+                return;
+            } // end if
+            long start = System.nanoTime();
+
+            long customers = Math.max(100, missing / 10);
+            long customerBase = claim(stmt, "customer", "customerid", customers);
+            String gender = columnType(stmt, "customer", "gender");
+            for (long from = 0; from < customers; from += chunk) {
+                stmt.executeUpdate(String.format("INSERT INTO customer(customerid, fname, lname, address, phno, dob, "
+                        + "gender) SELECT %d + g, 'Bench', 'C' || (%d + g), g || ' Bench Street', 9000000000 + g, "
+                        + "DATE '1950-01-01' + (g %% 18000)::int, CAST(CASE g %% 3 WHEN 0 THEN 'Male' "
+                        + "WHEN 1 THEN 'Female' ELSE 'Other' END AS %s) FROM generate_series(%d, %d) g",
+                        customerBase, customerBase, gender, from, Math.min(from + chunk, customers) - 1));
+            } // end for
+            System.out.println("\t" + customers + " customers");
+
+            long bookingBase = claim(stmt, "booking", "bid", missing);
+            for (long from = 0; from < missing; from += chunk) {
+                stmt.executeUpdate(String.format("INSERT INTO booking SELECT %d + g, %d + g %% %d, r.hotelid, "
+                        + "r.roomno, DATE '2015-01-01' + (g %% 3650)::int, 1 + g %% 4, 50 + (g * 37) %% 450 "
+                        + "FROM generate_series(%d, %d) g JOIN (SELECT hotelid, roomno, row_number() OVER "
+                        + "(ORDER BY hotelid, roomno) - 1 AS i FROM room) r ON r.i = (g * 7919) %% %d",
+                        bookingBase, customerBase, customers, from, Math.min(from + chunk, missing) - 1, rooms));
+                System.out.println(String.format("\t%d bookings (%.0f rows/s)", Math.min(from + chunk, missing),
+                        Math.min(from + chunk, missing) / ((System.nanoTime() - start) / 1e9)));
+            } // end for
+
+            long repairs = missing / 100;
+            if (companies == 0 || count(stmt, "SELECT COUNT(*) FROM repair") == 0) {
+                System.out.println("\tno repairs seeded, the database needs one company and one repair to copy");
+            } else if (repairs > 0) {
+                long repairBase = claim(stmt, "repair", "rid", repairs);
+                stmt.executeUpdate(String.format("INSERT INTO repair SELECT %d + g, r.hotelid, r.roomno, m.cmpid, "
+                        + "DATE '2010-01-01' + (g %% 4000)::int, 'bench repair', (SELECT repairtype FROM repair "
+                        + "LIMIT 1) FROM generate_series(0, %d) g JOIN (SELECT hotelid, roomno, row_number() OVER "
+                        + "(ORDER BY hotelid, roomno) - 1 AS i FROM room) r ON r.i = (g * 7919) %% %d "
+                        + "JOIN (SELECT cmpid, row_number() OVER (ORDER BY cmpid) - 1 AS i FROM maintenancecompany) m "
+                        + "ON m.i = g %% %d", repairBase, repairs - 1, rooms, companies));
+                System.out.println("\t" + repairs + " repairs");
+            } // end if
+
+            stmt.execute("ANALYZE");
+            System.out.println(String.format("Seeded %d bookings in %.1f s", missing,
+                    (System.nanoTime() - start) / 1e9));
+        } finally {
+            esql.pool().release(p);
+        } // end try
+        esql.forgetUncommitted();
+    }// end seed
+
+    // reserves count ids past the table's rows and both kinds of id counter
+    private static long claim(Statement stmt, String table, String field, long count) throws SQLException {
+        long base = count(stmt, String.format("SELECT COALESCE(MAX(%s), 0) + 1 FROM %s", field, table));
+        if (count(stmt, "SELECT COUNT(*) FROM pg_tables WHERE tablename = 'id_hilo'") > 0) {
+            base = Math.max(base, count(stmt, "SELECT COALESCE(MAX(nextvalue), 0) FROM id_hilo WHERE tablename = '"
+                    + table + "'"));
+            stmt.executeUpdate(String.format("UPDATE id_hilo SET nextvalue = GREATEST(nextvalue, %d) "
+                    + "WHERE tablename = '%s'", base + count, table));
+        } // end if
+        String seq = SequenceIdAllocator.sequenceName(table, field);
+        if (count(stmt, "SELECT COUNT(*) FROM pg_sequences WHERE sequencename = '" + seq + "'") > 0) {
+            base = Math.max(base, count(stmt, "SELECT COALESCE(last_value + increment_by, start_value) "
+                    + "FROM pg_sequences WHERE sequencename = '" + seq + "'"));
+            stmt.execute(String.format("SELECT setval('%s', %d, false)", seq, base + count));
+        } // end if
+        return base;
+    }// end claim
+
+    private static String columnType(Statement stmt, String table, String column) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery(String.format("SELECT format_type(atttypid, atttypmod) "
+                + "FROM pg_attribute WHERE attrelid = '%s'::regclass AND attname = '%s'", table, column))) {
+            return rs.next() ? rs.getString(1) : "text";
+        } // end try
+    }// end columnType
+
+    private static long count(Statement stmt, String query) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery(query)) {
+            rs.next();
+            return rs.getLong(1);
+        } // end try
+    }// end count
+
+    /**
+     * Calls every menu operation with random arguments drawn from the
+     * database and reports, per operation, the throughput, latency
+     * percentiles and the bytes allocated by the calling thread per call.
+     * Results are formatted but written nowhere. Writes run in transactions
+     * that are rolled back every 1000 calls. The query cache serves repeated
+     * reports; start with -Ddbproject.cache.size=0 to time the database.
+     *
+     * @param esql  the connected client
+     * @param calls the number of timed calls per operation, after calls / 10
+     *              warm-up calls
+     * @param only  the name of the one operation to run, or null for all
+     * @throws java.sql.SQLException when the arguments could not be drawn
+     */
+    public static void operations(DBProject esql, int calls, String only) throws SQLException {
+        List<int[]> rooms = new ArrayList<>();
+        List<String[]> customers = new ArrayList<>();
+        List<String> companies = new ArrayList<>();
+        List<String> staff = new ArrayList<>();
+        List<Integer> repairs = new ArrayList<>();
+        List<Integer> companyIds = new ArrayList<>();
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT hotelid, roomno FROM room ORDER BY random() LIMIT 1000");
+            while (rs.next())
+                rooms.add(new int[] { rs.getInt(1), rs.getInt(2) });
+            rs = stmt.executeQuery("SELECT fname, lname FROM customer ORDER BY random() LIMIT 1000");
+            while (rs.next())
+                customers.add(new String[] { rs.getString(1).trim(), rs.getString(2).trim() });
+            rs = stmt.executeQuery("SELECT cmpid, name FROM maintenancecompany ORDER BY random() LIMIT 100");
+            while (rs.next()) {
+                companyIds.add(rs.getInt(1));
+                companies.add(rs.getString(2).trim());
+            } // end while
+            rs = stmt.executeQuery("SELECT ssn FROM staff ORDER BY random() LIMIT 100");
+            while (rs.next())
+                staff.add(rs.getString(1).trim());
+            rs = stmt.executeQuery("SELECT rid FROM repair ORDER BY random() LIMIT 1000");
+            while (rs.next())
+                repairs.add(rs.getInt(1));
+        } finally {
+            esql.pool().release(p);
+        } // end try
+        if (rooms.isEmpty() || customers.isEmpty())
+            throw new SQLException("The benchmark needs rooms and customers, run bench-seed first");
+
+        List<String> names = new ArrayList<>();
+        List<Operation> operations = new ArrayList<>();
+        List<Boolean> writes = new ArrayList<>();
+        add(names, operations, writes, "addCustomer", true, r -> DBProject.addCustomer(esql, "Bench", "New",
+                "1 Bench Street", 9000000000L + r.nextInt(1000000), date(r), "Other"));
+        add(names, operations, writes, "addRoom", true,
+                r -> DBProject.addRoom(esql, pick(r, rooms)[0], "Suite"));
+        add(names, operations, writes, "addMaintenanceCompany", true,
+                r -> DBProject.addMaintenanceCompany(esql, "Bench Repairs", "1 Bench Street", r.nextBoolean()));
+        if (!companyIds.isEmpty()) {
+            add(names, operations, writes, "addRepair", true, r -> {
+                int[] room = pick(r, rooms);
+                DBProject.addRepair(esql, room[0], room[1], pick(r, companyIds), date(r), "bench repair",
+                        "Small");
+            });
+        } // end if
+        add(names, operations, writes, "bookRoom", true, r -> {
+            int[] room = pick(r, rooms);
+            String[] customer = pick(r, customers);
+            DBProject.bookRoom(esql, room[0], room[1], customer[0], customer[1], date(r), 2, 120.0);
+        });
+        if (!staff.isEmpty()) {
+            add(names, operations, writes, "assignHouseCleaningToRoom", true, r -> {
+                int[] room = pick(r, rooms);
+                DBProject.assignHouseCleaningToRoom(esql, pick(r, staff), String.valueOf(room[0]),
+                        String.valueOf(room[1]));
+            });
+            if (!repairs.isEmpty()) {
+                add(names, operations, writes, "repairRequest", true, r -> DBProject.repairRequest(esql,
+                        Integer.parseInt(pick(r, staff)), pick(r, repairs), date(r), "bench request"));
+            } // end if
+        } // end if
+        add(names, operations, writes, "numberOfAvailableRooms", false, r -> DBProject.numberOfAvailableRooms(esql,
+                pick(r, rooms)[0], date(r), null));
+        add(names, operations, writes, "numberOfBookedRooms", false,
+                r -> DBProject.numberOfBookedRooms(esql, pick(r, rooms)[0]));
+        add(names, operations, writes, "listHotelRoomBookingsForAWeek", false,
+                r -> DBProject.listHotelRoomBookingsForAWeek(esql, pick(r, rooms)[0], date(r)));
+        add(names, operations, writes, "topKHighestRoomPriceForADateRange", false,
+                r -> DBProject.topKHighestRoomPriceForADateRange(esql, 10, date(r), "12/31/2024"));
+        add(names, operations, writes, "topKHighestPriceBookingsForACustomer", false, r -> {
+            String[] customer = pick(r, customers);
+            DBProject.topKHighestPriceBookingsForACustomer(esql, customer[0], customer[1], 10);
+        });
+        add(names, operations, writes, "totalCostForCustomer", false, r -> {
+            String[] customer = pick(r, customers);
+            DBProject.totalCostForCustomer(esql, pick(r, rooms)[0], customer[0], customer[1], "01/01/2015",
+                    "12/31/2024");
+        });
+        if (!companies.isEmpty()) {
+            add(names, operations, writes, "listRepairsMade", false,
+                    r -> DBProject.listRepairsMade(esql, pick(r, companies)));
+        } // end if
+        add(names, operations, writes, "topKMaintenanceCompany", false,
+                r -> DBProject.topKMaintenanceCompany(esql, 5));
+        add(names, operations, writes, "numberOfRepairsForEachRoomPerYear", false, r -> {
+            int[] room = pick(r, rooms);
+            DBProject.numberOfRepairsForEachRoomPerYear(esql, room[0], room[1]);
+        });
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        boolean allocation = threads.isThreadAllocatedMemorySupported();
+        if (allocation)
+            threads.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.println(String.format("%-36s %8s %10s %9s %9s %9s %9s %10s", "operation", "calls", "ops/s",
+                "p50 us", "p90 us", "p99 us", "max us", "B/op"));
+        esql.redirect(ResultSink.create(System.getProperty("dbproject.format", "tsv"), Writer.nullWriter()));
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                if (only != null && !only.equalsIgnoreCase(names.get(i)))
+                    continue;
+                Random random = new Random(42);
+                long[] samples = new long[calls];
+                long bytes = 0, elapsed = 0;
+                if (writes.get(i))
+                    esql.begin();
+                try {
+                    for (int n = 0; n < calls / 10; n++)
+                        operations.get(i).call(random);
+                    long allocated = allocation ? threads.getCurrentThreadAllocatedBytes() : 0;
+                    long start = System.nanoTime();
+                    for (int n = 0; n < calls; n++) {
+                        long t0 = System.nanoTime();
+                        operations.get(i).call(random);
+                        samples[n] = System.nanoTime() - t0;
+                        if (writes.get(i) && n % 1000 == 999)
+                            esql.rollback();
+                    } // end for
+                    elapsed = System.nanoTime() - start;
+                    bytes = allocation ? threads.getCurrentThreadAllocatedBytes() - allocated : -1;
+                } finally {
+                    if (writes.get(i))
+                        esql.end();
+                } // end try
+
+                Arrays.sort(samples);
+                System.out.println(String.format("%-36s %8d %10.0f %9.1f %9.1f %9.1f %9.1f %10d", names.get(i), calls,
+                        calls / (elapsed / 1e9), percentile(samples, 0.50), percentile(samples, 0.90),
+                        percentile(samples, 0.99), samples[calls - 1] / 1e3, bytes < 0 ? -1 : bytes / calls));
+            } // end for
+        } finally {
+            esql.redirect(null);
+            // the rolled back writes were recorded by the in-memory structures
+            esql.forgetUncommitted();
+        } // end try
+    }// end operations
+
+    private static void add(List<String> names, List<Operation> operations, List<Boolean> writes, String name,
+            boolean write, Operation operation) {
+        names.add(name);
+        operations.add(operation);
+        writes.add(write);
+    }// end add
+
+    private static <T> T pick(Random random, List<T> values) {
+        return values.get(random.nextInt(values.size()));
+    }// end pick
+
+    // a day between 2015 and 2024 in the MM/DD/YYYY format of the prompts
+    private static String date(Random random) {
+        return String.format("%02d/%02d/%d", 1 + random.nextInt(12), 1 + random.nextInt(28),
+                2015 + random.nextInt(10));
+    }// end date
+
+    // in microseconds, samples sorted
+    private static double percentile(long[] samples, double p) {
+        return samples[Math.max(0, (int) Math.ceil(samples.length * p) - 1)] / 1e3;
+    }// end percentile
+
+    /**
+     * Compares the leaderboards of TopK with the ORDER BY ... LIMIT queries
+     * for random 7 and 30 day ranges and for the companies, after one pass
+     * that warms the boards. Results are formatted but written nowhere.
+     *
+     * @param esql  the connected client
+     * @param calls the number of calls per variant
+     * @throws java.sql.SQLException when the benchmark could not run
+     */
+    public static void topK(DBProject esql, int calls) throws SQLException {
+        int first = Dates.of(2015, 1, 1);
+        int k = 10;
+        esql.redirect(ResultSink.create(System.getProperty("dbproject.format", "tsv"), Writer.nullWriter()));
+        try {
+            for (int span : new int[] { 7, 30 }) {
+                Random random = new Random(42);
+                long start = System.nanoTime();
+                for (int i = 0; i < calls; i++) {
+                    int from = first + random.nextInt(3650 - span);
+                    esql.executeQuery(Sql.TOP_K_ROOM_PRICE, Dates.sql(from), Dates.sql(from + span - 1), k);
+                } // end for
+                report("topKRoomPrice " + span + "d", "sql", calls, System.nanoTime() - start);
+
+                for (int pass = 0; pass < 2; pass++) {
+                    random = new Random(42);
+                    start = System.nanoTime();
+                    for (int i = 0; i < calls; i++) {
+                        int from = first + random.nextInt(3650 - span);
+                        esql.topK().roomPrices(esql, k, from, from + span - 1);
+                    } // end for
+                    report("topKRoomPrice " + span + "d", pass == 0 ? "cold" : "heap", calls,
+                            System.nanoTime() - start);
+                } // end for
+            } // end for
+
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++)
+                esql.executeQuery(Sql.TOP_K_COMPANIES, k);
+            report("topKMaintenanceCompany", "sql", calls, System.nanoTime() - start);
+            if (Aggregates.available(esql)) {
+                start = System.nanoTime();
+                for (int i = 0; i < calls; i++)
+                    esql.executeQuery(Sql.TOP_K_COMPANIES_AGGREGATE, k);
+                report("topKMaintenanceCompany", "aggregate", calls, System.nanoTime() - start);
+            } // end if
+            start = System.nanoTime();
+            for (int i = 0; i < calls; i++)
+                esql.topK().companies(esql, k);
+            report("topKMaintenanceCompany", "heap", calls, System.nanoTime() - start);
+        } finally {
+            esql.redirect(null);
+        } // end try
+    }// end topK
+
+    /**
+     * Times addRepair, assignHouseCleaningToRoom and repairRequest as the
+     * operator sees them, first synchronous and then through the write-behind
+     * queue, and how long the queue takes to drain. The rows written are
+     * deleted afterwards.
+     *
+     * @param esql  the connected client
+     * @param calls the number of calls per operation and variant
+     * @throws java.lang.Exception when the benchmark could not run
+     */
+    public static void writes(DBProject esql, int calls) throws Exception {
+        List<int[]> rooms = new ArrayList<>();
+        List<Integer> companies = new ArrayList<>();
+        List<String> staff = new ArrayList<>();
+        List<Integer> repairs = new ArrayList<>();
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT hotelid, roomno FROM room ORDER BY random() LIMIT 1000");
+            while (rs.next())
+                rooms.add(new int[] { rs.getInt(1), rs.getInt(2) });
+            rs = stmt.executeQuery("SELECT cmpid FROM maintenancecompany ORDER BY random() LIMIT 100");
+            while (rs.next())
+                companies.add(rs.getInt(1));
+            rs = stmt.executeQuery("SELECT ssn FROM staff ORDER BY random() LIMIT 100");
+            while (rs.next())
+                staff.add(rs.getString(1).trim());
+            rs = stmt.executeQuery("SELECT rid FROM repair ORDER BY random() LIMIT 1000");
+            while (rs.next())
+                repairs.add(rs.getInt(1));
+        } finally {
+            esql.pool().release(p);
+        } // end try
+        if (rooms.isEmpty() || companies.isEmpty() || staff.isEmpty() || repairs.isEmpty())
+            throw new SQLException("The benchmark needs rooms, companies, staff and repairs, run bench-seed first");
+
+        WriteBehind configured = esql.writeBehind();
+        WriteBehind queue = configured != null ? configured : WriteBehind.open(esql);
+        List<Integer> repairIds = new ArrayList<>();
+        List<Integer> assignedIds = new ArrayList<>();
+        List<Integer> requestIds = new ArrayList<>();
+        System.out.println(String.format("%-28s %-12s %8s %10s %9s %9s %9s", "operation", "variant", "calls",
+                "ops/s", "p50 us", "p99 us", "max us"));
+        try {
+            for (String variant : new String[] { "synchronous", "write-behind" }) {
+                esql.writeBehind(variant.equals("synchronous") ? null : queue);
+                long started = System.nanoTime();
+                for (String operation : new String[] { "addRepair", "assignHouseCleaningToRoom", "repairRequest" }) {
+                    Random r = new Random(42);
+                    long[] samples = new long[calls];
+                    long start = System.nanoTime();
+                    for (int n = 0; n < calls; n++) {
+                        int[] room = pick(r, rooms);
+                        long t0 = System.nanoTime();
+                        if (operation.equals("addRepair"))
+                            repairIds.add(DBProject.addRepair(esql, room[0], room[1], pick(r, companies), date(r),
+                                    "bench repair", "Small"));
+                        else if (operation.equals("assignHouseCleaningToRoom"))
+                            assignedIds.add(DBProject.assignHouseCleaningToRoom(esql, pick(r, staff),
+                                    String.valueOf(room[0]), String.valueOf(room[1])));
+                        else
+                            requestIds.add(DBProject.repairRequest(esql, Integer.parseInt(pick(r, staff)),
+                                    pick(r, repairs), date(r), "bench request"));
+                        samples[n] = System.nanoTime() - t0;
+                    } // end for
+                    long elapsed = System.nanoTime() - start;
+                    Arrays.sort(samples);
+                    System.out.println(String.format("%-28s %-12s %8d %10.0f %9.1f %9.1f %9.1f", operation, variant,
+                            calls, calls / (elapsed / 1e9), percentile(samples, 0.50), percentile(samples, 0.99),
+                            samples[calls - 1] / 1e3));
+                } // end for
+                if (variant.equals("write-behind")) {
+                    long drain = System.nanoTime();
+                    queue.flush();
+                    System.out.println(String.format("%-28s %-12s %8d %10.0f   drained %.1f ms after the last call",
+                            "all three", variant, 3 * calls, 3 * calls / ((System.nanoTime() - started) / 1e9),
+                            (System.nanoTime() - drain) / 1e6));
+                } // end if
+            } // end for
+            System.out.println(queue.stats());
+        } finally {
+            esql.writeBehind(configured);
+            if (configured == null)
+                queue.close();
+            else
+                queue.flush();
+            delete(esql, "request", "reqid", requestIds);
+            delete(esql, "assigned", "asgid", assignedIds);
+            delete(esql, "repair", "rid", repairIds);
+            esql.forgetUncommitted();
+        } // end try
+    }// end writes
+
+    static void delete(DBProject esql, String table, String key, List<Integer> ids) throws SQLException {
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (PreparedStatement delete = p.connection
+                .prepareStatement("DELETE FROM " + table + " WHERE " + key + " = ANY(?)")) {
+            delete.setArray(1, p.connection.createArrayOf("integer", ids.toArray()));
+            delete.executeUpdate();
+        } finally {
+            esql.pool().release(p);
+        } // end try
+    }// end delete
+
+    /**
+     * Loads the columnar copy of Booking and reports the load time, the
+     * scan speed per million rows, sequential and on the fork-join pool, and
+     * the three date-range reports against their SQL. Results are formatted
+     * but written nowhere.
+     *
+     * @param esql  the connected client
+     * @param calls the number of calls per report and variant
+     * @throws java.sql.SQLException when the benchmark could not run
+     */
+    public static void analytics(DBProject esql, int calls) throws SQLException {
+        BookingColumns columns = esql.analytics() != null ? esql.analytics() : new BookingColumns();
+        List<int[]> bookings = new ArrayList<>();
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (Statement stmt = p.connection.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT hotelid, customer FROM booking ORDER BY random() LIMIT 1000")) {
+            while (rs.next())
+                bookings.add(new int[] { rs.getInt(1), rs.getInt(2) });
+        } finally {
+            esql.pool().release(p);
+        } // end try
+        if (bookings.isEmpty())
+            throw new SQLException("The benchmark needs bookings, run bench-seed first");
+
+        long start = System.nanoTime();
+        int rows = columns.size(esql);
+        System.out.println(String.format("Loaded %d bookings in %.1f s", rows, (System.nanoTime() - start) / 1e9));
+        for (boolean parallel : new boolean[] { false, true }) {
+            columns.sum(esql, Long.MIN_VALUE, Long.MAX_VALUE, parallel);
+            start = System.nanoTime();
+            for (int i = 0; i < 10; i++)
+                columns.sum(esql, Long.MIN_VALUE, Long.MAX_VALUE, parallel);
+            long nanos = (System.nanoTime() - start) / 10;
+            System.out.println(String.format("%-24s %-10s %10.2f ms per scan %8.2f ms per million rows",
+                    "full scan", parallel ? "fork-join" : "sequential", nanos / 1e6,
+                    rows == 0 ? 0.0 : nanos / 1e6 / (rows / 1e6)));
+        } // end for
+
+        int first = Dates.of(2015, 1, 1);
+        esql.redirect(ResultSink.create(System.getProperty("dbproject.format", "tsv"), Writer.nullWriter()));
+        try {
+            for (String variant : new String[] { "sql", "columnar" }) {
+                Random random = new Random(42);
+                start = System.nanoTime();
+                for (int i = 0; i < calls; i++) {
+                    int[] booking = pick(random, bookings);
+                    int from = first + random.nextInt(3650);
+                    if (variant.equals("sql"))
+                        esql.executeQuery(Sql.BOOKINGS_FOR_WEEK, booking[0], Dates.sql(from),
+                                Dates.sql(from + 7));
+                    else
+                        columns.bookings(esql, booking[0], from, from + 7);
+                } // end for
+                report("bookingsForAWeek", variant, calls, System.nanoTime() - start);
+
+                random = new Random(42);
+                start = System.nanoTime();
+                for (int i = 0; i < calls; i++) {
+                    int from = first + random.nextInt(3650 - 30);
+                    if (variant.equals("sql"))
+                        esql.executeQuery(Sql.TOP_K_ROOM_PRICE, Dates.sql(from),
+                                Dates.sql(from + 29), 10);
+                    else
+                        columns.topPrices(esql, 10, from, from + 29);
+                } // end for
+                report("topKRoomPrice 30d", variant, calls, System.nanoTime() - start);
+
+                random = new Random(42);
+                start = System.nanoTime();
+                for (int i = 0; i < calls; i++) {
+                    int[] booking = pick(random, bookings);
+                    if (variant.equals("sql"))
+                        esql.executeQuery(Sql.TOTAL_COST, booking[0], booking[1], Date.valueOf("2015-01-01"),
+                                Date.valueOf("2024-12-31"));
+                    else
+                        columns.totalCost(esql, booking[0], booking[1], first, first + 3652);
+                } // end for
+                report("totalCostForCustomer", variant, calls, System.nanoTime() - start);
+            } // end for
+        } finally {
+            esql.redirect(null);
+        } // end try
+    }// end analytics
+
+    /**
+     * Walks the bookings of the busiest hotel page by page, once with the
+     * keyset cursors of listHotelRoomBookingsForAWeek and once with OFFSET,
+     * and prints the mean latency of the pages around 1, 10, 100, 1000 and
+     * so on. A keyset page costs the same wherever it is; an OFFSET page
+     * reads and drops every row before it.
+     *
+     * @param esql  the connected client
+     * @param pages the number of pages to walk
+     * @param size  the rows per page
+     * @throws java.sql.SQLException when a query failed
+     */
+    public static void pages(DBProject esql, int pages, int size) throws SQLException {
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try {
+            int[] busiest = busiestHotel(p);
+            int hotel = busiest[0], from = busiest[1], to = busiest[2];
+
+            // the pages at which a window of ten pages is timed
+            List<Integer> marks = new ArrayList<>();
+            for (int mark = 1; mark + 9 <= pages; mark *= 10)
+                marks.add(mark);
+            if (marks.isEmpty())
+                marks.add(1);
+
+            long[] keyset = new long[marks.size()];
+            String cursor = null;
+            int walked = 0;
+            for (int page = 1; page <= pages; page++) {
+                long start = System.nanoTime();
+                Page<Booking> result = DBProject.bookingsBetween(esql, hotel, from, to, cursor, size);
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < marks.size(); i++) {
+                    if (page >= marks.get(i) && page < marks.get(i) + 10)
+                        keyset[i] += nanos;
+                } // end for
+                walked = page;
+                cursor = result.next;
+                if (cursor == null)
+                    break;
+            } // end for
+
+            long[] offset = new long[marks.size()];
+            try (PreparedStatement stmt = p.connection.prepareStatement("SELECT bid, customer, hotelid, roomno, "
+                    + "bookingdate - DATE '1970-01-01', noofpeople, price FROM booking "
+                    + "WHERE hotelid = ? AND bookingdate BETWEEN ? AND ? ORDER BY bookingdate, bid LIMIT ? OFFSET ?")) {
+                for (int i = 0; i < marks.size(); i++) {
+                    for (int page = marks.get(i); page < marks.get(i) + 10 && page <= walked; page++) {
+                        long start = System.nanoTime();
+                        DBProject.bind(stmt, hotel, Dates.sql(from), Dates.sql(to), size, (page - 1) * size);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next())
+                                Booking.MAPPER.map(rs);
+                        } // end try
+                        offset[i] += System.nanoTime() - start;
+                    } // end for
+                } // end for
+            } // end try
+
+            System.out.println(String.format("hotel %d, %s to %s, %d pages of %d walked", hotel, Dates.iso(from),
+                    Dates.iso(to), walked, size));
+            for (int i = 0; i < marks.size(); i++) {
+                int timed = Math.min(10, walked - marks.get(i) + 1);
+                if (timed <= 0)
+                    break;
+                report("page " + marks.get(i) + "+", "keyset", timed, keyset[i]);
+                report("page " + marks.get(i) + "+", "offset", timed, offset[i]);
+            } // end for
+        } finally {
+            esql.pool().release(p);
+        } // end try
+    }// end pages
+
+    // the hotel with the most bookings and its first and last booking day
+    private static int[] busiestHotel(ConnectionPool.Pooled p) throws SQLException {
+        try (Statement stmt = p.connection.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT hotelid, min(bookingdate) - DATE '1970-01-01', "
+                        + "max(bookingdate) - DATE '1970-01-01' FROM booking GROUP BY hotelid "
+                        + "ORDER BY count(*) DESC LIMIT 1")) {
+            if (!rs.next())
+                throw new SQLException("The benchmark needs bookings, run bench-seed first");
+            return new int[] { rs.getInt(1), rs.getInt(2), rs.getInt(3) };
+        } // end try
+    }// end busiestHotel
+
+    /**
+     * Reads the same page of bookings again and again, and reports the time
+     * and the bytes allocated by the calling thread per row for each way of
+     * consuming it: every column through getString into the tsv sink, the
+     * text sink, and Booking objects.
+     *
+     * @param esql  the connected client
+     * @param calls the number of timed reads per variant, after calls / 10
+     *              warm-up reads
+     * @param size  the rows per read
+     * @throws java.sql.SQLException when a query failed
+     */
+    public static void mapping(DBProject esql, int calls, int size) throws SQLException {
+        int[] busiest;
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try {
+            busiest = busiestHotel(p);
+        } finally {
+            esql.pool().release(p);
+        } // end try
+        Object[] params = { busiest[0], Dates.sql(busiest[1]), Dates.sql(busiest[2]), Dates.sql(busiest[1]),
+                Integer.MIN_VALUE, size };
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        boolean allocation = threads.isThreadAllocatedMemorySupported();
+        if (allocation)
+            threads.setThreadAllocatedMemoryEnabled(true);
+        ResultSink strings = ResultSink.create("tsv", Writer.nullWriter());
+        ResultSink text = ResultSink.create("text", OutputStream.nullOutputStream());
+
+        System.out.println(String.format("%-10s %8s %10s %10s %10s", "variant", "calls", "rows", "ns/row", "B/row"));
+        for (String variant : new String[] { "getString", "text", "typed" }) {
+            long rows = 0, allocated = 0, start = 0;
+            for (int n = -calls / 10; n < calls; n++) {
+                if (n == 0) {
+                    rows = 0;
+                    allocated = allocation ? threads.getCurrentThreadAllocatedBytes() : 0;
+                    start = System.nanoTime();
+                } // end if
+                if (variant.equals("getString"))
+                    rows += esql.streamQuery(Sql.BOOKINGS_PAGE, strings, params);
+                else if (variant.equals("text"))
+                    rows += esql.streamQuery(Sql.BOOKINGS_PAGE, text, params);
+                else
+                    rows += esql.queryList(Sql.BOOKINGS_PAGE, Booking.MAPPER, params).size();
+            } // end for
+            long nanos = System.nanoTime() - start;
+            long bytes = allocation ? threads.getCurrentThreadAllocatedBytes() - allocated : -1;
+            rows = Math.max(rows, 1);
+            System.out.println(String.format("%-10s %8d %10d %10.1f %10d", variant, calls, rows,
+                    (double) nanos / rows, bytes < 0 ? -1 : bytes / rows));
+        } // end for
+    }// end mapping
+
+    static void report(String operation, String variant, int calls, long nanos) {
+        System.out.println(String.format("%-24s %-10s %8d calls %10.1f ms %8.1f us/call", operation, variant, calls,
+                nanos / 1e6, nanos / 1e3 / calls));
+    }// end report
+
+}// end Bench
@@ -0,0 +1,66 @@
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for allocators that reserve a range of ids per table in one round
+ * trip and then serve them from memory.
+ *
+ * Serving an id from the current block is a single atomic increment; only the
+ * thread that finds the block exhausted takes the per-table lock and reserves
+ * the next range.
+ */
+public abstract class BlockIdAllocator implements IdAllocator {
+
+    // a reserved, half-open range [next, limit) of ids
+    static final class Block {
+        final AtomicLong next;
+        final long limit;
+
+        Block(long first, long limit) {
+            this.next = new AtomicLong(first);
+            this.limit = limit;
+        }
+    }// end Block
+
+    // reservations use their own autocommit connection, never the caller's transaction
+    protected final ConnectionPool pool;
+    private final ConcurrentHashMap<String, Block> blocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    protected BlockIdAllocator(ConnectionPool pool) {
+        this.pool = pool;
+    }// end BlockIdAllocator
+
+    /**
+     * Reserves the next range of ids for a table.
+     *
+     * @param tableName the lower case table name
+     * @param fieldName the lower case key column
+     * @return a block no other client will be given
+     * @throws java.sql.SQLException when the reservation failed
+     */
+    protected abstract Block reserve(String tableName, String fieldName) throws SQLException;
+
+    public long nextId(String tableName, String fieldName) throws SQLException {
+        String table = tableName.toLowerCase();
+        while (true) {
+            Block block = blocks.get(table);
+            if (block != null) {
+                long id = block.next.getAndIncrement();
+                if (id < block.limit)
+                    return id;
+            } // end if
+
+            // the block is exhausted, let one thread fetch the next one
+            synchronized (locks.computeIfAbsent(table, k -> new Object())) {
+                if (blocks.get(table) == block) {
+                    long trips = RoundTrips.count();
+                    blocks.put(table, reserve(table, fieldName.toLowerCase()));
+                    RoundTrips.share(trips);
+                } // end if
+            } // end synchronized
+        } // end while
+    }// end nextId
+
+}// end BlockIdAllocator
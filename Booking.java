@@ -0,0 +1,31 @@
+import java.math.BigDecimal;
+import java.sql.Types;
+
+/**
+ * A row of Booking. The date is an epoch day, see Dates.
+ *
+ * Queries mapped by MAPPER select bid, customer, hotelid, roomno,
+ * bookingdate - DATE '1970-01-01', noofpeople and price, in this order.
+ */
+public record Booking(int bid, int customer, int hotelId, int roomNo, int day, int people, BigDecimal price) {
+
+    public static final String[] COLUMNS = { "bid", "customer", "hotelid", "roomno", "bookingdate", "noofpeople",
+            "price" };
+    public static final int[] TYPES = { Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.DATE,
+            Types.INTEGER, Types.NUMERIC };
+
+    public static final RowMapper<Booking> MAPPER = rs -> new Booking(rs.getInt(1), rs.getInt(2), rs.getInt(3),
+            rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getBigDecimal(7));
+
+    /**
+     * Returns the row as the text Postgres prints for it, in COLUMNS order.
+     *
+     * @return the values
+     */
+    public String[] values() {
+        return new String[] { String.valueOf(bid), String.valueOf(customer), String.valueOf(hotelId),
+                String.valueOf(roomNo), Dates.iso(day), String.valueOf(people),
+                price == null ? null : price.toPlainString() };
+    }// end values
+
+}// end Booking
@@ -0,0 +1,512 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A columnar copy of Booking for the date-range reports.
+ *
+ * Every booking is held as primitives - hotel, room, customer, epoch day,
+ * price in cents - in the main segment, sorted by day, plus a small unsorted
+ * delta segment of the bookings loaded since. Each block of 4096 rows has a
+ * zone map (lowest and highest day, hotel and customer) so a scan skips the
+ * blocks that cannot match. Scans of more than dbproject.analytics.chunk rows
+ * are split across the common fork-join pool.
+ *
+ * The copy is refreshed before a report when dbproject.analytics.refresh
+ * milliseconds have passed, by loading the bookings with a bID above the
+ * highest one loaded; the delta is merged into the main segment once it
+ * holds an eighth of it. Deleted and changed bookings, and ids committed out
+ * of order by other clients, are picked up by the full reload every
+ * dbproject.analytics.maxAge seconds. It reads committed bookings only, on a
+ * connection of its own. Each row takes about 32 bytes of heap.
+ */
+public class BookingColumns {
+
+    static final int BLOCK = 4096;
+
+    /**
+     * Bookings in primitive columns with per-block zone maps. Immutable.
+     */
+    static final class Segment {
+        final int size;
+        final boolean sorted;
+        final int[] bid, customer, hotel, room, day, people;
+        final long[] cents;
+        final int[] minDay, maxDay, minHotel, maxHotel, minCustomer, maxCustomer;
+
+        Segment(Columns c, boolean sort) {
+            this.size = c.size;
+            this.sorted = sort;
+            int[] order = null;
+            if (sort) {
+                // day in the high half, row in the low half: one primitive sort, no boxing
+                long[] keys = new long[size];
+                for (int i = 0; i < size; i++)
+                    keys[i] = ((long) c.day[i] << 32) | i;
+                Arrays.parallelSort(keys);
+                order = new int[size];
+                for (int i = 0; i < size; i++)
+                    order[i] = (int) keys[i];
+            } // end if
+            this.bid = gather(c.bid, order, size);
+            this.customer = gather(c.customer, order, size);
+            this.hotel = gather(c.hotel, order, size);
+            this.room = gather(c.room, order, size);
+            this.day = gather(c.day, order, size);
+            this.people = gather(c.people, order, size);
+            this.cents = new long[size];
+            for (int i = 0; i < size; i++)
+                this.cents[i] = c.cents[order == null ? i : order[i]];
+
+            int blocks = (size + BLOCK - 1) / BLOCK;
+            minDay = new int[blocks];
+            maxDay = new int[blocks];
+            minHotel = new int[blocks];
+            maxHotel = new int[blocks];
+            minCustomer = new int[blocks];
+            maxCustomer = new int[blocks];
+            for (int b = 0; b < blocks; b++) {
+                minDay[b] = minHotel[b] = minCustomer[b] = Integer.MAX_VALUE;
+                maxDay[b] = maxHotel[b] = maxCustomer[b] = Integer.MIN_VALUE;
+                for (int i = b * BLOCK; i < Math.min(size, (b + 1) * BLOCK); i++) {
+                    minDay[b] = Math.min(minDay[b], day[i]);
+                    maxDay[b] = Math.max(maxDay[b], day[i]);
+                    minHotel[b] = Math.min(minHotel[b], hotel[i]);
+                    maxHotel[b] = Math.max(maxHotel[b], hotel[i]);
+                    minCustomer[b] = Math.min(minCustomer[b], customer[i]);
+                    maxCustomer[b] = Math.max(maxCustomer[b], customer[i]);
+                } // end for
+            } // end for
+        }
+
+        private static int[] gather(int[] column, int[] order, int size) {
+            if (order == null)
+                return Arrays.copyOf(column, size);
+            int[] out = new int[size];
+            for (int i = 0; i < size; i++)
+                out[i] = column[order[i]];
+            return out;
+        }
+
+        // the first row of a sorted segment on or after the day
+        int lowerBound(long first) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (day[mid] < first)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            } // end while
+            return lo;
+        }
+
+        void appendTo(Columns c) {
+            for (int i = 0; i < size; i++)
+                c.add(bid[i], customer[i], hotel[i], room[i], day[i], people[i], cents[i]);
+        }
+
+        String[] row(int i) {
+            return new String[] { String.valueOf(bid[i]), String.valueOf(customer[i]), String.valueOf(hotel[i]),
+                    String.valueOf(room[i]), Dates.iso(day[i]), String.valueOf(people[i]),
+                    BigDecimal.valueOf(cents[i], 2).toPlainString() };
+        }
+    }// end Segment
+
+    /**
+     * Growable columns that a Segment is built from.
+     */
+    static final class Columns {
+        int size;
+        int[] bid = new int[1024], customer = new int[1024], hotel = new int[1024], room = new int[1024],
+                day = new int[1024], people = new int[1024];
+        long[] cents = new long[1024];
+
+        void add(int b, int c, int h, int r, int d, int p, long price) {
+            if (size == bid.length) {
+                int grown = size * 2;
+                bid = Arrays.copyOf(bid, grown);
+                customer = Arrays.copyOf(customer, grown);
+                hotel = Arrays.copyOf(hotel, grown);
+                room = Arrays.copyOf(room, grown);
+                day = Arrays.copyOf(day, grown);
+                people = Arrays.copyOf(people, grown);
+                cents = Arrays.copyOf(cents, grown);
+            } // end if
+            bid[size] = b;
+            customer[size] = c;
+            hotel[size] = h;
+            room[size] = r;
+            day[size] = d;
+            people[size] = p;
+            cents[size] = price;
+            size++;
+        }
+    }// end Columns
+
+    // one consistent view: the sorted bookings and those loaded since
+    static final class Snapshot {
+        final Segment main, delta;
+        final int watermark;
+        final long loadedAt;
+
+        Snapshot(Segment main, Segment delta, int watermark, long loadedAt) {
+            this.main = main;
+            this.delta = delta;
+            this.watermark = watermark;
+            this.loadedAt = loadedAt;
+        }
+
+        int size() {
+            return main.size + delta.size;
+        }
+    }// end Snapshot
+
+    /**
+     * A scan of the rows in a day range, run on parts of a segment and
+     * merged.
+     */
+    abstract static class Scan<R> {
+        final int from, to;
+
+        Scan(long from, long to) {
+            this.from = (int) Math.max(Integer.MIN_VALUE, from);
+            this.to = (int) Math.min(Integer.MAX_VALUE, to);
+        }
+
+        abstract R empty();
+
+        // whether block b may hold a matching row
+        boolean block(Segment s, int b) {
+            return s.minDay[b] <= to && s.maxDay[b] >= from;
+        }
+
+        // adds the matching rows of [lo, hi) to the result
+        abstract R rows(Segment s, int lo, int hi, R result);
+
+        abstract R merge(R a, R b);
+    }// end Scan
+
+    static final class Task<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+        final transient Scan<R> scan;
+        final transient Segment segment;
+        final int lo, hi, chunk;
+
+        Task(Scan<R> scan, Segment segment, int lo, int hi, int chunk) {
+            this.scan = scan;
+            this.segment = segment;
+            this.lo = lo;
+            this.hi = hi;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected R compute() {
+            if (hi - lo > chunk) {
+                int mid = (lo + (hi - lo) / 2) / BLOCK * BLOCK;
+                if (mid <= lo)
+                    mid = lo + (hi - lo) / 2;
+                Task<R> left = new Task<>(scan, segment, lo, mid, chunk);
+                left.fork();
+                R right = new Task<>(scan, segment, mid, hi, chunk).compute();
+                return scan.merge(left.join(), right);
+            } // end if
+            R result = scan.empty();
+            for (int b = lo / BLOCK; b * BLOCK < hi; b++) {
+                if (scan.block(segment, b))
+                    result = scan.rows(segment, Math.max(lo, b * BLOCK), Math.min(hi, (b + 1) * BLOCK), result);
+            } // end for
+            return result;
+        }
+    }// end Task
+
+    private final long refreshMillis = Long.getLong("dbproject.analytics.refresh", 1000);
+    private final long maxAgeMillis = Long.getLong("dbproject.analytics.maxAge", 600) * 1000;
+    private final int chunk = Integer.getInteger("dbproject.analytics.chunk", 65536);
+
+    private volatile Snapshot snapshot = null;
+    private volatile long checkedAt = 0;
+    // the names and types of the Booking columns, read on the first load
+    private volatile String[] columns = null;
+    private volatile int[] types = null;
+
+    /**
+     * Writes the bookings of a hotel in a day range to the output of the
+     * client, in the columns of SELECT * FROM Booking.
+     *
+     * @param esql  the connected client
+     * @param hotel the hotel id
+     * @param from  the first day, as an epoch day
+     * @param to    the last day, as an epoch day
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the bookings could not be loaded
+     */
+    public int bookings(DBProject esql, int hotel, long from, long to) throws SQLException {
+        List<String[]> rows = run(snapshot(esql), new Scan<List<String[]>>(from, to) {
+            List<String[]> empty() {
+                return new ArrayList<>();
+            }
+
+            @Override
+            boolean block(Segment s, int b) {
+                return super.block(s, b) && s.minHotel[b] <= hotel && s.maxHotel[b] >= hotel;
+            }
+
+            List<String[]> rows(Segment s, int lo, int hi, List<String[]> result) {
+                for (int i = lo; i < hi; i++) {
+                    if (s.hotel[i] == hotel && s.day[i] >= this.from && s.day[i] <= this.to)
+                        result.add(s.row(i));
+                } // end for
+                return result;
+            }
+
+            List<String[]> merge(List<String[]> a, List<String[]> b) {
+                a.addAll(b);
+                return a;
+            }
+        }, true);
+        return esql.output().write(columns, types, rows);
+    }// end bookings
+
+    /**
+     * Writes the k most expensive bookings of a day range to the output of
+     * the client, in the columns of TopK.
+     *
+     * @param esql the connected client
+     * @param k    the number of bookings
+     * @param from the first day, as an epoch day
+     * @param to   the last day, as an epoch day
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the bookings could not be loaded
+     */
+    public int topPrices(DBProject esql, int k, long from, long to) throws SQLException {
+        if (k < 0)
+            throw new IllegalArgumentException("k must not be negative");
+        TopK.Heap top = run(snapshot(esql), new Scan<TopK.Heap>(from, to) {
+            TopK.Heap empty() {
+                return new TopK.Heap(Math.max(k, 1));
+            }
+
+            TopK.Heap rows(Segment s, int lo, int hi, TopK.Heap result) {
+                for (int i = lo; i < hi; i++) {
+                    if (s.day[i] >= this.from && s.day[i] <= this.to && result.accepts(s.cents[i]))
+                        result.offer(s.cents[i], new String[] { String.valueOf(s.hotel[i]),
+                                String.valueOf(s.room[i]), BigDecimal.valueOf(s.cents[i], 2).toPlainString(),
+                                Dates.iso(s.day[i]) });
+                } // end for
+                return result;
+            }
+
+            TopK.Heap merge(TopK.Heap a, TopK.Heap b) {
+                b.addTo(a);
+                return a;
+            }
+        }, true);
+        return esql.output().write(TopK.PRICE_COLUMNS, TopK.PRICE_TYPES,
+                k == 0 ? List.of() : Arrays.asList(top.descending()));
+    }// end topPrices
+
+    /**
+     * Writes the total price of the bookings of a customer at a hotel in a
+     * day range to the output of the client.
+     *
+     * @param esql     the connected client
+     * @param hotel    the hotel id
+     * @param customer the customer id
+     * @param from     the first day, as an epoch day
+     * @param to       the last day, as an epoch day
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the bookings could not be loaded
+     */
+    public int totalCost(DBProject esql, int hotel, int customer, long from, long to) throws SQLException {
+        long[] cents = run(snapshot(esql), new Scan<long[]>(from, to) {
+            long[] empty() {
+                return new long[1];
+            }
+
+            @Override
+            boolean block(Segment s, int b) {
+                return super.block(s, b) && s.minHotel[b] <= hotel && s.maxHotel[b] >= hotel
+                        && s.minCustomer[b] <= customer && s.maxCustomer[b] >= customer;
+            }
+
+            long[] rows(Segment s, int lo, int hi, long[] result) {
+                long sum = 0;
+                for (int i = lo; i < hi; i++) {
+                    if (s.hotel[i] == hotel && s.customer[i] == customer && s.day[i] >= this.from
+                            && s.day[i] <= this.to)
+                        sum += s.cents[i];
+                } // end for
+                result[0] += sum;
+                return result;
+            }
+
+            long[] merge(long[] a, long[] b) {
+                a[0] += b[0];
+                return a;
+            }
+        }, true);
+        return esql.output().write(new String[] { "totalincurred" }, new int[] { Types.NUMERIC },
+                List.<String[]>of(new String[] { BigDecimal.valueOf(cents[0], 2).toPlainString() }));
+    }// end totalCost
+
+    /**
+     * Sums the prices of every booking in a day range, the plain scan the
+     * reports are built on.
+     *
+     * @param esql     the connected client
+     * @param from     the first day, as an epoch day
+     * @param to       the last day, as an epoch day
+     * @param parallel whether to split the scan across the fork-join pool
+     * @return the sum in cents
+     * @throws java.sql.SQLException when the bookings could not be loaded
+     */
+    long sum(DBProject esql, long from, long to, boolean parallel) throws SQLException {
+        return run(snapshot(esql), new Scan<long[]>(from, to) {
+            long[] empty() {
+                return new long[1];
+            }
+
+            long[] rows(Segment s, int lo, int hi, long[] result) {
+                long sum = 0;
+                for (int i = lo; i < hi; i++) {
+                    if (s.day[i] >= this.from && s.day[i] <= this.to)
+                        sum += s.cents[i];
+                } // end for
+                result[0] += sum;
+                return result;
+            }
+
+            long[] merge(long[] a, long[] b) {
+                a[0] += b[0];
+                return a;
+            }
+        }, parallel)[0];
+    }// end sum
+
+    // runs a scan over the rows of both segments in its day range
+    private <R> R run(Snapshot snap, Scan<R> scan, boolean parallel) {
+        R result = scan.empty();
+        for (Segment s : new Segment[] { snap.main, snap.delta }) {
+            int lo = 0, hi = s.size;
+            if (s.sorted) {
+                lo = s.lowerBound(scan.from);
+                hi = s.lowerBound((long) scan.to + 1);
+            } // end if
+            if (lo >= hi)
+                continue;
+            Task<R> task = new Task<>(scan, s, lo, hi, parallel ? chunk : Integer.MAX_VALUE);
+            result = scan.merge(result, parallel && hi - lo > chunk ? ForkJoinPool.commonPool().invoke(task)
+                    : task.compute());
+        } // end for
+        return result;
+    }// end run
+
+    /**
+     * Returns the current copy, loading or refreshing it first when it is due.
+     *
+     * @param esql the client to load the bookings with
+     * @return the copy
+     * @throws java.sql.SQLException when the bookings could not be loaded
+     */
+    Snapshot snapshot(DBProject esql) throws SQLException {
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        if (current != null && now - checkedAt < refreshMillis && now - current.loadedAt < maxAgeMillis)
+            return current;
+        synchronized (this) {
+            current = snapshot;
+            now = System.currentTimeMillis();
+            if (current == null || now - current.loadedAt >= maxAgeMillis) {
+                Columns all = new Columns();
+                int watermark = load(esql, Integer.MIN_VALUE, all);
+                current = new Snapshot(new Segment(all, true), new Segment(new Columns(), false), watermark, now);
+            } else if (now - checkedAt >= refreshMillis) {
+                Columns added = new Columns();
+                int watermark = load(esql, current.watermark, added);
+                if (added.size > 0) {
+                    current.delta.appendTo(added);
+                    if (added.size >= Math.max(BLOCK, current.main.size / 8)) {
+                        current.main.appendTo(added);
+                        current = new Snapshot(new Segment(added, true), new Segment(new Columns(), false),
+                                watermark, current.loadedAt);
+                    } else {
+                        current = new Snapshot(current.main, new Segment(added, false), watermark,
+                                current.loadedAt);
+                    } // end if
+                } // end if
+            } // end if
+            snapshot = current;
+            checkedAt = now;
+            return current;
+        } // end synchronized
+    }// end snapshot
+
+    // appends the bookings with a bID above the watermark, returns the new watermark
+    private int load(DBProject esql, int watermark, Columns into) throws SQLException {
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try {
+            // a cursor, so the rows arrive in chunks instead of all at once
+            p.connection.setAutoCommit(false);
+            PreparedStatement stmt = p.statements.get(Sql.BOOKINGS_SINCE);
+            stmt.setInt(1, watermark);
+            stmt.setFetchSize(50000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (columns == null) {
+                    ResultSetMetaData meta = rs.getMetaData();
+                    // the last column is bookingdate again, as an epoch day
+                    String[] names = new String[meta.getColumnCount() - 1];
+                    int[] columnTypes = new int[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = meta.getColumnLabel(i + 1);
+                        columnTypes[i] = meta.getColumnType(i + 1);
+                    } // end for
+                    types = columnTypes;
+                    columns = names;
+                } // end if
+                while (rs.next()) {
+                    int bid = rs.getInt(1);
+                    BigDecimal price = rs.getBigDecimal(7);
+                    into.add(bid, rs.getInt(2), rs.getInt(3), rs.getInt(4),
+                            rs.getInt(8), rs.getInt(6),
+                            price == null ? 0 : price.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue());
+                    watermark = Math.max(watermark, bid);
+                } // end while
+            } // end try
+            p.connection.commit();
+            return watermark;
+        } finally {
+            esql.pool().release(p);
+        } // end try
+    }// end load
+
+    /**
+     * Returns the number of bookings in the copy, loading it first when it
+     * is due.
+     *
+     * @param esql the client to load the bookings with
+     * @return the number of rows
+     * @throws java.sql.SQLException when the bookings could not be loaded
+     */
+    public int size(DBProject esql) throws SQLException {
+        return snapshot(esql).size();
+    }// end size
+
+    /**
+     * Drops the copy so the next report reloads it.
+     */
+    public void invalidate() {
+        snapshot = null;
+    }// end invalidate
+
+}// end BookingColumns
@@ -0,0 +1,298 @@
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Books room-nights so that no two bookings hold the same room on the same
+ * day.
+ *
+ * A booking first claims its night in room_night, whose primary key is
+ * (hotelid, roomno, night); of two clerks racing for a night exactly one
+ * insert succeeds and the other finds the row taken. The claim and the
+ * Booking insert are one statement, so a booking is one round trip; the
+ * customer comes from the CustomerDirectory. Nights booked before the
+ * table existed are covered by the backfill of the schema migration, and
+ * bookings written by other paths by a NOT EXISTS on Booking.
+ *
+ * On a database without room_night (schema migration 6) a booking is a
+ * Booking insert guarded by a NOT EXISTS on the night. It refuses a night
+ * that is already booked but not one that a concurrent clerk is booking at
+ * the same moment; a warning says so once.
+ *
+ * Serialization failures and deadlocks are retried up to
+ * dbproject.booking.retries times with a short random backoff.
+ */
+public class BookingEngine {
+
+    /**
+     * What happened to a booking request.
+     */
+    public enum Result {
+        BOOKED, CONFLICT, UNKNOWN_CUSTOMER, AMBIGUOUS_CUSTOMER
+    }// end Result
+
+    /**
+     * The result of a booking request and the bID it was given.
+     */
+    public static final class Reservation {
+        public final Result result;
+        public final int bid;
+
+        Reservation(Result result, int bid) {
+            this.result = result;
+            this.bid = bid;
+        }
+
+        public String toString() {
+            return result == Result.BOOKED ? "booked bid " + bid
+                    : result == Result.CONFLICT ? "conflict, the room is already booked that day"
+                    : result == Result.AMBIGUOUS_CUSTOMER ? "ambiguous customer name" : "unknown customer";
+        }
+    }// end Reservation
+
+    private final int maxAttempts = Integer.getInteger("dbproject.booking.retries", 5);
+    private final AtomicLong retries = new AtomicLong();
+
+    // whether room_night exists, null until the first booking asks
+    private volatile Boolean claims = null;
+
+    /**
+     * Books a room-night for the customer with the given name. Inside a
+     * transaction started with DBProject.begin() the booking joins it behind a
+     * savepoint; otherwise it commits on its own.
+     *
+     * @param esql           the connected client
+     * @param hotelID        the hotel
+     * @param roomNo         the room
+     * @param fname          the customer's first name
+     * @param lname          the customer's last name
+     * @param date           the night, MM/DD/YYYY or another format the server
+     *                       accepts
+     * @param numberOfPeople the number of guests
+     * @param price          the price
+     * @return the reservation
+     * @throws java.sql.SQLException when the booking failed for another reason
+     *                               or kept failing to serialize
+     */
+    public Reservation book(DBProject esql, int hotelID, int roomNo, String fname, String lname, String date,
+            int numberOfPeople, BigDecimal price) throws SQLException {
+        Object night = Dates.param(date);
+        if (!claims(esql))
+            return unclaimed(esql, hotelID, roomNo, fname, lname, night, numberOfPeople, price);
+        for (int attempt = 1;; attempt++) {
+            try {
+                return attempt(esql, hotelID, roomNo, fname, lname, night, numberOfPeople, price);
+            } catch (SQLException e) {
+                if (!retryable(e) || attempt >= maxAttempts)
+                    throw e;
+                retries.incrementAndGet();
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(1, 5 << attempt));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                } // end try
+            } // end try
+        } // end for
+    }// end book
+
+    private Reservation attempt(DBProject esql, int hotelID, int roomNo, String fname, String lname, Object date,
+            int numberOfPeople, BigDecimal price) throws SQLException {
+        int customer = esql.customers().id(esql, fname, lname);
+        if (customer < 0)
+            return new Reservation(customer == CustomerDirectory.AMBIGUOUS ? Result.AMBIGUOUS_CUSTOMER
+                    : Result.UNKNOWN_CUSTOMER, -1);
+        int bid = esql.getNextId(esql, "bID", "booking");
+        Object[] params = { hotelID, roomNo, date, bid, hotelID, roomNo, date, customer, numberOfPeople, price };
+
+        // the claim and the Booking insert are one statement, atomic on its own
+        if (!esql.inTransaction())
+            return esql.executeUpdate(Sql.BOOK_ROOM_NIGHT, params) == 0 ? new Reservation(Result.CONFLICT, -1)
+                    : new Reservation(Result.BOOKED, bid);
+
+        ConnectionPool.Pooled p = esql.acquire();
+        try {
+            Savepoint savepoint = p.connection.setSavepoint();
+            try {
+                if (esql.executeUpdate(Sql.BOOK_ROOM_NIGHT, params) == 0) {
+                    p.connection.rollback(savepoint);
+                    return new Reservation(Result.CONFLICT, -1);
+                } // end if
+                p.connection.releaseSavepoint(savepoint);
+                return new Reservation(Result.BOOKED, bid);
+            } catch (SQLException e) {
+                p.connection.rollback(savepoint);
+                throw e;
+            } // end try
+        } finally {
+            esql.release(p);
+        } // end try
+    }// end attempt
+
+    // looks for room_night once
+    /**
+     * Returns whether the database has the room_night claims of schema
+     * migration 6. The answer is asked once and kept.
+     *
+     * @param esql the connected client
+     * @return true when room_night exists
+     * @throws java.sql.SQLException when the database could not be asked
+     */
+    boolean claims(DBProject esql) throws SQLException {
+        Boolean known = claims;
+        if (known == null) {
+            ConnectionPool.Pooled p = esql.acquire();
+            try (Statement stmt = p.connection.createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT to_regclass('room_night') IS NOT NULL")) {
+                rs.next();
+                claims = known = rs.getBoolean(1);
+            } finally {
+                esql.release(p);
+            } // end try
+            if (!known)
+                System.err.println("Warning: no room_night table, concurrent double bookings are not detected; "
+                        + "run the schema mode");
+        } // end if
+        return known;
+    }// end claims
+
+    // a booking guarded by NOT EXISTS, for a database without room_night
+    private Reservation unclaimed(DBProject esql, int hotelID, int roomNo, String fname, String lname, Object date,
+            int numberOfPeople, BigDecimal price) throws SQLException {
+        int customer = esql.customers().id(esql, fname, lname);
+        if (customer < 0)
+            return new Reservation(customer == CustomerDirectory.AMBIGUOUS ? Result.AMBIGUOUS_CUSTOMER
+                    : Result.UNKNOWN_CUSTOMER, -1);
+        int bid = esql.getNextId(esql, "bID", "booking");
+        return esql.executeUpdate(Sql.BOOK_ROOM_IF_FREE, bid, customer, hotelID, roomNo, date, numberOfPeople, price,
+                hotelID, roomNo, date) == 0 ? new Reservation(Result.CONFLICT, -1)
+                        : new Reservation(Result.BOOKED, bid);
+    }// end unclaimed
+
+    static boolean retryable(SQLException e) {
+        // serialization_failure, deadlock_detected
+        return "40001".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
+    }// end retryable
+
+    /**
+     * Returns the number of attempts that were retried.
+     *
+     * @return the retries
+     */
+    public long retries() {
+        return retries.get();
+    }// end retries
+
+    // the n-th night of 2099, MM/DD/YYYY
+    private static String night(int n) {
+        return Dates.prompt(Dates.of(2099, 1, 1) + n - 1);
+    }// end night
+
+    /**
+     * Lets many threads race to book the same room-nights, in 2099 so no real
+     * booking is touched, then checks that every night was booked exactly
+     * once and deletes the test bookings.
+     *
+     * @param esql    the connected client
+     * @param threads the number of racing clerks
+     * @param rooms   the number of rooms raced for
+     * @param nights  the number of nights per room
+     * @return true when no night was booked twice or left unbooked
+     * @throws java.sql.SQLException when the test could not be set up
+     * @throws java.lang.InterruptedException when interrupted while waiting
+     */
+    public static boolean stress(DBProject esql, int threads, int rooms, int nights)
+            throws SQLException, InterruptedException {
+        List<int[]> targets = new ArrayList<>();
+        String fname, lname;
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT hotelid, roomno FROM room ORDER BY hotelid, roomno LIMIT " + rooms);
+            while (rs.next()) {
+                for (int night = 1; night <= nights; night++)
+                    targets.add(new int[] { rs.getInt(1), rs.getInt(2), night });
+            } // end while
+            rs = stmt.executeQuery("SELECT fname, lname FROM customer LIMIT 1");
+            if (targets.isEmpty() || !rs.next())
+                throw new SQLException("The stress test needs at least one room and one customer");
+            fname = rs.getString(1).trim();
+            lname = rs.getString(2).trim();
+        } finally {
+            esql.pool().release(p);
+        } // end try
+
+        BookingEngine engine = new BookingEngine();
+        ConcurrentLinkedQueue<Integer> booked = new ConcurrentLinkedQueue<>();
+        AtomicInteger conflicts = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long began = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            List<int[]> order = new ArrayList<>(targets);
+            Collections.shuffle(order);
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int[] target : order) {
+                        Reservation r = engine.book(esql, target[0], target[1], fname, lname,
+                                night(target[2]), 1, BigDecimal.ONE);
+                        if (r.result == Result.BOOKED)
+                            booked.add(r.bid);
+                        else
+                            conflicts.incrementAndGet();
+                    } // end for
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    System.err.println(e.getMessage());
+                } // end try
+            });
+            workers[t].start();
+        } // end for
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        double seconds = (System.nanoTime() - began) / 1e9;
+
+        long doubles;
+        p = esql.pool().borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM (SELECT 1 FROM booking "
+                    + "WHERE bookingdate >= DATE '2099-01-01' GROUP BY hotelid, roomno, bookingdate "
+                    + "HAVING COUNT(*) > 1) d")) {
+                rs.next();
+                doubles = rs.getLong(1);
+            } // end try
+            Array bids = p.connection.createArrayOf("integer", booked.toArray());
+            PreparedStatement delete = p.connection.prepareStatement("DELETE FROM room_night WHERE bid = ANY(?)");
+            delete.setArray(1, bids);
+            delete.executeUpdate();
+            delete.close();
+            delete = p.connection.prepareStatement("DELETE FROM booking WHERE bid = ANY(?)");
+            delete.setArray(1, bids);
+            delete.executeUpdate();
+            delete.close();
+        } finally {
+            esql.pool().release(p);
+        } // end try
+        esql.forgetUncommitted();
+
+        System.out.println(String.format("%d threads raced for %d room-nights in %.2f s: %d booked, %d conflicts, "
+                + "%d retries, %d errors, %d nights booked twice", threads, targets.size(), seconds, booked.size(),
+                conflicts.get(), engine.retries(), errors.get(), doubles));
+        return doubles == 0 && errors.get() == 0 && booked.size() == targets.size();
+    }// end stress
+
+}// end BookingEngine
@@ -0,0 +1,255 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads bookings or customers from a CSV file in batches.
+ *
+ * The file is streamed line by line; each row is validated and added to a JDBC
+ * batch that is sent every dbproject.import.chunk rows and committed every
+ * dbproject.import.commit rows. When a batch is refused by the server it is
+ * replayed row by row so only the offending rows are rejected. Rejected rows
+ * are copied verbatim to the reject file, each preceded by a '#' line with
+ * the reason, so the file can be fixed and imported again.
+ *
+ * A booking row claims its night in room_night like a booking from the menu
+ * (BOOK_ROOM_NIGHT, see BookingEngine); a row whose room is already booked
+ * that night is rejected. Without room_night the row is inserted only when
+ * no booking holds the night (BOOK_ROOM_IF_FREE).
+ *
+ * Booking rows: hotelid,roomno,fname,lname,bookingdate,noofpeople,price
+ * Customer rows: fname,lname,address,phno,dob,gender
+ */
+public class BulkImporter {
+
+    private final DBProject esql;
+    private final String table;
+    private final int chunkSize;
+    private final int commitInterval;
+
+    private boolean claims;
+    private BufferedWriter rejects;
+    private long loaded = 0;
+    private long rejected = 0;
+
+    public BulkImporter(DBProject esql, String table) {
+        this.esql = esql;
+        this.table = table.toLowerCase();
+        this.chunkSize = Integer.getInteger("dbproject.import.chunk", 1000);
+        this.commitInterval = Math.max(chunkSize, Integer.getInteger("dbproject.import.commit", 10000));
+        if (!this.table.equals("booking") && !this.table.equals("customer"))
+            throw new IllegalArgumentException("Only booking and customer files can be imported");
+    }// end BulkImporter
+
+    /**
+     * Imports a file and prints a throughput report.
+     *
+     * @param file       the CSV file
+     * @param rejectFile where rejected rows are written
+     * @throws java.io.IOException   when a file could not be read or written
+     * @throws java.sql.SQLException when the database failed outside a row
+     */
+    public void run(String file, String rejectFile) throws IOException, SQLException {
+        long start = System.nanoTime();
+        long lineNo = 0;
+        claims = table.equals("booking") && esql.bookings().claims(esql);
+        Sql sql = !table.equals("booking") ? Sql.ADD_CUSTOMER : claims ? Sql.BOOK_ROOM_NIGHT : Sql.BOOK_ROOM_IF_FREE;
+        List<Object[]> rows = new ArrayList<>(chunkSize);
+        List<String> lines = new ArrayList<>(chunkSize);
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+                BufferedWriter rejectWriter = new BufferedWriter(new FileWriter(rejectFile))) {
+            this.rejects = rejectWriter;
+            esql.begin();
+            ConnectionPool.Pooled p = esql.acquire();
+            PreparedStatement stmt = p.statements.get(sql);
+            long sinceCommit = 0;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (line.isEmpty() || line.startsWith("#") || (lineNo == 1 && isHeader(line)))
+                    continue;
+                try {
+                    rows.add(parse(split(line)));
+                    lines.add(line);
+                } catch (IllegalArgumentException | DateTimeParseException e) {
+                    reject(line, "line " + lineNo + ": " + e.getMessage());
+                    continue;
+                } // end try
+
+                if (rows.size() == chunkSize) {
+                    sinceCommit += flush(stmt, rows, lines);
+                    if (sinceCommit >= commitInterval) {
+                        esql.commit();
+                        sinceCommit = 0;
+                        progress(start);
+                    } // end if
+                } // end if
+            } // end while
+            flush(stmt, rows, lines);
+            esql.commit();
+        } finally {
+            esql.end();
+            if (table.equals("customer")) {
+                // the names of the imported customers may now be shared
+                esql.customers().invalidate();
+            } // end if
+        } // end try
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Imported %d %s rows, rejected %d, in %.2f s (%.0f rows/s)", loaded, table,
+                rejected, seconds, loaded / Math.max(seconds, 1e-9)));
+        if (rejected > 0)
+            System.out.println("Rejected rows were written to " + rejectFile);
+    }// end run
+
+    // sends one chunk, falling back to row by row when the server refuses it
+    private int flush(PreparedStatement stmt, List<Object[]> rows, List<String> lines) throws SQLException {
+        if (rows.isEmpty())
+            return 0;
+
+        Savepoint chunk = stmt.getConnection().setSavepoint();
+        try {
+            for (Object[] row : rows) {
+                DBProject.bind(stmt, row);
+                stmt.addBatch();
+            } // end for
+            int[] counts = stmt.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0)
+                    reject(lines.get(i), "the room is already booked that night");
+                else
+                    loaded++;
+            } // end for
+        } catch (SQLException e) {
+            stmt.clearBatch();
+            stmt.getConnection().rollback(chunk);
+            for (int i = 0; i < rows.size(); i++) {
+                Savepoint single = stmt.getConnection().setSavepoint();
+                try {
+                    DBProject.bind(stmt, rows.get(i));
+                    if (stmt.executeUpdate() == 0)
+                        reject(lines.get(i), "the room is already booked that night");
+                    else
+                        loaded++;
+                } catch (SQLException rowError) {
+                    stmt.getConnection().rollback(single);
+                    reject(lines.get(i), rowError.getMessage());
+                } // end try
+            } // end for
+        } // end try
+
+        int n = rows.size();
+        rows.clear();
+        lines.clear();
+        return n;
+    }// end flush
+
+    // validates one row and returns the statement parameters
+    private Object[] parse(String[] f) throws SQLException {
+        if (table.equals("booking")) {
+            require(f, 7);
+            // from the customer directory instead of a subselect per row
+            int customerid = esql.customers().id(esql, f[2], f[3]);
+            if (customerid == CustomerDirectory.AMBIGUOUS)
+                throw new IllegalArgumentException("several customers named " + f[2].trim() + " " + f[3].trim());
+            if (customerid < 0)
+                throw new IllegalArgumentException("unknown customer " + f[2].trim() + " " + f[3].trim());
+            BigDecimal price = new BigDecimal(f[6].trim());
+            if (price.signum() < 0)
+                throw new IllegalArgumentException("negative price");
+            int bid = esql.getNextId(esql, "bID", "booking");
+            int hotel = Integer.parseInt(f[0].trim());
+            int room = Integer.parseInt(f[1].trim());
+            Object night = Dates.sql(Dates.parse(f[4]));
+            int people = Integer.parseInt(f[5].trim());
+            if (claims)
+                return new Object[] { hotel, room, night, bid, hotel, room, night, customerid, people, price };
+            return new Object[] { bid, customerid, hotel, room, night, people, price, hotel, room, night };
+        } // end if
+
+        require(f, 6);
+        String gender = f[5].trim();
+        if (!gender.equals("Male") && !gender.equals("Female") && !gender.equals("Other"))
+            throw new IllegalArgumentException("gender must be Male, Female or Other");
+        if (f[0].trim().length() > 30 || f[1].trim().length() > 30)
+            throw new IllegalArgumentException("name longer than 30 characters");
+        return new Object[] { esql.getNextId(esql, "customerid", "customer"), f[0].trim(), f[1].trim(), f[2].trim(),
+                Long.parseLong(f[3].trim()), Dates.sql(Dates.parse(f[4])), gender };
+    }// end parse
+
+    private static void require(String[] fields, int count) {
+        if (fields.length != count)
+            throw new IllegalArgumentException("expected " + count + " fields, found " + fields.length);
+    }// end require
+
+    private boolean isHeader(String line) {
+        String first = line.split(",", 2)[0].trim().toLowerCase();
+        return first.equals("hotelid") || first.equals("fname");
+    }// end isHeader
+
+    private void reject(String line, String reason) throws SQLException {
+        rejected++;
+        try {
+            rejects.write("# " + reason.replace('\n', ' '));
+            rejects.newLine();
+            rejects.write(line);
+            rejects.newLine();
+        } catch (IOException e) {
+            throw new SQLException("Could not write the reject file: " + e.getMessage());
+        } // end try
+    }// end reject
+
+    private void progress(long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("\t%d rows committed (%.0f rows/s)", loaded, loaded / seconds));
+    }// end progress
+
+    /**
+     * Splits a CSV line. Fields may be quoted with '"', and a quote inside a
+     * quoted field is written twice.
+     *
+     * @param line the line
+     * @return the fields
+     */
+    static String[] split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                } // end if
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            } // end if
+        } // end for
+        if (quoted)
+            throw new IllegalArgumentException("unterminated quote");
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }// end split
+
+}// end BulkImporter
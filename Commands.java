@@ -0,0 +1,356 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The menu operations as typed text commands, for scripts and other
+ * non-interactive front ends.
+ *
+ * A command is the operation name (or its menu number) followed by its
+ * arguments separated by blanks; an argument containing blanks is written in
+ * double quotes, a quote inside quotes is written twice. Names are not case
+ * sensitive. Lines that are empty or start with '#' are ignored.
+ *
+ *   bookRoom 1 101 "Mary Ann" O'Brien 05/14/2020 2 120.00
+ */
+public class Commands {
+
+    /**
+     * Runs one command with its parsed arguments.
+     */
+    interface Handler {
+        String run(DBProject esql, Args args) throws Exception;
+    }// end Handler
+
+    /**
+     * A registered command.
+     */
+    static final class Command {
+        final String name;
+        final String usage;
+        final boolean write;
+        final Handler handler;
+
+        Command(String name, String usage, boolean write, Handler handler) {
+            this.name = name;
+            this.usage = usage;
+            this.write = write;
+            this.handler = handler;
+        }
+    }// end Command
+
+    /**
+     * The arguments of one command, converted on access.
+     */
+    static final class Args {
+        private final List<String> tokens;
+
+        Args(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        int size() {
+            return tokens.size() - 1;
+        }
+
+        String str(int i) {
+            return tokens.get(i + 1);
+        }
+
+        String opt(int i) {
+            return i + 1 < tokens.size() ? tokens.get(i + 1) : null;
+        }
+
+        int integer(int i) {
+            return Integer.parseInt(str(i));
+        }
+
+        long lng(int i) {
+            return Long.parseLong(str(i));
+        }
+
+        double dbl(int i) {
+            return Double.parseDouble(str(i));
+        }
+
+        boolean bool(int i) {
+            String value = str(i);
+            if (value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("true"))
+                return true;
+            if (value.equalsIgnoreCase("no") || value.equalsIgnoreCase("false"))
+                return false;
+            throw new IllegalArgumentException("expected yes or no, found " + value);
+        }
+    }// end Args
+
+    private static final Map<String, Command> COMMANDS = new LinkedHashMap<>();
+
+    private static void register(int menu, String name, String usage, boolean write, Handler handler) {
+        Command command = new Command(name, usage, write, handler);
+        COMMANDS.put(name.toLowerCase(), command);
+        COMMANDS.put(String.valueOf(menu), command);
+    }// end register
+
+    // a command without a menu entry
+    private static void register(String name, String usage, boolean write, Handler handler) {
+        COMMANDS.put(name.toLowerCase(), new Command(name, usage, write, handler));
+    }// end register
+
+    static {
+        register(1, "addCustomer", "fname lname address phone dob gender", true,
+                (esql, a) -> "customerid " + DBProject.addCustomer(esql, a.str(0), a.str(1), a.str(2), a.lng(3),
+                        a.str(4), a.str(5)));
+        register(2, "addRoom", "hotelID roomType", true,
+                (esql, a) -> "roomno " + DBProject.addRoom(esql, a.integer(0), a.str(1)));
+        register(3, "addMaintenanceCompany", "name address yes|no", true,
+                (esql, a) -> "cmpid " + DBProject.addMaintenanceCompany(esql, a.str(0), a.str(1), a.bool(2)));
+        register(4, "addRepair", "hotelID roomNo companyID date description type", true,
+                (esql, a) -> "rid " + DBProject.addRepair(esql, a.integer(0), a.integer(1), a.integer(2), a.str(3),
+                        a.str(4), a.str(5)));
+        register(5, "bookRoom", "hotelID roomNo fname lname date people price", true,
+                (esql, a) -> DBProject.bookRoom(esql, a.integer(0), a.integer(1), a.str(2), a.str(3), a.str(4),
+                        a.integer(5), a.dbl(6)).toString());
+        register(6, "assignHouseCleaningToRoom", "staffID hotelID roomNo", true,
+                (esql, a) -> "asgid " + DBProject.assignHouseCleaningToRoom(esql, a.str(0), a.str(1), a.str(2)));
+        register(7, "repairRequest", "ssn repairID date description", true,
+                (esql, a) -> "reqid " + DBProject.repairRequest(esql, a.integer(0), a.integer(1), a.str(2), a.str(3)));
+        register(8, "numberOfAvailableRooms", "hotelID [from [to]]", false,
+                (esql, a) -> rows(DBProject.numberOfAvailableRooms(esql, a.integer(0), a.opt(1), a.opt(2))));
+        register(9, "numberOfBookedRooms", "hotelID", false,
+                (esql, a) -> rows(DBProject.numberOfBookedRooms(esql, a.integer(0))));
+        register(10, "listHotelRoomBookingsForAWeek", "hotelID date", false,
+                (esql, a) -> rows(DBProject.listHotelRoomBookingsForAWeek(esql, a.integer(0), a.str(1))));
+        register(11, "topKHighestRoomPriceForADateRange", "k from to", false,
+                (esql, a) -> rows(DBProject.topKHighestRoomPriceForADateRange(esql, a.integer(0), a.str(1), a.str(2))));
+        register(12, "topKHighestPriceBookingsForACustomer", "fname lname k", false,
+                (esql, a) -> rows(DBProject.topKHighestPriceBookingsForACustomer(esql, a.str(0), a.str(1), a.integer(2))));
+        register(13, "totalCostForCustomer", "hotelID fname lname from to", false,
+                (esql, a) -> rows(DBProject.totalCostForCustomer(esql, a.integer(0), a.str(1), a.str(2), a.str(3),
+                        a.str(4))));
+        register(14, "listRepairsMade", "company", false,
+                (esql, a) -> rows(DBProject.listRepairsMade(esql, a.str(0))));
+        register(15, "topKMaintenanceCompany", "k", false,
+                (esql, a) -> rows(DBProject.topKMaintenanceCompany(esql, a.integer(0))));
+        register(16, "numberOfRepairsForEachRoomPerYear", "hotelID roomNo", false,
+                (esql, a) -> rows(DBProject.numberOfRepairsForEachRoomPerYear(esql, a.integer(0), a.integer(1))));
+        register("findCustomers", "prefix [limit]", false, (esql, a) -> rows(esql.customers().complete(esql, a.str(0),
+                a.opt(1) == null ? 10 : a.integer(1))));
+        register("pageBookingsForAWeek", "hotelID date [cursor|- [size]]", false,
+                (esql, a) -> page(esql, DBProject.listHotelRoomBookingsForAWeek(esql, a.integer(0), a.str(1),
+                        cursor(a.opt(2)), size(a.opt(3))), Booking.COLUMNS, Booking.TYPES, Booking::values));
+        register("pageCustomerBookings", "fname lname [cursor|- [size]]", false,
+                (esql, a) -> page(esql, DBProject.topKHighestPriceBookingsForACustomer(esql, a.str(0), a.str(1),
+                        cursor(a.opt(2)), size(a.opt(3))), Booking.COLUMNS, Booking.TYPES, Booking::values));
+        register("pageRepairsMade", "company [cursor|- [size]]", false,
+                (esql, a) -> page(esql, DBProject.listRepairsMade(esql, a.str(0), cursor(a.opt(1)), size(a.opt(2))),
+                        Repair.COLUMNS, Repair.TYPES, Repair::values));
+    }
+
+    private static String rows(int count) {
+        return count + " rows";
+    }// end rows
+
+    // '-' asks for the first page when a size follows
+    private static String cursor(String arg) {
+        return arg == null || arg.equals("-") ? null : arg;
+    }// end cursor
+
+    private static int size(String arg) {
+        int size = arg == null ? 20 : Integer.parseInt(arg);
+        if (size < 1)
+            throw new IllegalArgumentException("The page size must be positive, found " + size);
+        return size;
+    }// end size
+
+    // writes the rows of a page; the status carries the cursor of the next one
+    private static <T> String page(DBProject esql, Page<T> page, String[] columns, int[] types,
+            Function<T, String[]> values) throws SQLException {
+        int count = page.write(esql.output(), columns, types, values);
+        return rows(count) + (page.next == null ? ", last page" : ", next " + page.next);
+    }// end page
+
+    /**
+     * Looks up a command by name or menu number.
+     *
+     * @param name the name
+     * @return the command, or null
+     */
+    static Command find(String name) {
+        return COMMANDS.get(name.toLowerCase());
+    }// end find
+
+    /**
+     * Returns one usage line per command.
+     *
+     * @return the usage text
+     */
+    public static String usage() {
+        StringBuilder usage = new StringBuilder();
+        for (Map.Entry<String, Command> e : COMMANDS.entrySet()) {
+            if (!Character.isDigit(e.getKey().charAt(0)))
+                usage.append("  ").append(e.getValue().name).append(' ').append(e.getValue().usage).append('\n');
+        } // end for
+        return usage.toString();
+    }// end usage
+
+    /**
+     * Runs one command line. Query results go to the thread's output sink.
+     *
+     * @param esql the connected client
+     * @param line the command line
+     * @return a short status, such as the id of an inserted row
+     * @throws java.lang.Exception when the command is unknown, its arguments
+     *                             are malformed or the operation failed
+     */
+    public static String execute(DBProject esql, String line) throws Exception {
+        return execute(esql, tokenize(line));
+    }// end execute
+
+    static String execute(DBProject esql, List<String> tokens) throws Exception {
+        Command command = find(tokens.get(0));
+        if (command == null)
+            throw new IllegalArgumentException("Unknown command " + tokens.get(0));
+        Args args = new Args(tokens);
+        int required = command.usage.isEmpty() ? 0 : command.usage.replaceAll("\\[.*\\]", "").trim().split(" ").length;
+        if (args.size() < required)
+            throw new IllegalArgumentException("Usage: " + command.name + " " + command.usage);
+        return command.handler.run(esql, args);
+    }// end execute
+
+    /**
+     * Splits a command line into words, honouring double quotes.
+     *
+     * @param line the line
+     * @return the words
+     */
+    public static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false, inToken = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    token.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    token.append(c);
+                } // end if
+            } else if (c == '"') {
+                quoted = inToken = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inToken)
+                    tokens.add(token.toString());
+                token.setLength(0);
+                inToken = false;
+            } else {
+                token.append(c);
+                inToken = true;
+            } // end if
+        } // end for
+        if (quoted)
+            throw new IllegalArgumentException("Unterminated quote");
+        if (inToken)
+            tokens.add(token.toString());
+        return tokens;
+    }// end tokenize
+
+    /**
+     * Runs a script of commands. Commands run in one transaction per group of
+     * perTransaction commands (0 puts the whole script in one transaction).
+     * The first failing command rolls back its group and stops the run.
+     * A latency and throughput report is printed to standard error.
+     *
+     * @param esql           the connected client
+     * @param script         the commands
+     * @param perTransaction the commands per transaction, 0 for all
+     * @return true when every command succeeded
+     * @throws java.io.IOException   when the script could not be read
+     * @throws java.sql.SQLException when a transaction could not be started
+     */
+    public static boolean runBatch(DBProject esql, BufferedReader script, int perTransaction)
+            throws IOException, SQLException {
+        Map<String, long[]> latencies = new LinkedHashMap<>();
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        int executed = 0, inGroup = 0, commits = 0, lineNo = 0;
+        boolean ok = true;
+
+        esql.begin();
+        try {
+            String line;
+            while ((line = script.readLine()) != null) {
+                lineNo++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                    continue;
+
+                List<String> tokens = tokenize(trimmed);
+                Command command = find(tokens.get(0));
+                String name = command == null ? tokens.get(0) : command.name;
+                long t0 = System.nanoTime();
+                try {
+                    String status = execute(esql, tokens);
+                    if (command.write)
+                        System.out.println(name + ": " + status);
+                } catch (Exception e) {
+                    System.err.println("line " + lineNo + ": " + name + " failed: " + e.getMessage());
+                    System.err.println(inGroup + " earlier commands of this transaction were rolled back");
+                    esql.rollback();
+                    // rows recorded by the caches were never committed
+                    esql.forgetUncommitted();
+                    ok = false;
+                    break;
+                } // end try
+                long elapsed = System.nanoTime() - t0;
+
+                int n = counts.getOrDefault(name, 0);
+                long[] samples = latencies.get(name);
+                if (samples == null || samples.length == n)
+                    latencies.put(name, samples = samples == null ? new long[64] : Arrays.copyOf(samples, n * 2));
+                samples[n] = elapsed;
+                counts.put(name, n + 1);
+                executed++;
+
+                if (perTransaction > 0 && ++inGroup == perTransaction) {
+                    esql.commit();
+                    commits++;
+                    inGroup = 0;
+                } // end if
+            } // end while
+            if (ok) {
+                esql.commit();
+                commits++;
+            } // end if
+        } finally {
+            esql.end();
+        } // end try
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format("%-36s %8s %10s %10s %10s %10s", "command", "count", "mean ms", "p50 ms",
+                "p99 ms", "max ms"));
+        for (Map.Entry<String, long[]> e : latencies.entrySet()) {
+            int n = counts.get(e.getKey());
+            long[] sorted = Arrays.copyOf(e.getValue(), n);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long sample : sorted)
+                total += sample;
+            System.err.println(String.format("%-36s %8d %10.3f %10.3f %10.3f %10.3f", e.getKey(), n,
+                    total / 1e6 / n, sorted[(n - 1) / 2] / 1e6, sorted[(int) Math.ceil(n * 0.99) - 1] / 1e6,
+                    sorted[n - 1] / 1e6));
+        } // end for
+        System.err.println(String.format("%d commands, %d commits in %.2f s (%.0f commands/s)", executed, commits,
+                seconds, executed / Math.max(seconds, 1e-9)));
+        return ok;
+    }// end runBatch
+
+}// end Commands
@@ -0,0 +1,367 @@
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * A bounded pool of physical Postgres connections.
+ *
+ * At most size connections are lent out at once; further borrowers wait up to
+ * maxWait milliseconds. A connection is validated on borrow when it has been
+ * idle for more than a second, closed by the evictor once it has been idle
+ * longer than idleTimeout, and retired when it is older than maxLifetime.
+ * Every pooled connection carries its own StatementCache.
+ *
+ * The settings are read from the dbproject.pool.* system properties.
+ */
+public class ConnectionPool implements DataSource {
+
+    /**
+     * A physical connection together with its prepared statements.
+     */
+    public static final class Pooled {
+        public final Connection connection;
+        public final StatementCache statements;
+        final ConnectionPool pool;
+        final long createdAt;
+        volatile long lastUsed;
+
+        Pooled(ConnectionPool pool, Connection connection, int maxAdHoc) {
+            this.pool = pool;
+            this.connection = connection;
+            this.statements = new StatementCache(connection, maxAdHoc);
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsed = this.createdAt;
+        }
+    }// end Pooled
+
+    /**
+     * Prepares a new connection before it is first lent out.
+     */
+    interface Warmer {
+        void warm(Pooled p) throws SQLException;
+    }// end Warmer
+
+    // connections used within this window are handed out without a validation round trip
+    private static final long VALIDATION_BYPASS_MILLIS = 1000;
+
+    private final String url;
+    private final Properties info;
+    private final int size;
+    private final long maxWaitMillis;
+    private final long idleTimeoutMillis;
+    private final long maxLifetimeMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+    private final boolean countRoundTrips;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<Pooled> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    // counted down once the connection opened by warmUp() is idle, or failed
+    private volatile CountDownLatch warming = null;
+
+    // metrics
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    final Metrics.Histogram waits = new Metrics.Histogram();
+
+    public ConnectionPool(String url, String user, String password) {
+        this.url = url;
+        this.info = new Properties();
+        this.info.setProperty("user", user);
+        this.info.setProperty("password", password);
+        this.size = Integer.getInteger("dbproject.pool.size", 8);
+        this.maxWaitMillis = Long.getLong("dbproject.pool.maxWait", 5000);
+        this.idleTimeoutMillis = Long.getLong("dbproject.pool.idleTimeout", 600000);
+        this.maxLifetimeMillis = Long.getLong("dbproject.pool.maxLifetime", 1800000);
+        this.validationTimeoutSeconds = Integer.getInteger("dbproject.pool.validationTimeout", 2);
+        this.statementCacheSize = Integer.getInteger("dbproject.statementCache", 64);
+        this.countRoundTrips = Boolean.getBoolean("dbproject.roundTrips");
+        this.permits = new Semaphore(this.size, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(this.idleTimeoutMillis, this.maxLifetimeMillis) / 4);
+        this.evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }// end ConnectionPool
+
+    /**
+     * Borrows a connection, waiting up to maxWait for one to be returned.
+     *
+     * @return a validated connection that must be given back with release()
+     * @throws java.sql.SQLException when the pool stayed exhausted or no
+     *                               connection could be opened
+     */
+    public Pooled borrow() throws SQLException {
+        if (closed)
+            throw new SQLException("The connection pool is closed");
+
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection");
+        } // end try
+        long waited = System.nanoTime() - start;
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        waits.record(waited);
+        borrows.incrementAndGet();
+        if (!acquired) {
+            timeouts.incrementAndGet();
+            throw new SQLTransientConnectionException(
+                    "No connection available within " + maxWaitMillis + " ms (pool size " + size + ")");
+        } // end if
+
+        try {
+            CountDownLatch latch = warming;
+            if (latch != null && !latch.await(maxWaitMillis, TimeUnit.MILLISECONDS))
+                throw new SQLTransientConnectionException("The first connection was not opened within "
+                        + maxWaitMillis + " ms");
+            Pooled p;
+            while ((p = idle.pollFirst()) != null) {
+                long now = System.currentTimeMillis();
+                if (now - p.createdAt > maxLifetimeMillis)
+                    destroy(p);
+                else if (now - p.lastUsed > VALIDATION_BYPASS_MILLIS && !p.connection.isValid(validationTimeoutSeconds))
+                    destroy(p);
+                else
+                    return p;
+            } // end while
+            return create();
+        } catch (InterruptedException e) {
+            permits.release();
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection");
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        } // end try
+    }// end borrow
+
+    /**
+     * Opens the first connection on a background thread and runs the warmer
+     * on it, so the caller goes on while the connection is set up. Borrowers
+     * wait for that connection rather than open one of their own; if it
+     * could not be opened they try again and see the error themselves.
+     *
+     * @param warmer what to prepare on the connection, e.g. the statements
+     */
+    public void warmUp(Warmer warmer) {
+        CountDownLatch latch = new CountDownLatch(1);
+        warming = latch;
+        Thread t = new Thread(() -> {
+            try {
+                Pooled p = create();
+                try {
+                    warmer.warm(p);
+                } catch (SQLException e) {
+                    // what is missing is prepared on first use.
+                } // end try
+                p.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(p);
+            } catch (SQLException e) {
+                // reported to the first borrower, which opens a connection itself.
+            } finally {
+                warming = null;
+                latch.countDown();
+            } // end try
+        }, "pool-warm-up");
+        t.setDaemon(true);
+        t.start();
+    }// end warmUp
+
+    /**
+     * Gives a borrowed connection back to the pool. An open transaction is
+     * rolled back; a broken connection is closed.
+     *
+     * @param p the connection returned by borrow()
+     */
+    public void release(Pooled p) {
+        try {
+            if (p.connection.isClosed()) {
+                destroy(p);
+                return;
+            } // end if
+            if (!p.connection.getAutoCommit()) {
+                p.connection.rollback();
+                p.connection.setAutoCommit(true);
+            } // end if
+            if (closed || System.currentTimeMillis() - p.createdAt > maxLifetimeMillis) {
+                destroy(p);
+            } else {
+                p.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(p);
+            } // end if
+        } catch (SQLException e) {
+            destroy(p);
+        } finally {
+            permits.release();
+        } // end try
+    }// end release
+
+    private Pooled create() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, info);
+        Pooled p = new Pooled(this, countRoundTrips ? RoundTrips.wrap(connection) : connection, statementCacheSize);
+        open.incrementAndGet();
+        created.incrementAndGet();
+        return p;
+    }// end create
+
+    private void destroy(Pooled p) {
+        p.statements.close();
+        try {
+            p.connection.close();
+        } catch (SQLException e) {
+            // ignored.
+        } // end try
+        open.decrementAndGet();
+        destroyed.incrementAndGet();
+    }// end destroy
+
+    // closes connections that sat idle too long or outlived maxLifetime
+    private void evict() {
+        long now = System.currentTimeMillis();
+        for (Pooled p : idle) {
+            if ((now - p.lastUsed > idleTimeoutMillis || now - p.createdAt > maxLifetimeMillis) && idle.remove(p))
+                destroy(p);
+        } // end for
+    }// end evict
+
+    /**
+     * Closes the idle connections and stops lending new ones. Connections still
+     * borrowed are closed when they are released.
+     */
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        Pooled p;
+        while ((p = idle.pollFirst()) != null)
+            destroy(p);
+    }// end close
+
+    /**
+     * Returns a one-line summary of the pool counters.
+     *
+     * @return the metrics
+     */
+    public String metrics() {
+        long n = borrows.get();
+        return String.format(
+                "pool size=%d open=%d idle=%d borrows=%d avgWait=%.3fms maxWait=%.3fms timeouts=%d created=%d closed=%d",
+                size, open.get(), idle.size(), n, n == 0 ? 0.0 : waitNanos.get() / 1e6 / n, maxWaitNanos.get() / 1e6,
+                timeouts.get(), created.get(), destroyed.get());
+    }// end metrics
+
+    public long totalWaitNanos() {
+        return waitNanos.get();
+    }// end totalWaitNanos
+
+    public long timeouts() {
+        return timeouts.get();
+    }// end timeouts
+
+    public int size() {
+        return size;
+    }// end size
+
+    // ---------------------------------------------------------------- DataSource
+
+    /**
+     * Borrows a connection whose close() gives it back to the pool.
+     */
+    public Connection getConnection() throws SQLException {
+        Pooled p = borrow();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    private boolean released = false;
+
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        switch (method.getName()) {
+                        case "close":
+                            if (!released) {
+                                released = true;
+                                release(p);
+                            } // end if
+                            return null;
+                        case "isClosed":
+                            return released || p.connection.isClosed();
+                        default:
+                            if (released)
+                                throw new SQLException("The connection was returned to the pool");
+                            try {
+                                return method.invoke(p.connection, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            } // end try
+                        }// end switch
+                    }
+                });
+    }// end getConnection
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool only lends connections of its own user");
+    }// end getConnection
+
+    public PrintWriter getLogWriter() {
+        return null;
+    }// end getLogWriter
+
+    public void setLogWriter(PrintWriter out) {
+        // not used.
+    }// end setLogWriter
+
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }// end setLoginTimeout
+
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }// end getLoginTimeout
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }// end getParentLogger
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }// end unwrap
+
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }// end isWrapperFor
+
+}// end ConnectionPool
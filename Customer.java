@@ -0,0 +1,29 @@
+import java.sql.Types;
+
+/**
+ * A row of Customer. The date of birth is an epoch day, see Dates.
+ *
+ * Queries mapped by MAPPER select customerid, fname, lname, address, phno,
+ * dob - DATE '1970-01-01' and gender, in this order.
+ */
+public record Customer(int customerId, String fname, String lname, String address, long phone, int dob,
+        String gender) {
+
+    public static final String[] COLUMNS = { "customerid", "fname", "lname", "address", "phno", "dob", "gender" };
+    public static final int[] TYPES = { Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.BIGINT,
+            Types.DATE, Types.VARCHAR };
+
+    public static final RowMapper<Customer> MAPPER = rs -> new Customer(rs.getInt(1), rs.getString(2),
+            rs.getString(3), rs.getString(4), rs.getLong(5), rs.getInt(6), rs.getString(7));
+
+    /**
+     * Returns the row as the text Postgres prints for it, in COLUMNS order.
+     *
+     * @return the values
+     */
+    public String[] values() {
+        return new String[] { String.valueOf(customerId), fname, lname, address, String.valueOf(phone),
+                Dates.iso(dob), gender };
+    }// end values
+
+}// end Customer
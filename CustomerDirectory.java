@@ -0,0 +1,411 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory directory of the customers by name, so the operations that take
+ * a customer's first and last name find the customerid without a query.
+ *
+ * The directory is loaded from Customer on first use, learns the customers
+ * added by this client and is reloaded once it is older than
+ * dbproject.customers.maxAge seconds. A name the directory does not know is
+ * looked up in the database and remembered, so a customer added by another
+ * client is found before the next reload.
+ *
+ * Names are matched exactly, as the queries did. Several customers may share
+ * a name: with dbproject.customers.ambiguous=first (the default) the lowest
+ * customerid is taken, with =reject the operation is refused.
+ *
+ * Holding more than dbproject.customers.maxNames names, the directory keeps
+ * only the names looked up, at most that many, and type-ahead search falls
+ * back to the database.
+ */
+public class CustomerDirectory {
+
+    /**
+     * The id returned for a name no customer has.
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * The id returned for a name several customers share, when they are
+     * rejected.
+     */
+    public static final int AMBIGUOUS = -2;
+
+    private static final String[] COLUMNS = { "customerid", "fname", "lname" };
+    private static final int[] TYPES = { java.sql.Types.INTEGER, java.sql.Types.VARCHAR, java.sql.Types.VARCHAR };
+
+    /**
+     * A radix tree of the lower-cased "fname lname" of every customer, for
+     * prefix search. Each node ends the names spelled by the labels above it;
+     * children are sorted by the first character of their label, so a walk
+     * visits the names in order. Not thread-safe.
+     */
+    static final class Trie {
+        private static final Node[] LEAF = new Node[0];
+
+        static final class Node {
+            String label;
+            Node[] children = LEAF;
+            // the exact keys of the names ending here
+            String[] keys = null;
+
+            Node(String label) {
+                this.label = label;
+            }
+
+            int find(char c) {
+                int lo = 0, hi = children.length - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    char m = children[mid].label.charAt(0);
+                    if (m < c)
+                        lo = mid + 1;
+                    else if (m > c)
+                        hi = mid - 1;
+                    else
+                        return mid;
+                } // end while
+                return -lo - 1;
+            }
+
+            void add(String key) {
+                if (keys == null) {
+                    keys = new String[] { key };
+                    return;
+                } // end if
+                int at = Arrays.binarySearch(keys, key);
+                if (at >= 0)
+                    return;
+                at = -at - 1;
+                String[] grown = new String[keys.length + 1];
+                System.arraycopy(keys, 0, grown, 0, at);
+                grown[at] = key;
+                System.arraycopy(keys, at, grown, at + 1, keys.length - at);
+                keys = grown;
+            }
+        }// end Node
+
+        private final Node root = new Node("");
+
+        void insert(String name, String key) {
+            Node node = root;
+            int i = 0;
+            while (i < name.length()) {
+                int c = node.find(name.charAt(i));
+                if (c < 0) {
+                    Node leaf = new Node(name.substring(i));
+                    leaf.add(key);
+                    c = -c - 1;
+                    Node[] grown = new Node[node.children.length + 1];
+                    System.arraycopy(node.children, 0, grown, 0, c);
+                    grown[c] = leaf;
+                    System.arraycopy(node.children, c, grown, c + 1, node.children.length - c);
+                    node.children = grown;
+                    return;
+                } // end if
+                Node child = node.children[c];
+                int common = common(child.label, name, i);
+                if (common < child.label.length()) {
+                    // the name leaves the label midway: split the label there
+                    Node split = new Node(child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    split.children = new Node[] { child };
+                    node.children[c] = split;
+                    child = split;
+                } // end if
+                node = child;
+                i += common;
+            } // end while
+            node.add(key);
+        }
+
+        // the exact keys of the names starting with prefix, in name order
+        void collect(String prefix, int limit, List<String> into) {
+            Node node = root;
+            int i = 0;
+            while (i < prefix.length()) {
+                int c = node.find(prefix.charAt(i));
+                if (c < 0)
+                    return;
+                Node child = node.children[c];
+                int common = common(child.label, prefix, i);
+                if (i + common < prefix.length() && common < child.label.length())
+                    return;
+                node = child;
+                i += common;
+            } // end while
+            walk(node, limit, into);
+        }
+
+        private static void walk(Node node, int limit, List<String> into) {
+            if (node.keys != null) {
+                for (String key : node.keys) {
+                    if (into.size() >= limit)
+                        return;
+                    into.add(key);
+                } // end for
+            } // end if
+            for (Node child : node.children) {
+                if (into.size() >= limit)
+                    return;
+                walk(child, limit, into);
+            } // end for
+        }
+
+        private static int common(String label, String name, int from) {
+            int n = Math.min(label.length(), name.length() - from);
+            int i = 0;
+            while (i < n && label.charAt(i) == name.charAt(from + i))
+                i++;
+            return i;
+        }
+    }// end Trie
+
+    // one load of the directory
+    static final class Directory {
+        // exact key to the customerids with that name, ascending
+        final ConcurrentHashMap<String, int[]> names;
+        // null when the directory holds only the names looked up
+        final Trie trie;
+
+        Directory(ConcurrentHashMap<String, int[]> names, Trie trie) {
+            this.names = names;
+            this.trie = trie;
+        }
+    }// end Directory
+
+    private final long maxAgeMillis = Long.getLong("dbproject.customers.maxAge", 300) * 1000;
+    private final int maxNames = Integer.getInteger("dbproject.customers.maxNames", 1000000);
+    private final boolean rejectAmbiguous = "reject".equals(System.getProperty("dbproject.customers.ambiguous"));
+    private volatile Directory directory = null;
+    private volatile long loadedAt = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder ambiguous = new LongAdder();
+
+    /**
+     * Returns the customerid of a name.
+     *
+     * @param esql  the client to load the directory with
+     * @param fname the first name
+     * @param lname the last name
+     * @return the customerid, UNKNOWN, or AMBIGUOUS when several customers
+     *         have the name and they are rejected
+     * @throws java.sql.SQLException when the directory could not be loaded
+     */
+    public int id(DBProject esql, String fname, String lname) throws SQLException {
+        int[] ids = ids(esql, fname, lname);
+        if (ids.length == 0)
+            return UNKNOWN;
+        if (ids.length > 1) {
+            ambiguous.increment();
+            if (rejectAmbiguous)
+                return AMBIGUOUS;
+        } // end if
+        return ids[0];
+    }// end id
+
+    /**
+     * Returns the customerids of every customer with a name.
+     *
+     * @param esql  the client to load the directory with
+     * @param fname the first name
+     * @param lname the last name
+     * @return the customerids, ascending, empty when the name is unknown
+     * @throws java.sql.SQLException when the directory could not be loaded
+     */
+    public int[] ids(DBProject esql, String fname, String lname) throws SQLException {
+        Directory d = directory(esql);
+        String key = key(fname, lname);
+        int[] ids = d.names.get(key);
+        if (ids != null) {
+            hits.increment();
+            return ids;
+        } // end if
+
+        misses.increment();
+        ids = fetch(esql, fname, lname);
+        for (int id : ids)
+            add(d, id, fname, lname);
+        return ids;
+    }// end ids
+
+    /**
+     * Records a customer added by this client.
+     *
+     * @param id    the customerid
+     * @param fname the first name
+     * @param lname the last name
+     */
+    public void added(int id, String fname, String lname) {
+        Directory d = directory;
+        if (d != null)
+            add(d, id, fname, lname);
+    }// end added
+
+    /**
+     * Writes the customers whose "fname lname" starts with a prefix, ignoring
+     * case, ordered by name.
+     *
+     * @param esql   the connected client
+     * @param prefix the start of the name
+     * @param limit  the most customers to write
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the directory could not be loaded
+     */
+    public int complete(DBProject esql, String prefix, int limit) throws SQLException {
+        Directory d = directory(esql);
+        if (d.trie == null) {
+            String pattern = prefix.toLowerCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_")
+                    + '%';
+            return esql.executeQuery(Sql.CUSTOMERS_BY_PREFIX, pattern, limit);
+        } // end if
+
+        List<String> keys = new ArrayList<>();
+        synchronized (d.trie) {
+            d.trie.collect(prefix.toLowerCase(), limit, keys);
+        } // end synchronized
+        List<String[]> rows = new ArrayList<>();
+        for (String key : keys) {
+            int split = key.indexOf('\u0000');
+            int[] ids = d.names.get(key);
+            for (int i = 0; ids != null && i < ids.length && rows.size() < limit; i++)
+                rows.add(new String[] { String.valueOf(ids[i]), key.substring(0, split), key.substring(split + 1) });
+        } // end for
+        return esql.output().write(COLUMNS, TYPES, rows);
+    }// end complete
+
+    /**
+     * Drops the directory so the next lookup reloads it.
+     */
+    public void invalidate() {
+        directory = null;
+    }// end invalidate
+
+    /**
+     * Returns the lookup counters.
+     *
+     * @return one line of text
+     */
+    public String stats() {
+        Directory d = directory;
+        return String.format("customers: %d names%s, %d hits, %d misses, %d ambiguous",
+                d == null ? 0 : d.names.size(), d != null && d.trie == null ? " (partial)" : "", hits.sum(),
+                misses.sum(), ambiguous.sum());
+    }// end stats
+
+    static String key(String fname, String lname) {
+        return fname.trim() + '\u0000' + lname.trim();
+    }// end key
+
+    private void add(Directory d, int id, String fname, String lname) {
+        String key = key(fname, lname);
+        if (d.trie == null && !d.names.containsKey(key) && d.names.size() >= maxNames) {
+            // partial: make room by forgetting any one name
+            for (String old : d.names.keySet()) {
+                if (d.names.remove(old) != null)
+                    break;
+            } // end for
+        } // end if
+        int[] before = d.names.get(key);
+        d.names.merge(key, new int[] { id }, CustomerDirectory::union);
+        if (before == null && d.trie != null) {
+            synchronized (d.trie) {
+                d.trie.insert(fname.trim().toLowerCase() + ' ' + lname.trim().toLowerCase(), key);
+            } // end synchronized
+        } // end if
+    }// end add
+
+    // the sorted union of two ascending id lists
+    private static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            int next = j == b.length || (i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+            if (n == 0 || out[n - 1] != next)
+                out[n++] = next;
+        } // end while
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }// end union
+
+    private static int[] fetch(DBProject esql, String fname, String lname) throws SQLException {
+        ConnectionPool.Pooled p = esql.acquire();
+        try {
+            PreparedStatement stmt = p.statements.get(Sql.CUSTOMER_ID);
+            DBProject.bind(stmt, fname, lname);
+            int[] ids = new int[0];
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ids = Arrays.copyOf(ids, ids.length + 1);
+                    ids[ids.length - 1] = rs.getInt(1);
+                } // end while
+            } // end try
+            return ids;
+        } finally {
+            esql.release(p);
+        } // end try
+    }// end fetch
+
+    private Directory directory(DBProject esql) throws SQLException {
+        Directory current = directory;
+        if (current != null && System.currentTimeMillis() - loadedAt < maxAgeMillis)
+            return current;
+
+        synchronized (this) {
+            if (directory != null && System.currentTimeMillis() - loadedAt < maxAgeMillis)
+                return directory;
+            current = load(esql);
+            loadedAt = System.currentTimeMillis();
+            directory = current;
+            return current;
+        } // end synchronized
+    }// end directory
+
+    private Directory load(DBProject esql) throws SQLException {
+        HashMap<String, int[]> loaded = new HashMap<>();
+        ConnectionPool.Pooled p = esql.acquire();
+        try {
+            // Postgres only honours the fetch size inside a transaction; a pinned connection is in one already
+            if (p.connection.getAutoCommit())
+                p.connection.setAutoCommit(false);
+            PreparedStatement stmt = p.statements.get(Sql.CUSTOMERS);
+            stmt.setFetchSize(10000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String key = key(rs.getString(2), rs.getString(3));
+                    int[] ids = loaded.get(key);
+                    if (ids == null && loaded.size() >= maxNames)
+                        return new Directory(new ConcurrentHashMap<>(), null);
+                    if (ids == null) {
+                        ids = new int[] { rs.getInt(1) };
+                    } else {
+                        ids = Arrays.copyOf(ids, ids.length + 1);
+                        ids[ids.length - 1] = rs.getInt(1);
+                    } // end if
+                    loaded.put(key, ids);
+                } // end while
+            } // end try
+        } finally {
+            // the pool ends the read-only transaction and turns autocommit back on
+            esql.release(p);
+        } // end try
+
+        Trie trie = new Trie();
+        for (Map.Entry<String, int[]> e : loaded.entrySet()) {
+            String key = e.getKey();
+            int split = key.indexOf('\u0000');
+            trie.insert(key.substring(0, split).toLowerCase() + ' ' + key.substring(split + 1).toLowerCase(), key);
+        } // end for
+        return new Directory(new ConcurrentHashMap<>(loaded), trie);
+    }// end load
+
+}// end CustomerDirectory
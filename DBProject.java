@@ -10,20 +10,23 @@
  *
  */
  
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.util.Date;
-import java.util.Calendar;
-import java.text.SimpleDateFormat;
-import java.text.DateFormat;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
  
  
 /**
@@ -33,8 +36,53 @@ import java.text.DateFormat;
  */
 public class DBProject {
  
-    // reference to physical database connection.
-    private Connection _connection = null;
+    // pool of physical database connections, each with its prepared statements.
+    private ConnectionPool _pool = null;
+
+    // connection pinned to the current thread between begin() and end()
+    private final ThreadLocal<ConnectionPool.Pooled> pinned = new ThreadLocal<>();
+
+    // cache tags the pinned transaction wrote to, invalidated again once it commits
+    private final ThreadLocal<List<String>> uncommitted = ThreadLocal.withInitial(ArrayList::new);
+
+    // hands out the primary keys for the insert paths
+    private IdAllocator ids = null;
+
+    // latency, rows and errors of every database call
+    private Metrics metrics = null;
+
+    // read replicas for the queries, null unless dbproject.replicas
+    private Replicas replicas = null;
+
+    // background writer of the inserts nobody waits for, null unless dbproject.writeBehind
+    private WriteBehind writeBehind = null;
+
+    // per-hotel, per-day room occupancy for the availability questions
+    private final AvailabilityIndex availability = new AvailabilityIndex();
+
+    // customerids by name for the operations that take a customer's name
+    private final CustomerDirectory customers = new CustomerDirectory();
+
+    // results of the report operations
+    private final QueryCache cache = new QueryCache();
+
+    // leaderboards of the top-k reports
+    private final TopK topK = new TopK();
+
+    // columnar copy of Booking for the date-range reports, null unless dbproject.analytics
+    private final BookingColumns analytics = Boolean.getBoolean("dbproject.analytics") ? new BookingColumns() : null;
+
+    // room-night claims of bookRoom
+    private final BookingEngine bookings = new BookingEngine();
+
+    // buffered standard out in the dbproject.format layout
+    private final ResultSink output = ResultSink.stdout();
+
+    // sink of the current thread when it does not write to standard out, see redirect()
+    private final ThreadLocal<ResultSink> redirected = new ThreadLocal<>();
+
+    // rows fetched per round trip by query cursors, 0 reads the whole result at once
+    private final int fetchSize = Integer.getInteger("dbproject.fetchSize", 1000);
  
     // handling the keyboard inputs through a BufferedReader
     // This variable can be global for convenience.
@@ -53,17 +101,38 @@ public class DBProject {
  
         System.out.print("Connecting to database...");
         try {
-            // constructs the connection URL
-            String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+            // constructs the connection URL, string parameters are typed by the server
+            String timeout = System.getProperty("dbproject.connectTimeout");
+            String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?stringtype=unspecified"
+                    + (timeout == null ? "" : "&connectTimeout=" + timeout);
             System.out.println("Connection URL: " + url + "\n");
  
-            // obtain a physical connection
-            this._connection = DriverManager.getConnection(url, user, passwd);
+            this._pool = new ConnectionPool(url, user, passwd);
+            boolean lazy = Boolean.getBoolean("dbproject.lazyConnect");
+            this.metrics = new Metrics(this._pool, !lazy);
+            if (lazy) {
+                // the first statement waits for the connection the background thread opens
+                long start = System.nanoTime();
+                this._pool.warmUp(p -> {
+                    for (Sql sql : Sql.values())
+                        p.statements.get(sql);
+                    Startup.connected(System.nanoTime() - start);
+                    this.metrics.publish();
+                });
+            } else {
+                // open the first physical connection now so a bad URL is reported at startup
+                this._pool.release(this._pool.borrow());
+            } // end if
+            this.replicas = Replicas.open(dbname, user, passwd);
+            this.ids = IdAllocator.create(this._pool);
+            if (Boolean.getBoolean("dbproject.writeBehind"))
+                this.writeBehind = WriteBehind.open(this);
             System.out.println("Done");
-        } catch (Exception e) {
+        } catch (SQLException e) {
             System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
             System.out.println("Make sure you started postgres on this machine");
-            System.exit(-1);
+            this._pool.close();
+            throw e;
         } // end catch
     }// end DBProject
  
@@ -75,15 +144,106 @@ public class DBProject {
      * @throws java.sql.SQLException when update failed
      */
     public void executeUpdate(String sql) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement();
- 
-        // issues the update instruction
-        stmt.executeUpdate(sql);
- 
-        // close the instruction
-        stmt.close();
+        long start = System.nanoTime();
+        try {
+            ConnectionPool.Pooled p = acquire();
+            try {
+                // ad-hoc SQL is prepared once and kept while it is recently used
+                PreparedStatement stmt = p.statements.get(sql);
+ 
+                // issues the update instruction
+                this.metrics.ok("adhoc", start, stmt.executeUpdate(), sql);
+                wrote();
+            } finally {
+                release(p);
+            } // end try
+        } catch (SQLException e) {
+            throw this.metrics.failed("adhoc", start, e, sql);
+        } // end try
+    }// end executeUpdate
+
+    /**
+     * Method to execute one of the named update statements with the given
+     * parameters.
+     *
+     * @param sql    the named statement
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows changed
+     * @throws java.sql.SQLException when update failed
+     */
+    public int executeUpdate(Sql sql, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ConnectionPool.Pooled p = acquire();
+            try {
+                PreparedStatement stmt = p.statements.get(sql);
+                bind(stmt, params);
+                int rows = stmt.executeUpdate();
+                wrote();
+                return this.metrics.ok(sql.name(), start, rows, params);
+            } finally {
+                release(p);
+            } // end try
+        } catch (SQLException e) {
+            throw this.metrics.failed(sql.name(), start, e, params);
+        } // end try
     }// end executeUpdate
+
+    /**
+     * Runs one of the inserts whose result nobody waits for. With
+     * dbproject.writeBehind it is queued for the background writer, unless
+     * the thread is in a transaction that could roll it back.
+     *
+     * @param sql    the named statement
+     * @param params the values bound to the placeholders, in order
+     * @throws java.sql.SQLException when the insert failed, or could not be queued
+     */
+    public void write(Sql sql, Object... params) throws SQLException {
+        if (this.writeBehind != null && !inTransaction()) {
+            this.writeBehind.enqueue(sql, params);
+            wrote();
+            return;
+        } // end if
+        executeUpdate(sql, params);
+        written(sql, params);
+    }// end write
+
+    /**
+     * Sends the reads of the current session to the primary for a while, so
+     * they see what it just wrote.
+     */
+    void wrote() {
+        if (this.replicas != null)
+            this.replicas.wrote();
+    }// end wrote
+
+    /**
+     * Updates the in-memory structures after a write of write() is done; for
+     * a queued write, once the writer has committed it.
+     *
+     * @param sql    the named statement
+     * @param params its values
+     */
+    void written(Sql sql, Object[] params) {
+        if (sql == Sql.ADD_REPAIR) {
+            invalidate("repair", "repair#" + params[1]);
+            this.topK.repaired((Integer) params[3]);
+        } // end if
+    }// end written
+
+    /**
+     * Drops the cached results read from tables this thread wrote to. Inside
+     * a transaction the tags are dropped again when it commits: a reader on
+     * another connection may have cached the old rows in between.
+     *
+     * @param tags the tables, or table#hotel, written to
+     */
+    void invalidate(String... tags) {
+        for (String tag : tags)
+            this.cache.invalidate(tag);
+        if (inTransaction())
+            this.uncommitted.get().addAll(Arrays.asList(tags));
+    }// end invalidate
  
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT). This method
@@ -94,50 +254,614 @@ public class DBProject {
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQuery(String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement();
- 
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery(query);
- 
-        /*
-         ** obtains the metadata object for the returned result set. The metadata
-         ** contains row and column info.
-         */
-        ResultSetMetaData rsmd = rs.getMetaData();
-        int numCol = rsmd.getColumnCount();
-        int rowCount = 0;
- 
-        // iterates through the result set and output them to standard out.
-        boolean outputHeader = true;
-        while (rs.next()) {
-            if (outputHeader) {
-                for (int i = 1; i <= numCol; i++) {
-                    System.out.print(rsmd.getColumnName(i) + "\t");
-                }
-                System.out.println();
-                outputHeader = false;
-            }
-            for (int i = 1; i <= numCol; ++i)
-                System.out.print(rs.getString(i) + "\t");
-            System.out.println();
-            ++rowCount;
-        } // end while
-        stmt.close();
-        return rowCount;
-    }// end executeQuery
+        long start = System.nanoTime();
+        try {
+            ConnectionPool.Pooled p = acquire();
+            try {
+                // ad-hoc SQL is prepared once and kept while it is recently used
+                PreparedStatement stmt = p.statements.get(query);
  
+                // issues the query instruction and streams the rows to standard out
+                return this.metrics.ok("adhoc", start, stream(stmt, output(), null, false), query);
+            } finally {
+                release(p);
+            } // end try
+        } catch (SQLException e) {
+            throw this.metrics.failed("adhoc", start, e, query);
+        } // end try
+    }// end executeQuery
+
     /**
-     * Method to close the physical connection if it is open.
+     * Method to execute one of the named queries with the given parameters and
+     * output the results to standard out.
+     *
+     * @param sql    the named query
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
      */
-    public void cleanup() {
+    public int executeQuery(Sql sql, Object... params) throws SQLException {
+        return streamQuery(sql, output(), params);
+    }// end executeQuery
+
+    /**
+     * Method to execute one of the named queries and write the results to the
+     * given sink as they are fetched.
+     *
+     * @param sql    the named query
+     * @param sink   where the rows are written
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int streamQuery(Sql sql, ResultSink sink, Object... params) throws SQLException {
+        long start = System.nanoTime();
         try {
-            if (this._connection != null) {
-                this._connection.close();
-            } // end if
+            ConnectionPool.Pooled p = acquire(sql);
+            boolean[] answered = { false };
+            try {
+                PreparedStatement stmt = p.statements.get(sql);
+                bind(stmt, params);
+                int rows = stream(stmt, sink, answered, sql.bounded);
+                if (p.pool != this._pool)
+                    this.replicas.done(p, System.nanoTime() - start);
+                return this.metrics.ok(sql.name(), start, rows, params);
+            } catch (SQLException e) {
+                // rows already written cannot be taken back
+                if (p.pool == this._pool || answered[0] || !this.replicas.failed(p, e))
+                    throw e;
+            } finally {
+                release(p);
+            } // end try
+
+            // the replica went away before answering
+            p = acquire();
+            try {
+                PreparedStatement stmt = p.statements.get(sql);
+                bind(stmt, params);
+                return this.metrics.ok(sql.name(), start, stream(stmt, sink, null, sql.bounded), params);
+            } finally {
+                release(p);
+            } // end try
+        } catch (SQLException e) {
+            throw this.metrics.failed(sql.name(), start, e, params);
+        } // end try
+    }// end streamQuery
+
+    /**
+     * Method to execute one of the named queries and return the integer in the
+     * first column of its first row.
+     *
+     * @param sql          the named query
+     * @param defaultValue the value returned when there is no row
+     * @param params       the values bound to the placeholders, in order
+     * @return the value read
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int queryInt(Sql sql, int defaultValue, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ConnectionPool.Pooled p = acquire(sql);
+            try {
+                return queryInt(p, sql, start, defaultValue, params);
+            } catch (SQLException e) {
+                if (p.pool == this._pool || !this.replicas.failed(p, e))
+                    throw e;
+            } finally {
+                release(p);
+            } // end try
+
+            // the replica went away before answering
+            p = acquire();
+            try {
+                return queryInt(p, sql, start, defaultValue, params);
+            } finally {
+                release(p);
+            } // end try
         } catch (SQLException e) {
-            // ignored.
+            throw this.metrics.failed(sql.name(), start, e, params);
         } // end try
+    }// end queryInt
+
+    /**
+     * Method to execute one of the named queries and return its rows as
+     * objects.
+     *
+     * @param <T>    the row type
+     * @param sql    the named query
+     * @param mapper reads one row
+     * @param params the values bound to the placeholders, in order
+     * @return the rows
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public <T> List<T> queryList(Sql sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ConnectionPool.Pooled p = acquire(sql);
+            try {
+                return queryList(p, sql, start, mapper, params);
+            } catch (SQLException e) {
+                if (p.pool == this._pool || !this.replicas.failed(p, e))
+                    throw e;
+            } finally {
+                release(p);
+            } // end try
+
+            // the replica went away before answering
+            p = acquire();
+            try {
+                return queryList(p, sql, start, mapper, params);
+            } finally {
+                release(p);
+            } // end try
+        } catch (SQLException e) {
+            throw this.metrics.failed(sql.name(), start, e, params);
+        } // end try
+    }// end queryList
+
+    /**
+     * Method to execute one of the named queries and return its first row as
+     * an object.
+     *
+     * @param <T>    the row type
+     * @param sql    the named query
+     * @param mapper reads one row
+     * @param params the values bound to the placeholders, in order
+     * @return the first row, or null when there is none
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public <T> T queryOne(Sql sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        List<T> rows = queryList(sql, mapper, params);
+        return rows.isEmpty() ? null : rows.get(0);
+    }// end queryOne
+
+    /**
+     * Reads a customer.
+     *
+     * @param customerid the id
+     * @return the customer, or null
+     * @throws java.sql.SQLException when the query failed
+     */
+    public Customer customer(int customerid) throws SQLException {
+        return queryOne(Sql.CUSTOMER, Customer.MAPPER, customerid);
+    }// end customer
+
+    /**
+     * Reads the rooms of a hotel, by number.
+     *
+     * @param hotelID the hotel
+     * @return the rooms
+     * @throws java.sql.SQLException when the query failed
+     */
+    public List<Room> rooms(int hotelID) throws SQLException {
+        return queryList(Sql.ROOMS, Room.MAPPER, hotelID);
+    }// end rooms
+
+    /**
+     * Reads a maintenance company.
+     *
+     * @param cmpID the id
+     * @return the company, or null
+     * @throws java.sql.SQLException when the query failed
+     */
+    public MaintenanceCompany company(int cmpID) throws SQLException {
+        return queryOne(Sql.MAINTENANCE_COMPANY, MaintenanceCompany.MAPPER, cmpID);
+    }// end company
+
+    /**
+     * Reads a repair request.
+     *
+     * @param reqID the id
+     * @return the request, or null
+     * @throws java.sql.SQLException when the query failed
+     */
+    public Request request(int reqID) throws SQLException {
+        return queryOne(Sql.REQUEST, Request.MAPPER, reqID);
+    }// end request
+
+    private <T> List<T> queryList(ConnectionPool.Pooled p, Sql sql, long start, RowMapper<T> mapper,
+            Object... params) throws SQLException {
+        PreparedStatement stmt = p.statements.get(sql);
+        bind(stmt, params);
+        List<T> rows = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next())
+                rows.add(mapper.map(rs));
+        } // end try
+        if (p.pool != this._pool)
+            this.replicas.done(p, System.nanoTime() - start);
+        this.metrics.ok(sql.name(), start, rows.size(), params);
+        return rows;
+    }// end queryList
+
+    private int queryInt(ConnectionPool.Pooled p, Sql sql, long start, int defaultValue, Object... params)
+            throws SQLException {
+        PreparedStatement stmt = p.statements.get(sql);
+        bind(stmt, params);
+        try (ResultSet rs = stmt.executeQuery()) {
+            boolean found = rs.next();
+            int value = found ? rs.getInt(1) : defaultValue;
+            if (p.pool != this._pool)
+                this.replicas.done(p, System.nanoTime() - start);
+            this.metrics.ok(sql.name(), start, found ? 1 : 0, params);
+            return value;
+        } // end try
+    }// end queryInt
+
+    /**
+     * Binds the parameters of a prepared statement by their Java type. Strings
+     * are sent untyped so the server reads them as the column's type.
+     *
+     * @param stmt   the statement
+     * @param params the values, in placeholder order
+     * @throws java.sql.SQLException when a value could not be bound
+     */
+    static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            Object value = params[i];
+            if (value instanceof Integer)
+                stmt.setInt(i + 1, (Integer) value);
+            else if (value instanceof Long)
+                stmt.setLong(i + 1, (Long) value);
+            else if (value instanceof Double)
+                stmt.setDouble(i + 1, (Double) value);
+            else if (value instanceof BigDecimal)
+                stmt.setBigDecimal(i + 1, (BigDecimal) value);
+            else if (value instanceof Boolean)
+                stmt.setBoolean(i + 1, (Boolean) value);
+            else
+                stmt.setObject(i + 1, value);
+        } // end for
+    }// end bind
+
+    /**
+     * Method to execute one of the named report queries through the query
+     * cache and output the results to standard out.
+     *
+     * @param sql    the named query
+     * @param tags   the tables, or table#hotel, the result depends on
+     * @param params the values bound to the placeholders, in order
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int cachedQuery(Sql sql, String[] tags, Object... params) throws SQLException {
+        // a replica may not have the latest writes yet, which must not be cached for everyone
+        if (sql.read && this.replicas != null && !inTransaction() && this.replicas.unsettled())
+            return streamQuery(sql, output(), params);
+        String key = QueryCache.key(sql, params);
+        QueryCache.Result result = this.cache.get(key);
+        if (result == null) {
+            long generation = this.cache.generation();
+            QueryCache.Recorder recorder = new QueryCache.Recorder(this.cache.maxRows, output());
+            int rows = streamQuery(sql, recorder, params);
+            result = this.cache.put(key, recorder, generation, tags);
+            if (result == null) // too large to keep, already written by the recorder
+                return rows;
+        } // end if
+        return output().write(result.columns, result.types, result.rows);
+    }// end cachedQuery
+
+    /**
+     * Writes a single named value as a one-row result.
+     *
+     * @param column the column name
+     * @param value  the value
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the sink failed
+     */
+    public int writeValue(String column, long value) throws SQLException {
+        return output().write(new String[] { column }, new int[] { Types.BIGINT },
+                Collections.singletonList(new String[] { String.valueOf(value) }));
+    }// end writeValue
+
+    /**
+     * Returns where the query results of the current thread are written.
+     *
+     * @return the redirected sink, or standard out
+     */
+    public ResultSink output() {
+        ResultSink sink = this.redirected.get();
+        return sink != null ? sink : this.output;
+    }// end output
+
+    /**
+     * Sends the query results of the current thread to a sink, or back to
+     * standard out when it is null.
+     *
+     * @param sink the sink
+     */
+    public void redirect(ResultSink sink) {
+        if (sink == null)
+            this.redirected.remove();
+        else
+            this.redirected.set(sink);
+    }// end redirect
+
+    /**
+     * Runs a query through a forward-only cursor and writes its rows to a sink
+     * as they arrive. Postgres only fetches in chunks of fetchSize rows inside
+     * a transaction, so autocommit is turned off around the query unless the
+     * connection is already in one. That costs a commit, one more round trip,
+     * so a bounded query is read whole in autocommit instead.
+     *
+     * @param stmt     the bound query
+     * @param sink     where the rows are written
+     * @param answered set to true once the server answered, may be null
+     * @param bounded  whether the query returns one row or a few
+     * @return the number of rows returned
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    private int stream(PreparedStatement stmt, ResultSink sink, boolean[] answered, boolean bounded)
+            throws SQLException {
+        Connection conn = stmt.getConnection();
+        boolean cursor = this.fetchSize > 0 && !bounded && conn.getAutoCommit();
+        if (cursor)
+            conn.setAutoCommit(false);
+        try {
+            // the statement is cached, so a bounded query clears the fetch size of an earlier cursor
+            stmt.setFetchSize(bounded ? 0 : this.fetchSize);
+            ResultSet rs = stmt.executeQuery();
+            if (answered != null)
+                answered[0] = true;
+            int rowCount = sink.write(rs);
+            if (cursor)
+                conn.commit();
+            return rowCount;
+        } catch (SQLException e) {
+            if (cursor)
+                conn.rollback();
+            throw e;
+        } finally {
+            if (cursor)
+                conn.setAutoCommit(true);
+        } // end try
+    }// end stream
+ 
+    /**
+     * Returns the connection pinned to this thread, or borrows one from the
+     * pool. Every acquire() must be paired with a release().
+     *
+     * @return the connection to run a statement on
+     * @throws java.sql.SQLException when no connection could be borrowed
+     */
+    ConnectionPool.Pooled acquire() throws SQLException {
+        ConnectionPool.Pooled p = this.pinned.get();
+        return p != null ? p : this._pool.borrow();
+    }// end acquire
+
+    /**
+     * Returns the connection to run a named statement on: a replica's for a
+     * read outside a transaction when there are replicas and the session has
+     * not just written, otherwise as acquire().
+     *
+     * @param sql the statement
+     * @return the connection
+     * @throws java.sql.SQLException when no connection could be borrowed
+     */
+    ConnectionPool.Pooled acquire(Sql sql) throws SQLException {
+        if (sql.read && this.replicas != null && this.pinned.get() == null) {
+            ConnectionPool.Pooled p = this.replicas.borrow();
+            if (p != null)
+                return p;
+        } // end if
+        return acquire();
+    }// end acquire
+
+    /**
+     * Gives a connection obtained from acquire() back to its pool unless it
+     * is pinned to this thread.
+     *
+     * @param p the connection
+     */
+    void release(ConnectionPool.Pooled p) {
+        if (p != this.pinned.get())
+            p.pool.release(p);
+    }// end release
+
+    /**
+     * Pins a connection to the calling thread and starts a transaction on it.
+     * Every statement the thread runs until end() uses this connection.
+     *
+     * @throws java.sql.SQLException when no connection could be borrowed
+     */
+    public void begin() throws SQLException {
+        ConnectionPool.Pooled p = this._pool.borrow();
+        p.connection.setAutoCommit(false);
+        this.pinned.set(p);
+    }// end begin
+
+    /**
+     * Commits the transaction of the pinned connection.
+     *
+     * @throws java.sql.SQLException when the commit failed
+     */
+    public void commit() throws SQLException {
+        this.pinned.get().connection.commit();
+        List<String> tags = this.uncommitted.get();
+        for (String tag : tags)
+            this.cache.invalidate(tag);
+        tags.clear();
+    }// end commit
+
+    /**
+     * Rolls back the transaction of the pinned connection.
+     *
+     * @throws java.sql.SQLException when the rollback failed
+     */
+    public void rollback() throws SQLException {
+        this.uncommitted.get().clear();
+        this.pinned.get().connection.rollback();
+    }// end rollback
+
+    /**
+     * Tells whether the calling thread is inside begin() ... end().
+     *
+     * @return true when a connection is pinned to the thread
+     */
+    boolean inTransaction() {
+        return this.pinned.get() != null;
+    }// end inTransaction
+
+    /**
+     * Unpins the thread's connection and returns it to the pool, rolling back
+     * anything not committed.
+     */
+    public void end() {
+        ConnectionPool.Pooled p = this.pinned.get();
+        if (p != null) {
+            this.pinned.remove();
+            this.uncommitted.remove();
+            this._pool.release(p);
+        } // end if
+    }// end end
+
+    /**
+     * Returns the connection pool.
+     *
+     * @return the pool
+     */
+    public ConnectionPool pool() {
+        return this._pool;
+    }// end pool
+
+    /**
+     * Returns the read replicas.
+     *
+     * @return the replicas, or null when every query goes to the primary
+     */
+    public Replicas replicas() {
+        return this.replicas;
+    }// end replicas
+
+    /**
+     * Returns the id allocator of the insert paths.
+     *
+     * @return the allocator
+     */
+    public IdAllocator ids() {
+        return this.ids;
+    }// end ids
+
+    /**
+     * Returns the room occupancy index.
+     *
+     * @return the index
+     */
+    public AvailabilityIndex availability() {
+        return this.availability;
+    }// end availability
+
+    /**
+     * Returns the directory of the customers by name.
+     *
+     * @return the directory
+     */
+    public CustomerDirectory customers() {
+        return this.customers;
+    }// end customers
+
+    /**
+     * Returns the leaderboards of the top-k reports.
+     *
+     * @return the leaderboards
+     */
+    public TopK topK() {
+        return this.topK;
+    }// end topK
+
+    /**
+     * Drops everything the in-memory structures learned from this client's
+     * writes, for when a transaction holding some of them was rolled back.
+     */
+    public void forgetUncommitted() {
+        this.cache.clear();
+        this.availability.invalidate();
+        this.topK.invalidate();
+        this.customers.invalidate();
+    }// end forgetUncommitted
+
+    /**
+     * Returns the booking engine of bookRoom.
+     *
+     * @return the engine
+     */
+    public BookingEngine bookings() {
+        return this.bookings;
+    }// end bookings
+
+    /**
+     * Returns the counters of the database calls.
+     *
+     * @return the metrics
+     */
+    public Metrics metrics() {
+        return this.metrics;
+    }// end metrics
+
+    /**
+     * Returns the columnar copy of Booking.
+     *
+     * @return the copy, or null when the reports query the database
+     */
+    public BookingColumns analytics() {
+        return this.analytics;
+    }// end analytics
+
+    /**
+     * Returns the write-behind queue.
+     *
+     * @return the queue, or null when writes are synchronous
+     */
+    public WriteBehind writeBehind() {
+        return this.writeBehind;
+    }// end writeBehind
+
+    /**
+     * Sets the write-behind queue; null makes the writes synchronous again.
+     *
+     * @param queue the queue
+     */
+    void writeBehind(WriteBehind queue) {
+        this.writeBehind = queue;
+    }// end writeBehind
+
+    /**
+     * Returns the report cache.
+     *
+     * @return the cache
+     */
+    public QueryCache cache() {
+        return this.cache;
+    }// end cache
+
+    /**
+     * Method to close the physical connections of the pool.
+     */
+    public void cleanup() {
+        end();
+        if (this.writeBehind != null) {
+            // commits what is still queued
+            this.writeBehind.close();
+        } // end if
+        if (Boolean.getBoolean("dbproject.stats")) {
+            System.out.println(this.cache.stats());
+            System.out.println(this.customers.stats());
+            if (this.replicas != null)
+                System.out.println(this.replicas.stats());
+            if (this.writeBehind != null)
+                System.out.println(this.writeBehind.stats());
+            if (this.metrics != null)
+                System.out.print(this.metrics.summary());
+        } // end if
+        if (this.metrics != null) {
+            this.metrics.close();
+        } // end if
+        if (this.replicas != null) {
+            this.replicas.close();
+        } // end if
+        if (this._pool != null) {
+            this._pool.close();
+        } // end if
     }// end cleanup
  
     /**
@@ -147,23 +871,74 @@ public class DBProject {
      *             file>
      */
     public static void main(String[] args) {
-        if (args.length != 3) {
+        Startup.begin();
+        if (args.length < 3) {
             System.err.println("Usage: " + "java [-classpath <classpath>] " + DBProject.class.getName()
-                    + " <dbname> <port> <user>");
+                    + " <dbname> <port> <user> [mode [args]]");
+            System.err.println("Modes:");
+            System.err.println("  migrate-ids [blockSize]        move all tables to block sequences");
+            System.err.println("  schema                         apply the pending schema migrations and indexes");
+            System.err.println("  explain [-v]                   EXPLAIN ANALYZE every query, flag sequential scans");
+            System.err.println("  aggregates <verify|rebuild>    reconcile the report aggregates with the base tables");
+            System.err.println("  partitions <maintain|list|check [-v]> manage and check the date partitions");
+            System.err.println("  ids-check [threads] [perThread] draw booking ids concurrently");
+            System.err.println("  bench-statements [calls]       compare Statement and PreparedStatement");
+            System.err.println("  pool-stress [threads] [secs]   run queries concurrently through the pool");
+            System.err.println("  bench-topk [calls]             compare the top-k leaderboards with SQL");
+            System.err.println("  bench-seed <bookings>          grow a benchmark database, e.g. to 1000, 100000 or 10000000");
+            System.err.println("  bench-ops [calls] [operation]  time every menu operation: percentiles and B/op");
+            System.err.println("  round-trips [calls]            check every menu operation takes one round trip");
+            System.err.println("  replicas [calls]               check the reads go to dbproject.replicas");
+            System.err.println("  bench-analytics [calls]        time the columnar Booking copy against SQL");
+            System.err.println("  bench-writes [calls]           compare synchronous and write-behind inserts");
+            System.err.println("  bench-pages [pages] [size]     compare keyset and OFFSET paging of the bookings");
+            System.err.println("  bench-mapping [calls] [size]   time and B/row of getString, text and typed rows");
+            System.err.println("  replay [log]                   apply the writes left in a write-behind log");
+            System.err.println("  import <booking|customer> <file.csv> [rejects.csv]");
+            System.err.println("  check-availability <hotel> <from> [to]  compare the room index with SQL");
+            System.err.println("  batch <file|-> [perTransaction] run menu commands from a script");
+            System.err.println("  exec <command> [args]          run one menu command, e.g. exec numberOfBookedRooms 1");
+            System.err.println("  booking-stress [threads] [rooms] [nights]  race clerks for the same room-nights");
+            System.err.println("  serve [port]                   serve the commands to many clients over a socket");
+            System.err.println("Load generator: java Server <host> <port> [sessions] [seconds] [command]...");
+            System.err.println("Commands:");
+            System.err.print(Commands.usage());
             return;
         } // end if
  
-        Greeting();
+        int port;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            port = -1;
+        } // end try
+        if (port < 1 || port > 65535) {
+            System.err.println("Error - " + args[1] + " is not a port number");
+            return;
+        } // end if
+
+        // keep the output of scripted modes free of the banner
+        if (args.length == 3)
+            Greeting();
         DBProject esql = null;
         try {
-            // use postgres JDBC driver.
-            Class.forName ("org.postgresql.Driver");
-            // instantiate the DBProject object and creates a physical
-            // connection.
+            // the postgres JDBC driver registers itself when first asked for a connection.
+            // instantiate the DBProject object, which connects now or, with
+            // dbproject.lazyConnect, in the background.
             String dbname = args[0];
             String dbport = args[1];
             String user = args[2];
+            if (args.length > 3 && args[3].equals("round-trips"))
+                System.setProperty("dbproject.roundTrips", "true");
             esql = new DBProject(dbname, dbport, user, "12345");
+            Startup.mark("client");
+
+            if (args.length > 3) {
+                runMode(esql, args);
+                Startup.mark("first result");
+                Startup.report();
+                return;
+            } // end if
  
             boolean keepon = true;
             while (keepon) {
@@ -261,6 +1036,182 @@ public class DBProject {
         } // end try
     }// end main
  
+    /**
+     * Runs one of the non-interactive modes given after the connection
+     * arguments.
+     *
+     * @param esql the connected client
+     * @param args the command line arguments
+     * @throws java.lang.Exception when the mode failed
+     */
+    public static void runMode(DBProject esql, String[] args) throws Exception {
+        switch (args[3]) {
+        case "migrate-ids": {
+            int blockSize = args.length > 4 ? Integer.parseInt(args[4]) : Integer.getInteger("dbproject.idBlock", 50);
+            SequenceIdAllocator.migrate(esql.pool(), blockSize);
+            System.out.println("Migrated to sequences, start clients with -Ddbproject.ids=sequence");
+            break;
+        }
+        case "schema": {
+            int applied = Schema.migrate(esql.pool());
+            System.out.println(applied + " migrations applied, schema version " + Schema.current(esql.pool()) + " of "
+                    + Schema.latest());
+            break;
+        }
+        case "explain": {
+            int flagged = Schema.explain(esql, args.length > 4 && args[4].equals("-v"));
+            if (flagged > 0)
+                throw new IllegalStateException(flagged + " sequential scans of large tables, run the schema mode");
+            System.out.println("No sequential scans of large tables");
+            break;
+        }
+        case "aggregates":
+            if (args.length > 4 && args[4].equals("rebuild")) {
+                Aggregates.rebuild(esql.pool());
+                esql.cache().clear();
+                System.out.println("Aggregates rebuilt");
+            } // end if
+            long differences = Aggregates.verify(esql.pool());
+            if (differences > 0)
+                throw new IllegalStateException(differences + " aggregate groups differ, run aggregates rebuild");
+            break;
+        case "replicas":
+            if (!Replicas.check(esql, args.length > 4 ? Integer.parseInt(args[4]) : 100))
+                throw new IllegalStateException("The reads were not routed as expected");
+            break;
+        case "partitions": {
+            String action = args.length > 4 ? args[4] : "list";
+            if (action.equals("maintain")) {
+                int changed = Partitions.maintain(esql.pool());
+                esql.forgetUncommitted();
+                System.out.println(changed + " partitions created or archived");
+            } else if (action.equals("check")) {
+                int unpruned = Partitions.check(esql, args.length > 5 && args[5].equals("-v"));
+                int duplicated = Partitions.duplicateIds(esql.pool());
+                if (unpruned > 0)
+                    throw new IllegalStateException(unpruned
+                            + " date-range queries read partitions outside their dates");
+                if (duplicated > 0)
+                    throw new IllegalStateException(duplicated + " booking or repair ids are held by several rows");
+                System.out.println("Every date-range query was pruned and every id is unique");
+            } else {
+                Partitions.print(esql.pool());
+            } // end if
+            break;
+        }
+        case "ids-check": {
+            int threads = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+            int perThread = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+            int duplicates = IdAllocator.countDuplicates(esql.ids, "booking", "bID", threads, perThread);
+            System.out.println(threads * perThread + " ids drawn by " + threads + " threads, " + duplicates
+                    + " duplicates");
+            if (duplicates > 0)
+                throw new IllegalStateException("The id allocator handed out duplicate ids");
+            break;
+        }
+        case "import":
+            if (args.length < 6) {
+                System.out.println("Usage: import <booking|customer> <file.csv> [rejects.csv]");
+                break;
+            } // end if
+            new BulkImporter(esql, args[4]).run(args[5], args.length > 6 ? args[6] : args[5] + ".rejects");
+            break;
+        case "check-availability": {
+            if (args.length < 6) {
+                System.out.println("Usage: check-availability <hotel> <mm/dd/yyyy> [mm/dd/yyyy]");
+                break;
+            } // end if
+            int from = Dates.parse(args[5]);
+            int to = args.length > 6 ? Dates.parse(args[6]) : from;
+            int mismatches = esql.availability().check(esql, Integer.parseInt(args[4]), from, to);
+            System.out.println(mismatches == 0 ? "The room index matches the database"
+                    : mismatches + " mismatches between the room index and the database");
+            break;
+        }
+        case "pool-stress":
+            Bench.pool(esql, args.length > 4 ? Integer.parseInt(args[4]) : 32,
+                    args.length > 5 ? Integer.parseInt(args[5]) : 10);
+            break;
+        case "bench-statements":
+            Bench.statements(esql, args.length > 4 ? Integer.parseInt(args[4]) : 10000);
+            break;
+        case "bench-topk":
+            Bench.topK(esql, args.length > 4 ? Integer.parseInt(args[4]) : 1000);
+            break;
+        case "bench-seed":
+            if (args.length < 5) {
+                System.out.println("Usage: bench-seed <bookings>");
+                break;
+            } // end if
+            Bench.seed(esql, Long.parseLong(args[4]));
+            break;
+        case "bench-analytics":
+            Bench.analytics(esql, args.length > 4 ? Integer.parseInt(args[4]) : 1000);
+            break;
+        case "bench-writes":
+            Bench.writes(esql, args.length > 4 ? Integer.parseInt(args[4]) : 1000);
+            break;
+        case "bench-mapping":
+            Bench.mapping(esql, args.length > 4 ? Integer.parseInt(args[4]) : 1000,
+                    args.length > 5 ? Integer.parseInt(args[5]) : 1000);
+            break;
+        case "bench-pages":
+            Bench.pages(esql, args.length > 4 ? Integer.parseInt(args[4]) : 1000,
+                    args.length > 5 ? Integer.parseInt(args[5]) : 20);
+            break;
+        case "replay": {
+            String log = args.length > 4 ? args[4] : System.getProperty("dbproject.writeBehind.log", "writebehind.log");
+            int applied = WriteBehind.replay(esql, Paths.get(log));
+            System.out.println(applied + " writes replayed from " + log);
+            break;
+        }
+        case "round-trips": {
+            int over = RoundTrips.check(esql, args.length > 4 ? Integer.parseInt(args[4]) : 100);
+            if (over > 0)
+                throw new IllegalStateException(over + " operations over their round-trip budget");
+            System.out.println("Every operation within its round-trip budget");
+            break;
+        }
+        case "bench-ops":
+            Bench.operations(esql, args.length > 4 ? Integer.parseInt(args[4]) : 1000, args.length > 5 ? args[5] : null);
+            break;
+        case "batch": {
+            if (args.length < 5) {
+                System.out.println("Usage: batch <file|-> [perTransaction]");
+                break;
+            } // end if
+            int perTransaction = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+            try (BufferedReader script = args[4].equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+                    : new BufferedReader(new FileReader(args[4]))) {
+                if (!Commands.runBatch(esql, script, perTransaction))
+                    throw new IllegalStateException("The batch stopped at the first failing command");
+            } // end try
+            break;
+        }
+        case "booking-stress":
+            if (!BookingEngine.stress(esql, args.length > 4 ? Integer.parseInt(args[4]) : 32,
+                    args.length > 5 ? Integer.parseInt(args[5]) : 5, args.length > 6 ? Integer.parseInt(args[6]) : 20))
+                throw new IllegalStateException("A room-night was booked twice or not at all");
+            break;
+        case "serve":
+            new Server(esql, args.length > 4 ? Integer.parseInt(args[4]) : 5166).serve();
+            break;
+        case "exec": {
+            if (args.length < 5) {
+                System.out.println("Usage: exec <command> [args]");
+                break;
+            } // end if
+            String status = Commands.execute(esql, Arrays.asList(args).subList(4, args.length));
+            // the id of an inserted row is the result, a row count is only a note
+            (Commands.find(args[4]).write ? System.out : System.err).println(status);
+            break;
+        }
+        default:
+            System.out.println("Unrecognized mode: " + args[3]);
+            break;
+        }// end switch
+    }// end runMode
+
     public static void Greeting() {
         System.out.println("\n\n*******************************************************\n"
                 + "              User Interface                        \n"
@@ -338,28 +1289,26 @@ public class DBProject {
         return input;
     }// end readInt
  
-    public int getNextId(DBProject esql, String fieldName, String tableName) {
-        String query = "Select Max(" + fieldName + ") from " + tableName;
-        int next = 0;
- 
+    /**
+     * Draws the next id of a table from the id allocator.
+     *
+     * @param fieldName the id column
+     * @param tableName the table
+     * @return the id
+     * @throws java.sql.SQLException when no id could be reserved
+     */
+    public int getNextId(DBProject esql, String fieldName, String tableName) throws SQLException {
+        String op = "nextId." + tableName.toLowerCase();
+        long start = System.nanoTime();
         try {
-            // creates a statement object
-            Statement stmt = this._connection.createStatement();
- 
-            // issues the query instruction
-            ResultSet rs = stmt.executeQuery(query);
- 
-            while (rs.next()) {
-                next = rs.getInt(1) + 1;
-            } // end while
- 
-            stmt.close();
-        } catch (Exception e) {
-            System.out.println(e);
-        }
- 
-        return next;
-    }
+            // served from the allocator's reserved block, no round trip in the common case
+            int next = (int) this.ids.nextId(tableName, fieldName);
+            this.metrics.ok(op, start, 1, fieldName);
+            return next;
+        } catch (SQLException e) {
+            throw this.metrics.failed(op, start, e, fieldName);
+        } // end try
+    }// end getNextId
  
     public static void addCustomer(DBProject esql) {
         // Given customer details add the customer in the DB
@@ -383,13 +1332,8 @@ public class DBProject {
         System.out.print("Enter Gender: ");
         gender = readText();
  
-        String sql = String.format(
-                "INSERT INTO CUSTOMER(CUSTOMERID,FNAME,LNAME,ADDRESS,PHNO,DOB,GENDER)"
-                        + " VALUES(%s,'%s','%s','%s',%s,'%s','%s') ",
-                esql.getNextId(esql, "customerid", "customer"), name, lastName, address, phone, dob, gender);
- 
         try {
-            esql.executeUpdate(sql);
+            addCustomer(esql, name, lastName, address, phone, dob, gender);
             System.out.println("The customer was succesfully added!");
         } catch (Exception e) {
             System.out.println("The customer couldn't be added.\nMake sure that "
@@ -398,6 +1342,20 @@ public class DBProject {
         }
  
     }// end addCustomer
+
+    /**
+     * Adds a customer.
+     *
+     * @return the new customerid
+     * @throws java.sql.SQLException when the insert failed
+     */
+    public static int addCustomer(DBProject esql, String fname, String lname, String address, long phone, String dob,
+            String gender) throws SQLException {
+        int id = esql.getNextId(esql, "customerid", "customer");
+        esql.executeUpdate(Sql.ADD_CUSTOMER, id, fname, lname, address, phone, Dates.param(dob), gender);
+        esql.customers().added(id, fname, lname);
+        return id;
+    }// end addCustomer
  
     public static void addRoom(DBProject esql) {
         // Given room details add the room in the DB
@@ -408,15 +1366,25 @@ public class DBProject {
             System.out.print("\tEnter room type: ");
             String roomType = in.readLine();
  
-            String sql = String.format("INSERT INTO Room VALUES ( %s, %s, '%s')", hotelid,
-                    esql.getNextId(esql, "roomno", "room"), roomType);
- 
-            esql.executeUpdate(sql);
+            addRoom(esql, Integer.parseInt(hotelid.trim()), roomType);
             System.out.println("The room was succesfully added!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
     }// end addRoom
+
+    /**
+     * Adds a room to a hotel.
+     *
+     * @return the new room number
+     * @throws java.sql.SQLException when the insert failed
+     */
+    public static int addRoom(DBProject esql, int hotelID, String roomType) throws SQLException {
+        int roomNo = esql.getNextId(esql, "roomno", "room");
+        esql.executeUpdate(Sql.ADD_ROOM, hotelID, roomNo, roomType);
+        esql.availability().roomAdded(hotelID, roomNo);
+        return roomNo;
+    }// end addRoom
  
     public static void addMaintenanceCompany(DBProject esql) {
         // Given maintenance Company details add the maintenance company in the DB
@@ -437,12 +1405,8 @@ public class DBProject {
         }
         isCertified = true ? "yes".equalsIgnoreCase(cert) : false;
  
-        String sql = String.format(
-                "INSERT INTO MaintenanceCompany(cmpID, name, address,isCertified) VALUES(%s,'%s','%s',%s)",
-                esql.getNextId(esql, "cmpID", "MaintenanceCompany"), name, address, isCertified);
- 
         try {
-            esql.executeUpdate(sql);
+            addMaintenanceCompany(esql, name, address, isCertified);
             System.out.println(name + " was succesfully added!");
         } catch (Exception e) {
             System.out.println(e);
@@ -451,6 +1415,20 @@ public class DBProject {
         }
  
     }// end addMaintenanceCompany
+
+    /**
+     * Adds a maintenance company.
+     *
+     * @return the new cmpID
+     * @throws java.sql.SQLException when the insert failed
+     */
+    public static int addMaintenanceCompany(DBProject esql, String name, String address, boolean isCertified)
+            throws SQLException {
+        int id = esql.getNextId(esql, "cmpID", "MaintenanceCompany");
+        esql.executeUpdate(Sql.ADD_MAINTENANCE_COMPANY, id, name, address, isCertified);
+        esql.invalidate("maintenancecompany");
+        return id;
+    }// end addMaintenanceCompany
  
     public static void addRepair(DBProject esql) {
         // Given repair details add repair in the DB
@@ -474,15 +1452,26 @@ public class DBProject {
             System.out.print("\tEnter repair type: ");
             String repairType = in.readLine();
  
-            String sql = String.format("INSERT INTO Repair VALUES ( %s, %s, %s, %s, '%s', '%s', '%s')",
-                    esql.getNextId(esql, "rID", "Repair"), hotelid, roomNo, compID, repDate, repairDescr, repairType);
- 
-            esql.executeUpdate(sql);
+            addRepair(esql, Integer.parseInt(hotelid.trim()), Integer.parseInt(roomNo.trim()),
+                    Integer.parseInt(compID.trim()), repDate, repairDescr, repairType);
             System.out.println("The repair was succesfully added!");
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
     }// end addRepair
+
+    /**
+     * Records a repair made by a maintenance company.
+     *
+     * @return the new rID
+     * @throws java.sql.SQLException when the insert failed
+     */
+    public static int addRepair(DBProject esql, int hotelID, int roomNo, int compID, String repDate,
+            String repairDescr, String repairType) throws SQLException {
+        int id = esql.getNextId(esql, "rID", "Repair");
+        esql.write(Sql.ADD_REPAIR, id, hotelID, roomNo, compID, Dates.param(repDate), repairDescr, repairType);
+        return id;
+    }// end addRepair
  
     public static void bookRoom(DBProject esql) {
         // Given hotelID, roomNo and customer Name create a booking in the DB
@@ -511,20 +1500,51 @@ public class DBProject {
         System.out.print("Enter price: ");
         price = readDouble();
  
-        String sql = String.format(
-                "insert into booking select %s, c.customerid, %s,%s,'%s',%s,%s from customer c where c.fname = '%s' and c.lname = '%s' limit 1",
-                esql.getNextId(esql, "bID", "booking"), hotelID, roomNo, date, numberOfPeople,
-                String.format("%.2f", price), fname, lname);
- 
         try {
-            esql.executeUpdate(sql);
-            System.out.println("The booking was succesfully created!");
+            BookingEngine.Reservation reservation = bookRoom(esql, hotelID, roomNo, fname, lname, date,
+                    numberOfPeople, price);
+            if (reservation.result == BookingEngine.Result.BOOKED)
+                System.out.println("The booking was succesfully created!");
+            else if (reservation.result == BookingEngine.Result.CONFLICT)
+                System.out.println("The room is already booked on " + date + ".");
+            else if (reservation.result == BookingEngine.Result.AMBIGUOUS_CUSTOMER)
+                System.out.println("Several customers are named " + fname + " " + lname + ".");
+            else
+                System.out.println("There is no customer named " + fname + " " + lname + ".");
         } catch (Exception e) {
             System.out.println(e);
             System.out.println("The booking couldn't be created.");
         }
  
     }// end bookRoom
+
+    /**
+     * Books a room for the customer with the given name, unless the room is
+     * already booked that day or the name is ambiguous (see
+     * CustomerDirectory).
+     *
+     * @return the reservation, with the new bID when it was booked
+     * @throws java.sql.SQLException when the insert failed
+     */
+    public static BookingEngine.Reservation bookRoom(DBProject esql, int hotelID, int roomNo, String fname,
+            String lname, String date, int numberOfPeople, double price) throws SQLException {
+        BookingEngine.Reservation reservation = esql.bookings().book(esql, hotelID, roomNo, fname, lname, date,
+                numberOfPeople, BigDecimal.valueOf(price).setScale(2, RoundingMode.HALF_UP));
+        if (reservation.result != BookingEngine.Result.BOOKED)
+            return reservation;
+
+        esql.invalidate("booking", "booking#" + hotelID);
+        int day = Dates.tryParse(date);
+        if (day != Integer.MIN_VALUE) {
+            esql.availability().booked(hotelID, roomNo, day);
+            esql.topK().booked(hotelID, roomNo, BigDecimal.valueOf(price).setScale(2, RoundingMode.HALF_UP), day);
+        } else {
+            // accepted by the server in another format, reload the indexes instead
+            esql.availability().invalidate();
+            esql.topK().invalidate();
+        } // end if
+        return reservation;
+    }// end bookRoom
  
     public static void assignHouseCleaningToRoom(DBProject esql) {
         // Given Staff SSN, HotelID, roomNo Assign the staff to the room
@@ -539,15 +1559,25 @@ public class DBProject {
             System.out.print("\tEnter room number: ");
             String roomNo = in.readLine();
  
-            String sql = String.format("INSERT INTO Assigned VALUES ('%s','%s','%s','%s')",
-                    esql.getNextId(esql, "asgID", "Assigned"), staffID, hotelid, roomNo);
- 
-            esql.executeUpdate(sql);
+            assignHouseCleaningToRoom(esql, staffID, hotelid, roomNo);
  
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
     }// end assignHouseCleaningToRoom
+
+    /**
+     * Assigns a staff member to clean a room.
+     *
+     * @return the new asgID
+     * @throws java.sql.SQLException when the insert failed
+     */
+    public static int assignHouseCleaningToRoom(DBProject esql, String staffID, String hotelID, String roomNo)
+            throws SQLException {
+        int id = esql.getNextId(esql, "asgID", "Assigned");
+        esql.write(Sql.ASSIGN_HOUSE_CLEANING, id, staffID, hotelID, roomNo);
+        return id;
+    }// end assignHouseCleaningToRoom
  
     public static void repairRequest(DBProject esql) {
         // Given a hotelID, Staff SSN, roomNo, repairID , date create a repair request
@@ -567,34 +1597,68 @@ public class DBProject {
         System.out.print("Enter description: ");
         description = readText();
  
-        String sql = String.format("INSERT INTO request VALUES(%s,%s,%s,'%s','%s')",
-                esql.getNextId(esql, "reqID", "request"), ssn, repairID, date, description);
- 
         try {
-            esql.executeUpdate(sql);
+            repairRequest(esql, ssn, repairID, date, description);
             System.out.println("The request was succesfully created!");
         } catch (Exception e) {
             System.out.println("The request couldn't be created.");
         }
  
     }// end repairRequest
+
+    /**
+     * Raises a repair request.
+     *
+     * @return the new reqID
+     * @throws java.sql.SQLException when the insert failed
+     */
+    public static int repairRequest(DBProject esql, int ssn, int repairID, String date, String description)
+            throws SQLException {
+        int id = esql.getNextId(esql, "reqID", "request");
+        esql.write(Sql.REPAIR_REQUEST, id, ssn, repairID, Dates.param(date), description);
+        return id;
+    }// end repairRequest
  
     public static void numberOfAvailableRooms(DBProject esql) {
         // Given a hotelID, get the count of rooms available
         try {
             System.out.print("\tEnter Hotel ID: ");
             String hotelid = in.readLine();
- 
-            String query = String.format("SELECT COUNT(*) FROM Room R "
-                    + "WHERE R.hotelid = '%s' and R.roomNo not in (SELECT roomNo FROM Booking B WHERE B.hotelid = '%s');",
-                    hotelid, hotelid);
- 
-            esql.executeQuery(query);
+
+            System.out.print("\tEnter date(mm/dd/yyyy), or nothing for rooms never booked: ");
+            String from = in.readLine().trim();
+            String to = "";
+            if (!from.isEmpty()) {
+                System.out.print("\tEnter end date(mm/dd/yyyy), or nothing for a single day: ");
+                to = in.readLine().trim();
+            } // end if
+
+            numberOfAvailableRooms(esql, Integer.parseInt(hotelid.trim()), from.isEmpty() ? null : from,
+                    to.isEmpty() ? null : to);
  
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
     }// end numberOfAvailableRooms
+
+    /**
+     * Counts the rooms of a hotel free on every day of a range, answered from
+     * the occupancy index. Without dates, counts the rooms never booked.
+     *
+     * @param from the first day (MM/DD/YYYY), or null
+     * @param to   the last day, or null for a single day
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static int numberOfAvailableRooms(DBProject esql, int hotelID, String from, String to)
+            throws SQLException {
+        if (from == null)
+            return esql.executeQuery(Sql.AVAILABLE_ROOMS, hotelID);
+
+        int fromDay = Dates.parse(from);
+        int toDay = to == null ? fromDay : Dates.parse(to);
+        return esql.writeValue("available", esql.availability().available(esql, hotelID, fromDay, toDay));
+    }// end numberOfAvailableRooms
  
     public static void numberOfBookedRooms(DBProject esql) {
         // Given a hotelID, get the count of rooms booked
@@ -602,14 +1666,22 @@ public class DBProject {
         System.out.print("Enter hotel ID: ");
         hotelID = readInt();
  
-        String sql = String.format("Select count(*) as TotalBookings from booking where hotelid=%s", hotelID);
- 
         try {
-            esql.executeQuery(sql);
+            numberOfBookedRooms(esql, hotelID);
         } catch (Exception e) {
             System.out.println("There was an error.");
         }
     }// end numberOfBookedRooms
+
+    /**
+     * Counts the bookings of a hotel.
+     *
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static int numberOfBookedRooms(DBProject esql, int hotelID) throws SQLException {
+        return esql.cachedQuery(Sql.BOOKED_ROOMS, new String[] { "booking#" + hotelID }, hotelID);
+    }// end numberOfBookedRooms
  
     public static void listHotelRoomBookingsForAWeek(DBProject esql) {
         // Given a hotelID, date - list all the rooms available for a week(including the
@@ -622,21 +1694,65 @@ public class DBProject {
             System.out.print("\tEnter date(mm/dd/yyyy): ");
             String date = in.readLine();
  
-            Date date1 = new SimpleDateFormat("MM/dd/yyyy").parse(date);
-            Calendar c = Calendar.getInstance();
-            c.setTime(date1);
-            c.add(Calendar.DATE, 7);
-            DateFormat df = new SimpleDateFormat("MM/dd/yyyy");
-            String weeklater = df.format(c.getTime());
- 
-            String sql = String.format(
-                    "SELECT * from Booking WHERE hotelid = '%s' and bookingdate BETWEEN '%s' AND '%s'", hotelid, date,
-                    weeklater);
-            esql.executeQuery(sql);
+            listHotelRoomBookingsForAWeek(esql, Integer.parseInt(hotelid.trim()), date);
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
     }// end listHotelRoomBookingsForAWeek
+
+    /**
+     * Lists the bookings of a hotel from a date to a week later.
+     *
+     * @param date the first day (MM/DD/YYYY)
+     * @return the number of rows written
+     * @throws java.sql.SQLException                      when the query failed
+     * @throws java.time.format.DateTimeParseException when the date is not MM/DD/YYYY
+     */
+    public static int listHotelRoomBookingsForAWeek(DBProject esql, int hotelID, String date)
+            throws SQLException {
+        int day = Dates.parse(date);
+        if (esql.analytics() != null)
+            return esql.analytics().bookings(esql, hotelID, day, day + 7);
+ 
+        return esql.executeQuery(Sql.BOOKINGS_FOR_WEEK, hotelID, Dates.sql(day), Dates.sql(day + 7));
+    }// end listHotelRoomBookingsForAWeek
+
+    /**
+     * Returns one page of the bookings of a hotel in the week from a date,
+     * by date and bid.
+     *
+     * @param cursor the next cursor of the previous page, null for the first
+     * @param size   the rows per page
+     * @return the page
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static Page<Booking> listHotelRoomBookingsForAWeek(DBProject esql, int hotelID, String date,
+            String cursor, int size) throws SQLException {
+        int day = Dates.parse(date);
+        return bookingsBetween(esql, hotelID, day, day + 7, cursor, size);
+    }// end listHotelRoomBookingsForAWeek
+
+    /**
+     * Returns one page of the bookings of a hotel between two days, both
+     * included, by date and bid.
+     *
+     * @param from   the first epoch day
+     * @param to     the last epoch day
+     * @param cursor the next cursor of the previous page, null for the first
+     * @param size   the rows per page
+     * @return the page
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static Page<Booking> bookingsBetween(DBProject esql, int hotelID, int from, int to, String cursor,
+            int size) throws SQLException {
+        Object[] filter = { hotelID, from, to };
+        String[] after = Page.keys(cursor, "bookings", filter, 2);
+        int day = after == null ? from : Integer.parseInt(after[0]);
+        int bid = after == null ? Integer.MIN_VALUE : Integer.parseInt(after[1]);
+        List<Booking> rows = esql.queryList(Sql.BOOKINGS_PAGE, Booking.MAPPER, hotelID, Dates.sql(from),
+                Dates.sql(to), Dates.sql(day), bid, size + 1);
+        return Page.of(rows, size, "bookings", filter, b -> new Object[] { b.day(), b.bid() });
+    }// end bookingsBetween
  
     public static void topKHighestRoomPriceForADateRange(DBProject esql) {
         // List Top K Rooms with the highest price for a given date range
@@ -652,16 +1768,29 @@ public class DBProject {
         System.out.print("Enter ending date: ");
         to = readText();
  
-        String sql = String.format("select hotelID, roomNo, price, bookingDate from booking where bookingDate between"
-                + " '%s' and '%s' order by price DESC limit %s", from, to, k);
- 
         try {
-            esql.executeQuery(sql);
+            topKHighestRoomPriceForADateRange(esql, k, from, to);
         } catch (Exception e) {
             System.out.println("There was an error.");
         }
  
     }// end topKHighestRoomPriceForADateRange
+
+    /**
+     * Lists the k highest priced bookings of a date range.
+     *
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static int topKHighestRoomPriceForADateRange(DBProject esql, int k, String from, String to)
+            throws SQLException {
+        int fromDay = Dates.tryParse(from), toDay = Dates.tryParse(to);
+        if (fromDay == Integer.MIN_VALUE || toDay == Integer.MIN_VALUE) // not MM/DD/YYYY, let the server read them
+            return esql.executeQuery(Sql.TOP_K_ROOM_PRICE, from.trim(), to.trim(), k);
+        if (esql.analytics() != null)
+            return esql.analytics().topPrices(esql, k, fromDay, toDay);
+        return esql.topK().roomPrices(esql, k, fromDay, toDay);
+    }// end topKHighestRoomPriceForADateRange
  
     public static void topKHighestPriceBookingsForACustomer(DBProject esql) {
         // Given a customer Name, List Top K highest booking price for a customer
@@ -674,16 +1803,53 @@ public class DBProject {
             System.out.print("\tEnter k: ");
             String k = in.readLine();
  
-            String sql = String.format("SELECT B.price FROM Booking B, Customer C "
-                    + "WHERE C.customerid = B.customer AND C.fName = '%s' AND C.lName = '%s' "
-                    + "ORDER BY B.price DESC LIMIT %s; ", fName, lName, k);
- 
-            esql.executeQuery(sql);
+            topKHighestPriceBookingsForACustomer(esql, fName, lName, Integer.parseInt(k.trim()));
  
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
     }// end topKHighestPriceBookingsForACustomer
+
+    /**
+     * Lists the k highest booking prices of a customer. A name several
+     * customers share lists the prices of all of them.
+     *
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static int topKHighestPriceBookingsForACustomer(DBProject esql, String fname, String lname, int k)
+            throws SQLException {
+        int[] ids = esql.customers().ids(esql, fname, lname);
+        if (ids.length == 1)
+            return esql.executeQuery(Sql.TOP_K_CUSTOMER_ID_BOOKINGS, ids[0], k);
+        return esql.executeQuery(Sql.TOP_K_CUSTOMER_BOOKINGS, fname, lname, k);
+    }// end topKHighestPriceBookingsForACustomer
+
+    /**
+     * Returns one page of the bookings of a customer, highest price first.
+     *
+     * @param cursor the next cursor of the previous page, null for the first
+     * @param size   the rows per page
+     * @return the page, empty when nobody has the name
+     * @throws java.sql.SQLException when several customers have the name and
+     *                               they are rejected, or the query failed
+     */
+    public static Page<Booking> topKHighestPriceBookingsForACustomer(DBProject esql, String fname, String lname,
+            String cursor, int size) throws SQLException {
+        int customerid = esql.customers().id(esql, fname, lname);
+        if (customerid == CustomerDirectory.AMBIGUOUS)
+            throw new SQLException("Several customers are named " + fname + " " + lname, "21000");
+        if (customerid == CustomerDirectory.UNKNOWN)
+            return new Page<>(Collections.emptyList(), null);
+        Object[] filter = { customerid };
+        String[] after = Page.keys(cursor, "customerBookings", filter, 2);
+        List<Booking> rows = after == null
+                ? esql.queryList(Sql.CUSTOMER_BOOKINGS_PAGE, Booking.MAPPER, customerid, size + 1)
+                : esql.queryList(Sql.CUSTOMER_BOOKINGS_PAGE_AFTER, Booking.MAPPER, customerid,
+                        new BigDecimal(after[0]), Integer.parseInt(after[1]), size + 1);
+        return Page.of(rows, size, "customerBookings", filter,
+                b -> new Object[] { b.price().toPlainString(), b.bid() });
+    }// end topKHighestPriceBookingsForACustomer
  
     public static void totalCostForCustomer(DBProject esql) {
         // Given a hotelID, customer Name and date range get the total cost incurred by
@@ -707,25 +1873,33 @@ public class DBProject {
         end = readText();
  
         try {
-            String sql = String.format("select customerid from customer where fname = '%s' and lname='%s' limit 1",
-                    fname, lname);
-            int customerid = 0;
- 
-            Statement stmt = esql._connection.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
-            if (rs.next())
-                customerid = rs.getInt("customerid");
- 
-            sql = String.format(
-                    "select COALESCE(sum(price), 0) as TotalIncurred from booking  where hotelID = %s and customer = %s and bookingdate between '%s' and '%s' ",
-                    hotelID, customerid, start, end);
-            esql.executeQuery(sql);
+            totalCostForCustomer(esql, hotelID, fname, lname, start, end);
         } catch (Exception e) {
             System.out.println("There was an error.");
             System.out.println(e.getMessage());
         }
  
     }// end totalCostForCustomer
+
+    /**
+     * Sums the booking prices of a customer at a hotel over a date range.
+     *
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static int totalCostForCustomer(DBProject esql, int hotelID, String fname, String lname, String start,
+            String end) throws SQLException {
+        int customerid = esql.customers().id(esql, fname, lname);
+        if (customerid == CustomerDirectory.AMBIGUOUS)
+            throw new SQLException("Several customers are named " + fname + " " + lname, "21000");
+        int from = Dates.tryParse(start), to = Dates.tryParse(end);
+        if (esql.analytics() != null && from != Integer.MIN_VALUE && to != Integer.MIN_VALUE)
+            return esql.analytics().totalCost(esql, hotelID, customerid, from, to);
+ 
+        // dates in another format are left for the server to read
+        return esql.executeQuery(Aggregates.available(esql) ? Sql.TOTAL_COST_AGGREGATE : Sql.TOTAL_COST, hotelID,
+                customerid, Dates.param(start), Dates.param(end));
+    }// end totalCostForCustomer
  
     public static void listRepairsMade(DBProject esql) {
         // Given a Maintenance company name list all the repairs along with repairType,
@@ -736,16 +1910,40 @@ public class DBProject {
             System.out.print("\tEnter Maintenance company name: ");
             mcomp = in.readLine();
  
-            String sql = String
-                    .format("SELECT r.rid, r.hotelid, r.roomNo, r.repairType FROM maintenancecompany mc, repair r "
-                            + "WHERE mc.name = '%s' AND mc.cmpid = r.mcompany;", mcomp);
- 
-            esql.executeQuery(sql);
+            listRepairsMade(esql, mcomp);
  
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
     }// end listRepairsMade
+
+    /**
+     * Lists the repairs made by a maintenance company.
+     *
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static int listRepairsMade(DBProject esql, String company) throws SQLException {
+        return esql.cachedQuery(Sql.REPAIRS_BY_COMPANY, new String[] { "repair", "maintenancecompany" }, company);
+    }// end listRepairsMade
+
+    /**
+     * Returns one page of the repairs made by the maintenance companies of a
+     * name, by rid.
+     *
+     * @param cursor the next cursor of the previous page, null for the first
+     * @param size   the rows per page
+     * @return the page
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static Page<Repair> listRepairsMade(DBProject esql, String company, String cursor, int size)
+            throws SQLException {
+        Object[] filter = { company };
+        String[] after = Page.keys(cursor, "repairs", filter, 1);
+        List<Repair> rows = esql.queryList(Sql.REPAIRS_BY_COMPANY_PAGE, Repair.MAPPER, company,
+                after == null ? Integer.MIN_VALUE : Integer.parseInt(after[0]), size + 1);
+        return Page.of(rows, size, "repairs", filter, r -> new Object[] { r.rid() });
+    }// end listRepairsMade
  
     public static void topKMaintenanceCompany(DBProject esql) {
         // List Top K Maintenance Company Names based on total repair count (descending
@@ -755,18 +1953,23 @@ public class DBProject {
         System.out.print("Enter k: ");
         k = readInt();
  
-        String sql = String.format(
-                "select m.name, count(m.cmpID) as RepairCount from MaintenanceCompany m, repair r where m.cmpID = r.mCompany \r\n"
-                        + "group by m.cmpID\r\n" + "order by RepairCount DESC\r\n" + "limit 5",
-                k);
- 
         try {
-            esql.executeQuery(sql);
+            topKMaintenanceCompany(esql, k);
         } catch (Exception e) {
             System.out.println("There was an error.");
         }
  
     }// end topKMaintenanceCompany
+
+    /**
+     * Lists the maintenance companies with the most repairs.
+     *
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static int topKMaintenanceCompany(DBProject esql, int k) throws SQLException {
+        return esql.topK().companies(esql, k);
+    }// end topKMaintenanceCompany
  
     public static void numberOfRepairsForEachRoomPerYear(DBProject esql) {
         // Given a hotelID, roomNo, get the count of repairs per year
@@ -777,17 +1980,24 @@ public class DBProject {
             System.out.print("\tEnter room number: ");
             String roomno = in.readLine();
  
-            String sql = String.format(
-                    "SELECT COUNT(DATE_PART('year', repairdate)) as number_of_repairs, DATE_PART('year', repairdate) as year "
-                            + "FROM repair r WHERE r.hotelid = %s and r.roomno = %s GROUP BY DATE_PART('year', repairdate);",
-                    hotelid, roomno);
- 
-            esql.executeQuery(sql);
+            numberOfRepairsForEachRoomPerYear(esql, Integer.parseInt(hotelid.trim()), Integer.parseInt(roomno.trim()));
  
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }
  
     }// end listRepairsMade
+
+    /**
+     * Counts the repairs of a room per year.
+     *
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the query failed
+     */
+    public static int numberOfRepairsForEachRoomPerYear(DBProject esql, int hotelID, int roomNo)
+            throws SQLException {
+        return esql.cachedQuery(Aggregates.available(esql) ? Sql.REPAIRS_PER_YEAR_AGGREGATE : Sql.REPAIRS_PER_YEAR,
+                new String[] { "repair#" + hotelID }, hotelID, roomNo);
+    }// end numberOfRepairsForEachRoomPerYear
  
 }// end DBProject
@@ -0,0 +1,210 @@
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Calendar dates as epoch days - days since 1970-01-01 - in a plain int.
+ *
+ * parse() reads the MM/DD/YYYY of the prompts without allocating and
+ * without a shared formatter, so any thread may call it. Day arithmetic is
+ * integer arithmetic. iso() returns the YYYY-MM-DD text Postgres prints for
+ * a date, from a table of the strings of 1900 to 2199 filled as they are
+ * asked for. Dates are sent to the server as java.sql.Date parameters, so
+ * they do not depend on its DateStyle.
+ */
+public final class Dates {
+
+    private static final int FIRST_CACHED = -25567; // 1900-01-01
+    private static final String[] ISO = new String[109573]; // to 2199-12-31
+
+    private Dates() {
+    }
+
+    /**
+     * Reads a date typed at a prompt: month, day and a four-digit year
+     * separated by slashes, surrounding blanks ignored.
+     *
+     * @param text the date, e.g. 05/01/2020 or 5/1/2020
+     * @return the epoch day
+     * @throws java.time.format.DateTimeParseException when the text is not such a date
+     */
+    public static int parse(CharSequence text) {
+        int day = tryParse(text);
+        if (day == Integer.MIN_VALUE)
+            throw new DateTimeParseException("Text '" + text + "' is not a date in the MM/DD/YYYY format", text, 0);
+        return day;
+    }// end parse
+
+    /**
+     * Reads a date like parse() does.
+     *
+     * @param text the date
+     * @return the epoch day, or Integer.MIN_VALUE when the text is not a date
+     */
+    public static int tryParse(CharSequence text) {
+        if (text == null)
+            return Integer.MIN_VALUE;
+        int end = text.length();
+        int i = 0;
+        while (i < end && text.charAt(i) <= ' ')
+            i++;
+        while (end > i && text.charAt(end - 1) <= ' ')
+            end--;
+
+        int month = 0, day = 0, year = 0, digits = 0;
+        for (; i < end && digits < 3; i++, digits++) {
+            char c = text.charAt(i);
+            if (c == '/')
+                break;
+            if (c < '0' || c > '9')
+                return Integer.MIN_VALUE;
+            month = month * 10 + (c - '0');
+        } // end for
+        if (digits == 0 || digits > 2 || i == end || text.charAt(i++) != '/')
+            return Integer.MIN_VALUE;
+        for (digits = 0; i < end && digits < 3; i++, digits++) {
+            char c = text.charAt(i);
+            if (c == '/')
+                break;
+            if (c < '0' || c > '9')
+                return Integer.MIN_VALUE;
+            day = day * 10 + (c - '0');
+        } // end for
+        if (digits == 0 || digits > 2 || i == end || text.charAt(i++) != '/')
+            return Integer.MIN_VALUE;
+        if (end - i != 4)
+            return Integer.MIN_VALUE;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                return Integer.MIN_VALUE;
+            year = year * 10 + (c - '0');
+        } // end for
+
+        if (month < 1 || month > 12 || day < 1 || day > length(year, month))
+            return Integer.MIN_VALUE;
+        return of(year, month, day);
+    }// end tryParse
+
+    /**
+     * Returns the epoch day of a calendar date.
+     *
+     * @param year  the year
+     * @param month the month, 1 to 12
+     * @param day   the day of the month
+     * @return the epoch day
+     */
+    public static int of(int year, int month, int day) {
+        // days from civil, H. Hinnant: years start in March so the leap day comes last
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }// end of
+
+    /**
+     * Returns the epoch day of a date read from the database.
+     *
+     * @param date the date
+     * @return the epoch day
+     */
+    public static int of(java.sql.Date date) {
+        return (int) date.toLocalDate().toEpochDay();
+    }// end of
+
+    /**
+     * Returns the number of days of a month.
+     *
+     * @param year  the year
+     * @param month the month, 1 to 12
+     * @return 28 to 31
+     */
+    public static int length(int year, int month) {
+        if (month == 2)
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }// end length
+
+    /**
+     * Returns a date as YYYY-MM-DD, the text Postgres prints for it.
+     *
+     * @param day the epoch day
+     * @return the text
+     */
+    public static String iso(int day) {
+        int slot = day - FIRST_CACHED;
+        if (slot < 0 || slot >= ISO.length)
+            return LocalDate.ofEpochDay(day).toString();
+        // a racing thread at worst builds the same string again
+        String text = ISO[slot];
+        if (text == null)
+            ISO[slot] = text = format(day, true);
+        return text;
+    }// end iso
+
+    /**
+     * Returns a date as MM/DD/YYYY, the format of the prompts.
+     *
+     * @param day the epoch day
+     * @return the text
+     */
+    public static String prompt(int day) {
+        return format(day, false);
+    }// end prompt
+
+    private static String format(int day, boolean iso) {
+        // civil from days, the inverse of of()
+        int z = day + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int d = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int m = mp < 10 ? mp + 3 : mp - 9;
+        int y = yearOfEra + era * 400 + (m <= 2 ? 1 : 0);
+        if (y < 0 || y > 9999)
+            return LocalDate.ofEpochDay(day).toString();
+
+        char[] out = new char[10];
+        int at = iso ? 0 : 6;
+        out[at] = (char) ('0' + y / 1000);
+        out[at + 1] = (char) ('0' + y / 100 % 10);
+        out[at + 2] = (char) ('0' + y / 10 % 10);
+        out[at + 3] = (char) ('0' + y % 10);
+        int monthAt = iso ? 5 : 0, dayAt = iso ? 8 : 3;
+        out[monthAt] = (char) ('0' + m / 10);
+        out[monthAt + 1] = (char) ('0' + m % 10);
+        out[dayAt] = (char) ('0' + d / 10);
+        out[dayAt + 1] = (char) ('0' + d % 10);
+        char separator = iso ? '-' : '/';
+        out[iso ? 4 : 2] = separator;
+        out[iso ? 7 : 5] = separator;
+        return new String(out);
+    }// end format
+
+    /**
+     * Returns a date as a typed statement parameter.
+     *
+     * @param day the epoch day
+     * @return the date
+     */
+    public static java.sql.Date sql(long day) {
+        return java.sql.Date.valueOf(LocalDate.ofEpochDay(day));
+    }// end sql
+
+    /**
+     * Returns a date typed at a prompt as a statement parameter: a
+     * java.sql.Date when it is MM/DD/YYYY, otherwise the text, for the server
+     * to read as before.
+     *
+     * @param text the date
+     * @return the parameter
+     */
+    public static Object param(String text) {
+        int day = tryParse(text);
+        return day == Integer.MIN_VALUE ? text : sql(day);
+    }// end param
+
+}// end Dates
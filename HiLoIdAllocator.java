@@ -0,0 +1,55 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reserves ids from a counter table holding the next free id of every table.
+ * A reservation moves the counter forward by the block size, so clients with
+ * different block sizes can share the table. Missing counters are seeded from
+ * the current MAX of the key column.
+ */
+public class HiLoIdAllocator extends BlockIdAllocator {
+
+    private final int blockSize;
+    private volatile boolean created = false;
+
+    public HiLoIdAllocator(ConnectionPool pool, int blockSize) {
+        super(pool);
+        this.blockSize = blockSize;
+    }// end HiLoIdAllocator
+
+    protected Block reserve(String tableName, String fieldName) throws SQLException {
+        ConnectionPool.Pooled p = pool.borrow();
+        try {
+            if (!created) {
+                p.statements.get("CREATE TABLE IF NOT EXISTS id_hilo (tablename VARCHAR(64) PRIMARY KEY, "
+                        + "nextvalue BIGINT NOT NULL)").executeUpdate();
+                created = true;
+            } // end if
+
+            long first = advance(p, tableName);
+            if (first < 0) {
+                // first reservation for this table, start after the existing rows
+                p.statements.get(String.format("INSERT INTO id_hilo SELECT '%s', COALESCE(MAX(%s), 0) + 1 FROM %s "
+                        + "ON CONFLICT (tablename) DO NOTHING", tableName, fieldName, tableName)).executeUpdate();
+                first = advance(p, tableName);
+            } // end if
+            return new Block(first, first + blockSize);
+        } finally {
+            pool.release(p);
+        } // end try
+    }// end reserve
+
+    // moves the counter forward by one block and returns the old value, -1 if missing
+    private long advance(ConnectionPool.Pooled p, String tableName) throws SQLException {
+        PreparedStatement stmt = p.statements
+                .get("UPDATE id_hilo SET nextvalue = nextvalue + ? WHERE tablename = ? RETURNING nextvalue - ?");
+        stmt.setLong(1, blockSize);
+        stmt.setString(2, tableName);
+        stmt.setLong(3, blockSize);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : -1;
+        } // end try
+    }// end advance
+
+}// end HiLoIdAllocator
@@ -0,0 +1,100 @@
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out primary key values for the insert paths of DBProject.
+ *
+ * The allocator is chosen with the system property dbproject.ids (sequence,
+ * hilo or max) and the number of ids reserved per round trip with
+ * dbproject.idBlock.
+ */
+public interface IdAllocator {
+
+    // table and key column of every insert path in DBProject
+    String[][] ID_COLUMNS = {
+            { "customer", "customerid" },
+            { "room", "roomno" },
+            { "maintenancecompany", "cmpid" },
+            { "repair", "rid" },
+            { "booking", "bid" },
+            { "assigned", "asgid" },
+            { "request", "reqid" } };
+
+    /**
+     * Returns an id that no other caller of this allocator (in this or any
+     * other client using the same mode) will ever receive for the table.
+     *
+     * @param tableName the table the id is for
+     * @param fieldName the key column of the table
+     * @return the next free id
+     * @throws java.sql.SQLException when a new block could not be reserved
+     */
+    long nextId(String tableName, String fieldName) throws SQLException;
+
+    /**
+     * Creates the allocator selected by the dbproject.ids property.
+     *
+     * @param pool the pool whose connections reserve the blocks
+     * @return the configured allocator
+     */
+    static IdAllocator create(ConnectionPool pool) {
+        String mode = System.getProperty("dbproject.ids", "hilo");
+        int block = Integer.getInteger("dbproject.idBlock", 50);
+        switch (mode) {
+        case "sequence":
+            return new SequenceIdAllocator(pool);
+        case "hilo":
+            return new HiLoIdAllocator(pool, block);
+        case "max":
+            return new MaxIdAllocator(pool);
+        default:
+            throw new IllegalArgumentException("Unknown id allocator: " + mode);
+        }
+    }// end create
+
+    /**
+     * Draws ids for one table from many threads at once and counts the values
+     * that were handed out more than once.
+     *
+     * @param allocator the allocator under test
+     * @param tableName the table to draw ids for
+     * @param fieldName the key column of the table
+     * @param threads   the number of concurrent callers
+     * @param perThread the number of ids each caller draws
+     * @return the number of duplicate ids seen
+     * @throws java.lang.InterruptedException when interrupted while waiting
+     */
+    static int countDuplicates(IdAllocator allocator, String tableName, String fieldName, int threads,
+            int perThread) throws InterruptedException {
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        if (!seen.add(allocator.nextId(tableName, fieldName)))
+                            duplicates.incrementAndGet();
+                    } // end for
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    System.err.println(e.getMessage());
+                } // end try
+            });
+            workers[t].start();
+        } // end for
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        if (errors.get() > 0)
+            throw new IllegalStateException(errors.get() + " threads failed to draw ids");
+        return duplicates.get();
+    }// end countDuplicates
+
+}// end IdAllocator
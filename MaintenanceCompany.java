@@ -0,0 +1,26 @@
+import java.sql.Types;
+
+/**
+ * A row of MaintenanceCompany.
+ *
+ * Queries mapped by MAPPER select cmpid, name, address and iscertified, in
+ * this order.
+ */
+public record MaintenanceCompany(int cmpId, String name, String address, boolean certified) {
+
+    public static final String[] COLUMNS = { "cmpid", "name", "address", "iscertified" };
+    public static final int[] TYPES = { Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.BOOLEAN };
+
+    public static final RowMapper<MaintenanceCompany> MAPPER = rs -> new MaintenanceCompany(rs.getInt(1),
+            rs.getString(2), rs.getString(3), rs.getBoolean(4));
+
+    /**
+     * Returns the row as the text Postgres prints for it, in COLUMNS order.
+     *
+     * @return the values
+     */
+    public String[] values() {
+        return new String[] { String.valueOf(cmpId), name, address, certified ? "t" : "f" };
+    }// end values
+
+}// end MaintenanceCompany
@@ -0,0 +1,34 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The original MAX()+1 scheme. It costs one round trip per insert and gives
+ * the same id to concurrent sessions; it is kept for databases that cannot be
+ * migrated.
+ */
+public class MaxIdAllocator implements IdAllocator {
+
+    private final ConnectionPool pool;
+
+    public MaxIdAllocator(ConnectionPool pool) {
+        this.pool = pool;
+    }// end MaxIdAllocator
+
+    public long nextId(String tableName, String fieldName) throws SQLException {
+        String query = "Select Max(" + fieldName + ") from " + tableName;
+        long next = 0;
+
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery(query);
+            while (rs.next()) {
+                next = rs.getLong(1) + 1;
+            } // end while
+        } finally {
+            pool.release(p);
+        } // end try
+        return next;
+    }// end nextId
+
+}// end MaxIdAllocator
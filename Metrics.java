@@ -0,0 +1,426 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters for every database call of the client.
+ *
+ * Each operation - a named statement, "adhoc" for SQL text, or
+ * "nextId.table" for the id allocator - gets a latency histogram, a row
+ * count and an error count; failed calls are also counted by SQLState. The
+ * time spent waiting for a pooled connection has a histogram of its own.
+ *
+ * The counters are published as the MXBean dbproject:type=Metrics and, when
+ * dbproject.metrics.file is set, written in the Prometheus text format to
+ * that file every dbproject.metrics.interval seconds and on exit. Calls slower
+ * than dbproject.metrics.slowMillis (200, negative to disable, 0 traces every
+ * call) are logged one per line to dbproject.metrics.slowLog, standard error
+ * by default.
+ */
+public class Metrics implements MetricsMXBean {
+
+    /**
+     * A histogram of non-negative values in the layout of HdrHistogram:
+     * values below 32 are counted exactly, larger ones in 16 buckets per power
+     * of two, so a percentile is off by at most 1/16. Recording is lock-free.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int HALF = SUB / 2;
+        private static final int BUCKETS = SUB + (63 - SUB_BITS + 1) * HALF;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get())
+                max.accumulateAndGet(value, Math::max);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB)
+                return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+            return SUB + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+        }
+
+        // the largest value counted in a bucket
+        static long highest(int bucket) {
+            if (bucket < SUB)
+                return bucket;
+            int shift = (bucket - SUB) / HALF + 1;
+            long mantissa = (bucket - SUB) % HALF + HALF;
+            return ((mantissa + 1) << shift) - 1;
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // the value below which the fraction q of the recorded values fall
+        long percentile(double q) {
+            long total = count.sum();
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return Math.min(highest(i), max.get());
+            } // end for
+            return max.get();
+        }
+    }// end Histogram
+
+    // the counters of one operation
+    static final class Operation {
+        final Histogram latency = new Histogram();
+        final LongAdder rows = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }// end Operation
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final ConnectionPool pool;
+    private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> sqlStates = new ConcurrentHashMap<>();
+    private final LongAdder slowCalls = new LongAdder();
+    private final long slowNanos = Long.getLong("dbproject.metrics.slowMillis", 200) * 1000000;
+    private final PrintStream slowLog;
+    private final Path file;
+    private final ScheduledExecutorService dumper;
+    private ObjectName name = null;
+    private boolean closed = false;
+
+    /**
+     * Creates the counters of a client.
+     *
+     * @param pool    the pool whose counters are exported too
+     * @param publish whether to register the MXBean now, see publish()
+     */
+    public Metrics(ConnectionPool pool, boolean publish) {
+        this.pool = pool;
+
+        String log = System.getProperty("dbproject.metrics.slowLog");
+        PrintStream out = System.err;
+        if (log != null) {
+            try {
+                out = new PrintStream(new FileOutputStream(log, true), true, "UTF-8");
+            } catch (IOException e) {
+                System.err.println("Slow call log " + log + " could not be opened, using standard error: " + e);
+            } // end try
+        } // end if
+        this.slowLog = out;
+
+        String dump = System.getProperty("dbproject.metrics.file");
+        this.file = dump == null ? null : Paths.get(dump);
+        if (this.file != null) {
+            long interval = Long.getLong("dbproject.metrics.interval", 10);
+            this.dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            this.dumper.scheduleWithFixedDelay(this::dump, interval, interval, TimeUnit.SECONDS);
+        } else {
+            this.dumper = null;
+        } // end if
+
+        if (publish)
+            publish();
+    }// end Metrics
+
+    public Metrics(ConnectionPool pool) {
+        this(pool, true);
+    }// end Metrics
+
+    /**
+     * Registers the counters as the dbproject:type=Metrics MXBean. Starting
+     * the platform MBean server takes tens of milliseconds, so a client that
+     * must start fast does it on a background thread.
+     */
+    public synchronized void publish() {
+        if (name != null || closed)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            int instance = INSTANCES.getAndIncrement();
+            ObjectName objectName = new ObjectName(
+                    "dbproject:type=Metrics" + (instance == 0 ? "" : ",instance=" + instance));
+            server.registerMBean(this, objectName);
+            this.name = objectName;
+        } catch (JMException e) {
+            System.err.println("Metrics are not published over JMX: " + e);
+        } // end try
+    }// end publish
+
+    private Operation operation(String op) {
+        Operation o = operations.get(op);
+        return o != null ? o : operations.computeIfAbsent(op, k -> new Operation());
+    }// end operation
+
+    /**
+     * Records a call that succeeded.
+     *
+     * @param op     the operation
+     * @param start  System.nanoTime() when the call started
+     * @param rows   the rows changed or returned
+     * @param detail the parameters, or the SQL text, for the slow call log
+     * @return rows
+     */
+    public int ok(String op, long start, int rows, Object detail) {
+        long nanos = System.nanoTime() - start;
+        Operation o = operation(op);
+        o.latency.record(nanos);
+        o.rows.add(rows);
+        if (slowNanos >= 0 && nanos >= slowNanos)
+            slow(op, nanos, "rows=" + rows, detail);
+        return rows;
+    }// end ok
+
+    /**
+     * Records a call that failed.
+     *
+     * @param op     the operation
+     * @param start  System.nanoTime() when the call started
+     * @param e      the failure
+     * @param detail the parameters, or the SQL text, for the slow call log
+     * @return e, to be rethrown
+     */
+    public <E extends Exception> E failed(String op, long start, E e, Object detail) {
+        long nanos = System.nanoTime() - start;
+        Operation o = operation(op);
+        o.latency.record(nanos);
+        o.errors.increment();
+        String state = e instanceof SQLException && ((SQLException) e).getSQLState() != null
+                ? ((SQLException) e).getSQLState()
+                : "none";
+        sqlStates.computeIfAbsent(state, k -> new LongAdder()).increment();
+        if (slowNanos >= 0 && nanos >= slowNanos)
+            slow(op, nanos, "sqlstate=" + state, detail);
+        return e;
+    }// end failed
+
+    private void slow(String op, long nanos, String outcome, Object detail) {
+        slowCalls.increment();
+        String params = detail instanceof Object[] ? Arrays.toString((Object[]) detail) : String.valueOf(detail);
+        slowLog.println(String.format("%s thread=%s op=%s ms=%.3f %s params=%s", Instant.now(),
+                Thread.currentThread().getName(), op, nanos / 1e6, outcome, params.replace('\n', ' ')));
+    }// end slow
+
+    /**
+     * Returns one line per operation: calls, errors, rows and latency
+     * percentiles.
+     *
+     * @return the table
+     */
+    public String summary() {
+        StringBuilder out = new StringBuilder(String.format("%-28s %9s %7s %10s %10s %10s %10s%n", "operation",
+                "calls", "errors", "rows", "p50 ms", "p99 ms", "max ms"));
+        for (Map.Entry<String, Operation> e : new TreeMap<>(operations).entrySet()) {
+            Histogram h = e.getValue().latency;
+            out.append(String.format("%-28s %9d %7d %10d %10.3f %10.3f %10.3f%n", e.getKey(), h.count(),
+                    e.getValue().errors.sum(), e.getValue().rows.sum(), h.percentile(0.5) / 1e6,
+                    h.percentile(0.99) / 1e6, h.max() / 1e6));
+        } // end for
+        Histogram w = pool.waits;
+        out.append(String.format("%-28s %9d %7s %10s %10.3f %10.3f %10.3f%n", "pool wait", w.count(), "", "",
+                w.percentile(0.5) / 1e6, w.percentile(0.99) / 1e6, w.max() / 1e6));
+        if (!sqlStates.isEmpty())
+            out.append("errors by SQLState: ").append(new TreeMap<>(getErrorsBySqlState())).append('\n');
+        return out.toString();
+    }// end summary
+
+    /**
+     * Returns the counters in the Prometheus text exposition format.
+     *
+     * @return the exposition
+     */
+    public String getPrometheus() {
+        StringBuilder out = new StringBuilder();
+        TreeMap<String, Operation> sorted = new TreeMap<>(operations);
+
+        out.append("# HELP dbproject_call_seconds Latency of the database calls.\n");
+        out.append("# TYPE dbproject_call_seconds summary\n");
+        for (Map.Entry<String, Operation> e : sorted.entrySet())
+            summary(out, "dbproject_call_seconds", "op=\"" + e.getKey() + "\",", e.getValue().latency);
+
+        out.append("# HELP dbproject_call_rows_total Rows changed or returned by the database calls.\n");
+        out.append("# TYPE dbproject_call_rows_total counter\n");
+        for (Map.Entry<String, Operation> e : sorted.entrySet())
+            out.append("dbproject_call_rows_total{op=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().rows.sum()).append('\n');
+
+        out.append("# HELP dbproject_call_errors_total Database calls that failed.\n");
+        out.append("# TYPE dbproject_call_errors_total counter\n");
+        for (Map.Entry<String, Operation> e : sorted.entrySet())
+            out.append("dbproject_call_errors_total{op=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().errors.sum()).append('\n');
+
+        out.append("# HELP dbproject_sql_errors_total Failed database calls by SQLState.\n");
+        out.append("# TYPE dbproject_sql_errors_total counter\n");
+        for (Map.Entry<String, Long> e : new TreeMap<>(getErrorsBySqlState()).entrySet())
+            out.append("dbproject_sql_errors_total{sqlstate=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue()).append('\n');
+
+        out.append("# HELP dbproject_slow_calls_total Database calls above the slow call threshold.\n");
+        out.append("# TYPE dbproject_slow_calls_total counter\n");
+        out.append("dbproject_slow_calls_total ").append(slowCalls.sum()).append('\n');
+
+        out.append("# HELP dbproject_pool_wait_seconds Time spent waiting for a pooled connection.\n");
+        out.append("# TYPE dbproject_pool_wait_seconds summary\n");
+        summary(out, "dbproject_pool_wait_seconds", "", pool.waits);
+        out.append("# HELP dbproject_pool_timeouts_total Borrows that gave up waiting for a connection.\n");
+        out.append("# TYPE dbproject_pool_timeouts_total counter\n");
+        out.append("dbproject_pool_timeouts_total ").append(pool.timeouts()).append('\n');
+        out.append("# HELP dbproject_pool_size Connections the pool may open.\n");
+        out.append("# TYPE dbproject_pool_size gauge\n");
+        out.append("dbproject_pool_size ").append(pool.size()).append('\n');
+        return out.toString();
+    }// end getPrometheus
+
+    private static void summary(StringBuilder out, String metric, String labels, Histogram h) {
+        for (double q : QUANTILES)
+            out.append(metric).append('{').append(labels).append("quantile=\"").append(q).append("\"} ")
+                    .append(h.percentile(q) / 1e9).append('\n');
+        String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(metric).append("_sum").append(plain).append(' ').append(h.sum() / 1e9).append('\n');
+        out.append(metric).append("_count").append(plain).append(' ').append(h.count()).append('\n');
+    }// end summary
+
+    /**
+     * Writes the exposition to dbproject.metrics.file. The file is replaced
+     * at once, so a scraper never reads half of it.
+     */
+    public void dump() {
+        if (file == null)
+            return;
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(tmp), StandardCharsets.UTF_8)) {
+            out.write(getPrometheus());
+        } catch (IOException e) {
+            System.err.println("Metrics could not be written to " + tmp + ": " + e);
+            return;
+        } // end try
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Metrics could not be written to " + file + ": " + e);
+        } // end try
+    }// end dump
+
+    /**
+     * Writes the last dump, stops the dump thread and withdraws the MXBean.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dump();
+        } // end if
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                // already gone.
+            } // end try
+            name = null;
+        } // end if
+        if (slowLog != System.err)
+            slowLog.close();
+    }// end close
+
+    // ---------------------------------------------------------------- MXBean
+
+    private Map<String, Long> each(ToLongFunction<Operation> f) {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Operation> e : operations.entrySet())
+            values.put(e.getKey(), f.applyAsLong(e.getValue()));
+        return values;
+    }// end each
+
+    public Map<String, Long> getCalls() {
+        return each(o -> o.latency.count());
+    }// end getCalls
+
+    public Map<String, Long> getRows() {
+        return each(o -> o.rows.sum());
+    }// end getRows
+
+    public Map<String, Long> getErrors() {
+        return each(o -> o.errors.sum());
+    }// end getErrors
+
+    public Map<String, Double> getP50Millis() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Operation> e : operations.entrySet())
+            values.put(e.getKey(), e.getValue().latency.percentile(0.5) / 1e6);
+        return values;
+    }// end getP50Millis
+
+    public Map<String, Double> getP99Millis() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Operation> e : operations.entrySet())
+            values.put(e.getKey(), e.getValue().latency.percentile(0.99) / 1e6);
+        return values;
+    }// end getP99Millis
+
+    public Map<String, Long> getErrorsBySqlState() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : sqlStates.entrySet())
+            values.put(e.getKey(), e.getValue().sum());
+        return values;
+    }// end getErrorsBySqlState
+
+    public double getPoolWaitP99Millis() {
+        return pool.waits.percentile(0.99) / 1e6;
+    }// end getPoolWaitP99Millis
+
+    public long getSlowCalls() {
+        return slowCalls.sum();
+    }// end getSlowCalls
+
+}// end Metrics
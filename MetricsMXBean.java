@@ -0,0 +1,26 @@
+import java.util.Map;
+
+/**
+ * The counters of Metrics as published over JMX, keyed by operation.
+ */
+public interface MetricsMXBean {
+
+    Map<String, Long> getCalls();
+
+    Map<String, Long> getRows();
+
+    Map<String, Long> getErrors();
+
+    Map<String, Double> getP50Millis();
+
+    Map<String, Double> getP99Millis();
+
+    Map<String, Long> getErrorsBySqlState();
+
+    double getPoolWaitP99Millis();
+
+    long getSlowCalls();
+
+    String getPrometheus();
+
+}// end MetricsMXBean
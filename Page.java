@@ -0,0 +1,116 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * One page of a list operation, and the cursor of the page after it.
+ *
+ * The cursor holds the sort key of the last row of the page, e.g.
+ * (bookingdate, bid), so the next page is read by seeking past it in the
+ * index rather than by skipping rows with OFFSET: every page costs what the
+ * first one does. It also holds a hash of the list's arguments; a cursor
+ * handed to another list, or to the same list with other arguments, is
+ * refused. Callers treat it as an opaque string.
+ *
+ * @param <T> the row type
+ */
+public final class Page<T> {
+
+    public final List<T> rows;
+
+    // the cursor of the next page, null on the last page
+    public final String next;
+
+    Page(List<T> rows, String next) {
+        this.rows = rows;
+        this.next = next;
+    }
+
+    /**
+     * Makes a page of rows read with a limit of size + 1: the extra row only
+     * tells that there is a next page, and is dropped.
+     *
+     * @param <T>     the row type
+     * @param fetched the rows read
+     * @param size    the page size
+     * @param list    the name of the list
+     * @param filter  the arguments of the list
+     * @param key     the sort key of a row
+     * @return the page
+     */
+    static <T> Page<T> of(List<T> fetched, int size, String list, Object[] filter, Function<T, Object[]> key) {
+        if (fetched.size() <= size)
+            return new Page<>(fetched, null);
+        List<T> rows = new ArrayList<>(fetched.subList(0, size));
+        return new Page<>(rows, cursor(list, filter, key.apply(rows.get(size - 1))));
+    }// end of
+
+    /**
+     * Encodes a cursor.
+     *
+     * @param list   the name of the list
+     * @param filter the arguments of the list
+     * @param keys   the sort key of the last row
+     * @return the cursor
+     */
+    static String cursor(String list, Object[] filter, Object... keys) {
+        StringBuilder text = new StringBuilder(list).append('|').append(hash(filter));
+        for (Object key : keys)
+            text.append('|').append(key);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8));
+    }// end cursor
+
+    /**
+     * Decodes a cursor of a list.
+     *
+     * @param cursor the cursor, null for the first page
+     * @param list   the name of the list
+     * @param filter the arguments of the list
+     * @param count  the number of values in the sort key
+     * @return the sort key of the last row of the previous page, as text, or
+     *         null for the first page
+     * @throws java.lang.IllegalArgumentException when the cursor is not one of
+     *                                            this list with these arguments
+     */
+    static String[] keys(String cursor, String list, Object[] filter, int count) {
+        if (cursor == null || cursor.isEmpty())
+            return null;
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", -1);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Not a cursor: " + cursor);
+        } // end try
+        if (parts.length != count + 2 || !parts[0].equals(list) || !parts[1].equals(String.valueOf(hash(filter))))
+            throw new IllegalArgumentException("The cursor belongs to another list: " + cursor);
+        return Arrays.copyOfRange(parts, 2, parts.length);
+    }// end keys
+
+    // stable across processes, unlike Object.hashCode
+    private static int hash(Object[] filter) {
+        return Arrays.deepToString(filter).hashCode();
+    }// end hash
+
+    /**
+     * Writes the rows to a sink.
+     *
+     * @param sink    the sink
+     * @param columns the column names
+     * @param types   the java.sql.Types of the columns
+     * @param values  the text of a row, in column order
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the sink failed
+     */
+    public int write(ResultSink sink, String[] columns, int[] types, Function<T, String[]> values)
+            throws SQLException {
+        List<String[]> text = new ArrayList<>(rows.size());
+        for (T row : rows)
+            text.add(values.apply(row));
+        return sink.write(columns, types, text);
+    }// end write
+
+}// end Page
@@ -0,0 +1,455 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Range partitions of Booking, by month of bookingdate, and of Repair, by
+ * year of repairdate.
+ *
+ *   booking_p202005, booking_p202006, ...   [first of month, first of next)
+ *   repair_p2020, repair_p2021, ...         [January 1st, next January 1st)
+ *   booking_default, repair_default         every date without a partition
+ *
+ * Schema migration 8 turns both tables into partitioned ones. maintain()
+ * then keeps dbproject.partitions.ahead months (3) and one year of empty
+ * partitions ahead of today, splits the rows that landed in a default
+ * partition into partitions of their own, and detaches the partitions
+ * older than dbproject.partitions.retainMonths and retainYears (0, keep
+ * everything) into the archive schema. Archived rows stay counted in the
+ * aggregate tables.
+ *
+ * The date predicates of the named queries compare the bare column with
+ * typed dates, so the planner keeps only the partitions of the range
+ * asked for; check() confirms it from the plans.
+ *
+ * A primary key of a partitioned table must include the date, so bid and
+ * rid are no longer unique on their own. Schema migration 10 keeps them in
+ * the unpartitioned tables booking_id and repair_id, filled by a trigger
+ * in the statement that inserts the rows; a second row with the same id
+ * fails that statement. duplicateIds() reports the ids stored twice before.
+ */
+public class Partitions {
+
+    private static final Pattern PARTITION = Pattern.compile("\\b(booking|repair)_(p\\d{4,6}|default)\\b");
+
+    // creates one partition; rows of its range waiting in the default partition are moved into it
+    static final String CREATE_PARTITION = "CREATE OR REPLACE FUNCTION create_range_partition(parent_table TEXT, "
+            + "child_table TEXT, key_column TEXT, low_date DATE, high_date DATE) RETURNS BOOLEAN "
+            + "LANGUAGE plpgsql AS $$\n"
+            + "BEGIN\n"
+            + "  IF to_regclass(child_table) IS NOT NULL THEN\n"
+            + "    RETURN FALSE;\n"
+            + "  END IF;\n"
+            + "  EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', parent_table, parent_table || '_default');\n"
+            + "  EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)', child_table, "
+            + "parent_table, low_date, high_date);\n"
+            + "  EXECUTE format('WITH moved AS (DELETE FROM %I WHERE %I >= %L AND %I < %L RETURNING *) "
+            + "INSERT INTO %I SELECT * FROM moved', parent_table || '_default', key_column, low_date, key_column, "
+            + "high_date, child_table);\n"
+            + "  EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I DEFAULT', parent_table, "
+            + "parent_table || '_default');\n"
+            + "  RETURN TRUE;\n"
+            + "END $$";
+
+    private Partitions() {
+    }
+
+    /**
+     * Returns the DDL that turns a table into one partitioned by a date
+     * column: the rows are copied into partitions from the month or year of
+     * the oldest row up to the ones ahead of today, the foreign keys move to
+     * the new table and the ones pointing at it are dropped, since its
+     * primary key now includes the date; migration 10 keeps the ids unique.
+     * Id sequences made by migrate-ids move with the column. Indexes and
+     * triggers are created again by the caller.
+     *
+     * @param table   the table
+     * @param key     its date column
+     * @param id      its id column
+     * @param monthly true for monthly partitions, false for yearly ones
+     * @return the statements
+     */
+    static String[] migration(String table, String key, String id, boolean monthly) {
+        String old = table + "_unpartitioned";
+        String unit = monthly ? "month" : "year";
+        String ahead = monthly ? Integer.getInteger("dbproject.partitions.ahead", 3) + " months" : "1 year";
+        return new String[] {
+                "ALTER TABLE " + table + " RENAME TO " + old,
+                "CREATE TABLE " + table + " (LIKE " + old + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS) "
+                        + "PARTITION BY RANGE (" + key + ")",
+                "CREATE TABLE " + table + "_default PARTITION OF " + table + " DEFAULT",
+                "DO $$\n"
+                        + "DECLARE low_date DATE;\n"
+                        + "BEGIN\n"
+                        + "  FOR low_date IN SELECT generate_series(date_trunc('" + unit + "', COALESCE(MIN(" + key
+                        + "), CURRENT_DATE)::timestamp), date_trunc('" + unit + "', CURRENT_DATE + INTERVAL '"
+                        + ahead + "'), INTERVAL '1 " + unit + "')::date FROM " + old + " LOOP\n"
+                        + "    PERFORM create_range_partition('" + table + "', '" + table + "_p' || to_char(low_date, '"
+                        + (monthly ? "YYYYMM" : "YYYY") + "'), '" + key + "', low_date, (low_date + INTERVAL '1 "
+                        + unit + "')::date);\n"
+                        + "  END LOOP;\n"
+                        + "END $$",
+                "INSERT INTO " + table + " SELECT * FROM " + old,
+                "DO $$\n"
+                        + "DECLARE c RECORD;\n"
+                        + "BEGIN\n"
+                        + "  FOR c IN SELECT conname, pg_get_constraintdef(oid) AS def FROM pg_constraint "
+                        + "WHERE conrelid = '" + old + "'::regclass AND contype = 'f' LOOP\n"
+                        + "    EXECUTE format('ALTER TABLE " + table + " ADD CONSTRAINT %I %s', c.conname, c.def);\n"
+                        + "  END LOOP;\n"
+                        + "  FOR c IN SELECT conrelid::regclass AS referencing, conname FROM pg_constraint "
+                        + "WHERE confrelid = '" + old + "'::regclass LOOP\n"
+                        + "    EXECUTE format('ALTER TABLE %s DROP CONSTRAINT %I', c.referencing, c.conname);\n"
+                        + "  END LOOP;\n"
+                        + "  FOR c IN SELECT s.oid::regclass AS seq, a.attname FROM pg_depend d JOIN pg_class s "
+                        + "ON s.oid = d.objid AND s.relkind = 'S' JOIN pg_attribute a ON a.attrelid = d.refobjid "
+                        + "AND a.attnum = d.refobjsubid WHERE d.refobjid = '" + old + "'::regclass "
+                        + "AND d.deptype = 'a' LOOP\n"
+                        + "    EXECUTE format('ALTER SEQUENCE %s OWNED BY " + table + ".%I', c.seq, c.attname);\n"
+                        + "  END LOOP;\n"
+                        + "END $$",
+                "DROP TABLE " + old,
+                "ALTER TABLE " + table + " ADD PRIMARY KEY (" + id + ", " + key + ")" };
+    }// end migration
+
+    /**
+     * Returns the DDL of migration 10 for one table: the unpartitioned table
+     * of its ids, filled from the rows already there, and the statement
+     * triggers that keep it up to date. An id is removed when its last row
+     * is deleted; the rows of archived partitions keep theirs.
+     *
+     * @param table booking or repair
+     * @param id    its id column
+     * @return the statements
+     */
+    static String[] ids(String table, String id) {
+        String ids = table + "_id";
+        return new String[] {
+                "CREATE TABLE IF NOT EXISTS " + ids + " (" + id + " INTEGER PRIMARY KEY)",
+                "INSERT INTO " + ids + " SELECT DISTINCT " + id + " FROM " + table + " ON CONFLICT DO NOTHING",
+                "CREATE OR REPLACE FUNCTION " + table + "_ids() RETURNS trigger LANGUAGE plpgsql AS $$\n"
+                        + "BEGIN\n"
+                        + "  IF TG_OP IN ('DELETE', 'UPDATE') THEN\n"
+                        + "    DELETE FROM " + ids + " i WHERE i." + id + " IN (SELECT " + id + " FROM old_rows)\n"
+                        + "      AND NOT EXISTS (SELECT 1 FROM " + table + " t WHERE t." + id + " = i." + id + ");\n"
+                        + "  END IF;\n"
+                        + "  IF TG_OP = 'INSERT' THEN\n"
+                        + "    INSERT INTO " + ids + " SELECT " + id + " FROM new_rows;\n"
+                        + "  ELSIF TG_OP = 'UPDATE' THEN\n"
+                        + "    INSERT INTO " + ids + " SELECT " + id + " FROM new_rows\n"
+                        + "      WHERE " + id + " NOT IN (SELECT " + id + " FROM old_rows);\n"
+                        + "  END IF;\n"
+                        + "  RETURN NULL;\n"
+                        + "END $$",
+                "DROP TRIGGER IF EXISTS " + table + "_ids_insert ON " + table,
+                "CREATE TRIGGER " + table + "_ids_insert AFTER INSERT ON " + table + " REFERENCING NEW TABLE AS "
+                        + "new_rows FOR EACH STATEMENT EXECUTE PROCEDURE " + table + "_ids()",
+                "DROP TRIGGER IF EXISTS " + table + "_ids_update ON " + table,
+                "CREATE TRIGGER " + table + "_ids_update AFTER UPDATE ON " + table + " REFERENCING OLD TABLE AS "
+                        + "old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE " + table + "_ids()",
+                "DROP TRIGGER IF EXISTS " + table + "_ids_delete ON " + table,
+                "CREATE TRIGGER " + table + "_ids_delete AFTER DELETE ON " + table + " REFERENCING OLD TABLE AS "
+                        + "old_rows FOR EACH STATEMENT EXECUTE PROCEDURE " + table + "_ids()" };
+    }// end ids
+
+    /**
+     * Creates the partitions ahead of today and those of the dates waiting
+     * in the default partitions, then archives the partitions older than the
+     * retention. Each partition is created or detached in its own
+     * transaction.
+     *
+     * @param pool the pool to run the DDL on
+     * @return the number of partitions created or archived
+     * @throws java.sql.SQLException when the tables are not partitioned yet, or the DDL failed
+     */
+    public static int maintain(ConnectionPool pool) throws SQLException {
+        int ahead = Integer.getInteger("dbproject.partitions.ahead", 3);
+        int retainMonths = Integer.getInteger("dbproject.partitions.retainMonths", 0);
+        int retainYears = Integer.getInteger("dbproject.partitions.retainYears", 0);
+        LocalDate month = LocalDate.now().withDayOfMonth(1);
+        int changed = 0;
+
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            requirePartitioned(stmt);
+            List<LocalDate> months = new ArrayList<>(), years = new ArrayList<>();
+            for (int i = 0; i <= ahead; i++)
+                months.add(month.plusMonths(i));
+            years.add(month.withMonth(1));
+            years.add(month.withMonth(1).plusYears(1));
+            months.addAll(waiting(stmt, "booking", "bookingdate", "month"));
+            years.addAll(waiting(stmt, "repair", "repairdate", "year"));
+
+            PreparedStatement create = p.connection.prepareStatement("SELECT create_range_partition(?, ?, ?, ?, ?)");
+            for (LocalDate first : months)
+                changed += create(create, "booking", "bookingdate", first, first.plusMonths(1));
+            for (LocalDate first : years)
+                changed += create(create, "repair", "repairdate", first, first.plusYears(1));
+            create.close();
+
+            if (retainMonths > 0)
+                changed += archive(p, stmt, "booking", month.minusMonths(retainMonths));
+            if (retainYears > 0)
+                changed += archive(p, stmt, "repair", month.withMonth(1).minusYears(retainYears));
+        } finally {
+            pool.release(p);
+        } // end try
+        return changed;
+    }// end maintain
+
+    private static void requirePartitioned(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT to_regclass('booking_default') IS NOT NULL "
+                + "AND to_regclass('repair_default') IS NOT NULL")) {
+            rs.next();
+            if (!rs.getBoolean(1))
+                throw new SQLException("Booking and Repair are not partitioned, run the schema mode first");
+        } // end try
+    }// end requirePartitioned
+
+    // the first days of the months or years of the rows in the default partition
+    private static List<LocalDate> waiting(Statement stmt, String table, String key, String unit)
+            throws SQLException {
+        List<LocalDate> firsts = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery("SELECT DISTINCT date_trunc('" + unit + "', " + key + ")::date FROM "
+                + table + "_default")) {
+            while (rs.next())
+                firsts.add(rs.getDate(1).toLocalDate());
+        } // end try
+        return firsts;
+    }// end waiting
+
+    private static int create(PreparedStatement create, String table, String key, LocalDate first, LocalDate next)
+            throws SQLException {
+        String name = table + "_p" + (table.equals("booking") ? String.format("%04d%02d", first.getYear(),
+                first.getMonthValue()) : String.format("%04d", first.getYear()));
+        DBProject.bind(create, table, name, key, java.sql.Date.valueOf(first), java.sql.Date.valueOf(next));
+        try (ResultSet rs = create.executeQuery()) {
+            rs.next();
+            if (!rs.getBoolean(1))
+                return 0;
+        } // end try
+        System.out.println("\tcreated " + name);
+        return 1;
+    }// end create
+
+    // detaches the partitions ending on or before the cutoff and moves them to the archive schema
+    private static int archive(ConnectionPool.Pooled p, Statement stmt, String table, LocalDate cutoff)
+            throws SQLException {
+        int archived = 0;
+        for (Map.Entry<String, LocalDate[]> partition : list(stmt, table).entrySet()) {
+            LocalDate[] range = partition.getValue();
+            if (range == null || range[1].isAfter(cutoff))
+                continue;
+            p.connection.setAutoCommit(false);
+            try {
+                stmt.execute("CREATE SCHEMA IF NOT EXISTS archive");
+                stmt.execute("ALTER TABLE " + table + " DETACH PARTITION " + partition.getKey());
+                stmt.execute("ALTER TABLE " + partition.getKey() + " SET SCHEMA archive");
+                p.connection.commit();
+            } catch (SQLException e) {
+                p.connection.rollback();
+                throw e;
+            } finally {
+                p.connection.setAutoCommit(true);
+            } // end try
+            System.out.println("\tarchived " + partition.getKey());
+            archived++;
+        } // end for
+        return archived;
+    }// end archive
+
+    /**
+     * Returns the partitions attached to a table, oldest first.
+     *
+     * @param stmt  the statement to read the catalog with
+     * @param table booking or repair
+     * @return the range of each partition, first day included and last
+     *         excluded, or null for the default partition
+     * @throws java.sql.SQLException when the catalog could not be read
+     */
+    static Map<String, LocalDate[]> list(Statement stmt, String table) throws SQLException {
+        Map<String, LocalDate[]> partitions = new LinkedHashMap<>();
+        try (ResultSet rs = stmt.executeQuery("SELECT c.relname FROM pg_inherits i JOIN pg_class c "
+                + "ON c.oid = i.inhrelid WHERE i.inhparent = '" + table + "'::regclass ORDER BY c.relname")) {
+            while (rs.next())
+                partitions.put(rs.getString(1), range(rs.getString(1)));
+        } // end try
+        return partitions;
+    }// end list
+
+    /**
+     * Returns the range of dates a partition holds, read from its name.
+     *
+     * @param name booking_pYYYYMM or repair_pYYYY
+     * @return the first day included and the first day excluded, or null for
+     *         a default partition
+     */
+    static LocalDate[] range(String name) {
+        int at = name.lastIndexOf("_p");
+        if (at < 0 || name.endsWith("_default"))
+            return null;
+        String digits = name.substring(at + 2);
+        if (digits.length() == 6) {
+            LocalDate first = LocalDate.of(Integer.parseInt(digits.substring(0, 4)),
+                    Integer.parseInt(digits.substring(4)), 1);
+            return new LocalDate[] { first, first.plusMonths(1) };
+        } // end if
+        LocalDate first = LocalDate.of(Integer.parseInt(digits), 1, 1);
+        return new LocalDate[] { first, first.plusYears(1) };
+    }// end range
+
+    /**
+     * Prints the partitions of Booking and Repair with their estimated rows.
+     *
+     * @param pool the pool to read the catalog with
+     * @throws java.sql.SQLException when the catalog could not be read
+     */
+    public static void print(ConnectionPool pool) throws SQLException {
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            requirePartitioned(stmt);
+            for (String table : new String[] { "booking", "repair" }) {
+                Map<String, LocalDate[]> partitions = list(stmt, table);
+                System.out.println(table + ": " + partitions.size() + " partitions");
+                for (Map.Entry<String, LocalDate[]> partition : partitions.entrySet()) {
+                    LocalDate[] range = partition.getValue();
+                    long rows;
+                    try (ResultSet rs = stmt.executeQuery("SELECT GREATEST(reltuples, 0)::bigint FROM pg_class "
+                            + "WHERE relname = '" + partition.getKey() + "'")) {
+                        rs.next();
+                        rows = rs.getLong(1);
+                    } // end try
+                    System.out.println(String.format("\t%-18s %-24s %12d rows", partition.getKey(),
+                            range == null ? "default" : range[0] + " to " + range[1], rows));
+                } // end for
+            } // end for
+        } finally {
+            pool.release(p);
+        } // end try
+    }// end print
+
+    /**
+     * Prints the booking and repair ids held by more than one row, stored
+     * before migration 10 made them unique again.
+     *
+     * @param pool the pool to read the tables with
+     * @return the number of duplicated ids
+     * @throws java.sql.SQLException when the tables could not be read
+     */
+    public static int duplicateIds(ConnectionPool pool) throws SQLException {
+        int duplicated = 0;
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            for (String[] table : new String[][] { { "booking", "bid" }, { "repair", "rid" } }) {
+                try (ResultSet rs = stmt.executeQuery("SELECT " + table[1] + ", COUNT(*) FROM " + table[0]
+                        + " GROUP BY " + table[1] + " HAVING COUNT(*) > 1 ORDER BY " + table[1])) {
+                    while (rs.next()) {
+                        System.out.println(String.format("%-26s %s %d held by %d rows", table[0], table[1],
+                                rs.getInt(1), rs.getLong(2)));
+                        duplicated++;
+                    } // end while
+                } // end try
+            } // end for
+        } finally {
+            pool.release(p);
+        } // end try
+        return duplicated;
+    }// end duplicateIds
+
+    /**
+     * Explains the date-range queries over the month of the newest booking
+     * and flags each one whose plan reads a partition outside the dates it
+     * asks for. The default partition is always read unless a range is
+     * wholly covered by partitions, so it is not flagged.
+     *
+     * @param esql    the connected client
+     * @param verbose whether to print the whole plans, not only the flags
+     * @return the number of queries that were not pruned
+     * @throws java.sql.SQLException when the tables are not partitioned, or a query could not be explained
+     */
+    public static int check(DBProject esql, boolean verbose) throws SQLException {
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            requirePartitioned(stmt);
+            int hotel = 0, room = 0, customer = 0;
+            LocalDate newest = LocalDate.now();
+            try (ResultSet rs = stmt.executeQuery("SELECT hotelid, roomno, customer, bookingdate FROM booking "
+                    + "ORDER BY bookingdate DESC LIMIT 1")) {
+                if (rs.next()) {
+                    hotel = rs.getInt(1);
+                    room = rs.getInt(2);
+                    customer = rs.getInt(3);
+                    newest = rs.getDate(4).toLocalDate();
+                } // end if
+            } // end try
+            int first = (int) newest.withDayOfMonth(1).toEpochDay();
+            int total = list(stmt, "booking").size();
+
+            Map<Sql, Object[]> queries = new LinkedHashMap<>();
+            Map<Sql, int[]> ranges = new LinkedHashMap<>();
+            queries.put(Sql.BOOKINGS_FOR_WEEK, new Object[] { hotel, Dates.sql(first), Dates.sql(first + 6) });
+            ranges.put(Sql.BOOKINGS_FOR_WEEK, new int[] { first, first + 6 });
+            queries.put(Sql.TOP_K_ROOM_PRICE, new Object[] { Dates.sql(first), Dates.sql(first + 20), 10 });
+            ranges.put(Sql.TOP_K_ROOM_PRICE, new int[] { first, first + 20 });
+            queries.put(Sql.TOP_ROOM_PRICES_BY_DAY, new Object[] { Dates.sql(first), Dates.sql(first + 6), 50 });
+            ranges.put(Sql.TOP_ROOM_PRICES_BY_DAY, new int[] { first, first + 6 });
+            queries.put(Sql.TOTAL_COST, new Object[] { hotel, customer, Dates.sql(first - 60), Dates.sql(first) });
+            ranges.put(Sql.TOTAL_COST, new int[] { first - 60, first });
+            queries.put(Sql.AVAILABLE_ROOMS_BETWEEN, new Object[] { hotel, Dates.sql(first), Dates.sql(first + 6) });
+            ranges.put(Sql.AVAILABLE_ROOMS_BETWEEN, new int[] { first, first + 6 });
+            queries.put(Sql.BOOK_ROOM_NIGHT, new Object[] { hotel, room, Dates.sql(first), -1, hotel, room,
+                    Dates.sql(first), customer, 1, new java.math.BigDecimal(1) });
+            ranges.put(Sql.BOOK_ROOM_NIGHT, new int[] { first, first });
+
+            int unpruned = 0;
+            for (Map.Entry<Sql, Object[]> query : queries.entrySet()) {
+                // without ANALYZE the insert is planned, not run
+                List<String> plan = new ArrayList<>();
+                try (PreparedStatement ps = p.connection.prepareStatement("EXPLAIN (COSTS OFF) "
+                        + query.getKey().text)) {
+                    DBProject.bind(ps, query.getValue());
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next())
+                            plan.add(rs.getString(1));
+                    } // end try
+                } // end try
+
+                int[] range = ranges.get(query.getKey());
+                List<String> read = new ArrayList<>(), outside = new ArrayList<>();
+                for (String line : plan) {
+                    Matcher m = PARTITION.matcher(line);
+                    while (m.find()) {
+                        String name = m.group();
+                        if (!m.group(1).equals("booking") || read.contains(name))
+                            continue;
+                        read.add(name);
+                        LocalDate[] dates = range(name);
+                        if (dates != null && (dates[1].toEpochDay() <= range[0] || dates[0].toEpochDay() > range[1]))
+                            outside.add(name);
+                    } // end while
+                } // end for
+                if (!outside.isEmpty())
+                    unpruned++;
+
+                System.out.println(String.format("%-26s %s %d of %d partitions read", query.getKey(),
+                        outside.isEmpty() ? "pruned    " : "NOT PRUNED", read.size(), total));
+                if (verbose || !outside.isEmpty()) {
+                    for (String line : plan)
+                        System.out.println("\t" + line);
+                } // end if
+            } // end for
+            return unpruned;
+        } finally {
+            esql.pool().release(p);
+        } // end try
+    }// end check
+
+}// end Partitions
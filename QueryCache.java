@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache for the results of the report operations.
+ *
+ * Entries are keyed by operation and parameters, tagged with the tables (and
+ * hotels) they were read from, and evicted least recently used once there
+ * are more than dbproject.cache.size of them or when they are older than
+ * dbproject.cache.ttl seconds. The insert paths invalidate the tags they
+ * write to. Results with more than dbproject.cache.maxRows rows are not kept;
+ * they are streamed to the output as they are read.
+ */
+public class QueryCache {
+
+    /**
+     * A materialized query result.
+     */
+    public static final class Result {
+        public final String[] columns;
+        public final int[] types;
+        public final List<String[]> rows;
+        final String[] tags;
+        final long createdAt;
+
+        Result(String[] columns, int[] types, List<String[]> rows, String[] tags) {
+            this.columns = columns;
+            this.types = types;
+            this.rows = rows;
+            this.tags = tags;
+            this.createdAt = System.currentTimeMillis();
+        }
+    }// end Result
+
+    /**
+     * A sink that keeps the rows it is given instead of writing them. Past
+     * maxRows rows it gives up keeping them: the rows so far and every row
+     * after them go to the overflow sink, so a large result is still read
+     * only once.
+     */
+    public static final class Recorder extends ResultSink {
+        final List<String[]> rows = new ArrayList<>();
+        final int maxRows;
+        private final ResultSink overflow;
+        private boolean spilled = false;
+
+        public Recorder(int maxRows, ResultSink overflow) {
+            super(null);
+            this.maxRows = maxRows;
+            this.overflow = overflow;
+        }
+
+        protected void header() {
+            // columns are kept by start().
+        }
+
+        protected void row(String[] values) throws IOException {
+            if (spilled) {
+                overflow.row(values);
+                return;
+            } // end if
+            if (rows.size() < maxRows) {
+                rows.add(values.clone());
+                return;
+            } // end if
+            spilled = true;
+            overflow.start(columns, types);
+            overflow.header();
+            for (String[] kept : rows)
+                overflow.row(kept);
+            rows.clear();
+            overflow.row(values);
+        }
+
+        protected void finish() throws IOException {
+            if (spilled)
+                overflow.finish();
+        }
+
+        boolean complete() {
+            return !spilled;
+        }
+    }// end Recorder
+
+    private final int maxEntries = Integer.getInteger("dbproject.cache.size", 256);
+    private final long ttlMillis = Long.getLong("dbproject.cache.ttl", 60) * 1000;
+    final int maxRows = Integer.getInteger("dbproject.cache.maxRows", 10000);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    // bumped by every invalidation, so a result read across a write is not kept
+    private long generation = 0;
+
+    private final LinkedHashMap<String, Result> entries = new LinkedHashMap<String, Result>(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            if (size() <= maxEntries)
+                return false;
+            evictions.incrementAndGet();
+            return true;
+        }
+    };
+
+    /**
+     * Builds the key of an operation and its parameters.
+     *
+     * @param sql    the operation
+     * @param params the parameters
+     * @return the key
+     */
+    public static String key(Sql sql, Object... params) {
+        StringBuilder key = new StringBuilder(sql.name());
+        for (Object param : params)
+            key.append('\u0001').append(param);
+        return key.toString();
+    }// end key
+
+    /**
+     * Returns a cached result that has not expired.
+     *
+     * @param key the key from key()
+     * @return the result, or null on a miss
+     */
+    public synchronized Result get(String key) {
+        Result result = entries.get(key);
+        if (result != null && System.currentTimeMillis() - result.createdAt > ttlMillis) {
+            entries.remove(key);
+            evictions.incrementAndGet();
+            result = null;
+        } // end if
+        (result == null ? misses : hits).incrementAndGet();
+        return result;
+    }// end get
+
+    /**
+     * Returns the invalidation generation, to be passed to put() by a reader
+     * that takes it before running its query.
+     *
+     * @return the generation
+     */
+    public synchronized long generation() {
+        return generation;
+    }// end generation
+
+    /**
+     * Keeps what a recorder collected unless it had too many rows or an
+     * invalidation happened since the query started.
+     *
+     * @param key        the key from key()
+     * @param recorder   the recorder the query was written to
+     * @param generation the generation() taken before the query
+     * @param tags       the tables (and table#hotel) the result was read from
+     * @return the result, or null when the recorder overflowed and wrote the
+     *         rows itself
+     */
+    public Result put(String key, Recorder recorder, long generation, String... tags) {
+        if (!recorder.complete())
+            return null;
+        Result result = new Result(recorder.columns, recorder.types, recorder.rows, tags);
+        synchronized (this) {
+            if (generation == this.generation)
+                entries.put(key, result);
+        } // end synchronized
+        return result;
+    }// end put
+
+    /**
+     * Drops every entry read from a table, or from one hotel of a table.
+     *
+     * @param tag a table name or table#hotel
+     */
+    public synchronized void invalidate(String tag) {
+        generation++;
+        for (Iterator<Result> it = entries.values().iterator(); it.hasNext();) {
+            for (String t : it.next().tags) {
+                if (t.equals(tag)) {
+                    it.remove();
+                    invalidations.incrementAndGet();
+                    break;
+                } // end if
+            } // end for
+        } // end for
+    }// end invalidate
+
+    /**
+     * Drops every entry.
+     */
+    public synchronized void clear() {
+        generation++;
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+    }// end clear
+
+    public long hits() {
+        return hits.get();
+    }// end hits
+
+    public long misses() {
+        return misses.get();
+    }// end misses
+
+    public long evictions() {
+        return evictions.get();
+    }// end evictions
+
+    public long invalidations() {
+        return invalidations.get();
+    }// end invalidations
+
+    public synchronized int size() {
+        return entries.size();
+    }// end size
+
+    /**
+     * Returns a one-line summary of the cache counters.
+     *
+     * @return the counters
+     */
+    public String stats() {
+        return String.format("cache entries=%d hits=%d misses=%d evictions=%d invalidations=%d", size(), hits(),
+                misses(), evictions(), invalidations());
+    }// end stats
+
+}// end QueryCache
@@ -0,0 +1,29 @@
+import java.sql.Types;
+
+/**
+ * A row of Repair. The date is an epoch day, see Dates.
+ *
+ * Queries mapped by MAPPER select rid, hotelid, roomno, mcompany,
+ * repairdate - DATE '1970-01-01', description and repairtype, in this order.
+ */
+public record Repair(int rid, int hotelId, int roomNo, int company, int day, String description, String type) {
+
+    public static final String[] COLUMNS = { "rid", "hotelid", "roomno", "mcompany", "repairdate", "description",
+            "repairtype" };
+    public static final int[] TYPES = { Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.DATE,
+            Types.VARCHAR, Types.VARCHAR };
+
+    public static final RowMapper<Repair> MAPPER = rs -> new Repair(rs.getInt(1), rs.getInt(2), rs.getInt(3),
+            rs.getInt(4), rs.getInt(5), rs.getString(6), rs.getString(7));
+
+    /**
+     * Returns the row as the text Postgres prints for it, in COLUMNS order.
+     *
+     * @return the values
+     */
+    public String[] values() {
+        return new String[] { String.valueOf(rid), String.valueOf(hotelId), String.valueOf(roomNo),
+                String.valueOf(company), Dates.iso(day), description, type };
+    }// end values
+
+}// end Repair
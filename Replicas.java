@@ -0,0 +1,282 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read replicas of the database, for the queries that change nothing.
+ *
+ * dbproject.replicas lists the replica endpoints as host:port pairs
+ * separated by commas; they serve the same database to the same user.
+ * Each one has a connection pool of its own. A read goes to the next
+ * replica in turn, or with dbproject.replicas.select=latency to the one
+ * that answered fastest lately. The primary answers it instead:
+ *
+ *   - inside a transaction, which stays on its connection;
+ *   - for dbproject.replicas.sticky milliseconds (5000) after the session
+ *     wrote, so it reads its own bookings and repairs whatever the lag;
+ *   - when no replica is up. A replica that could not be reached is left
+ *     alone for dbproject.replicas.retry milliseconds (5000).
+ *
+ * A session is the calling thread, or the one bound by session(), which
+ * the server does for each of its clients. dbproject.replicas.timeout sets
+ * the statement_timeout of the replica connections in milliseconds (0, no
+ * limit).
+ */
+public class Replicas {
+
+    /**
+     * One replica endpoint and its pool.
+     */
+    static final class Replica {
+        final String endpoint;
+        final ConnectionPool pool;
+        // exponentially weighted mean of the read latency, 0 until measured
+        volatile double latencyNanos = 0;
+        volatile long downUntil = 0;
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        Replica(String endpoint, ConnectionPool pool) {
+            this.endpoint = endpoint;
+            this.pool = pool;
+        }
+    }// end Replica
+
+    private final Replica[] replicas;
+    private final boolean leastLatency;
+    private final long stickyMillis;
+    private final long retryMillis;
+    private final AtomicInteger next = new AtomicInteger();
+
+    // time of the last write of each session, and of any session
+    private final ThreadLocal<long[]> session = ThreadLocal.withInitial(() -> new long[1]);
+    private volatile long lastWrite = 0;
+
+    // reads the primary answered, and why
+    private final AtomicLong sticky = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+
+    private Replicas(Replica[] replicas) {
+        this.replicas = replicas;
+        this.leastLatency = System.getProperty("dbproject.replicas.select", "round-robin").equals("latency");
+        this.stickyMillis = Long.getLong("dbproject.replicas.sticky", 5000);
+        this.retryMillis = Long.getLong("dbproject.replicas.retry", 5000);
+    }// end Replicas
+
+    /**
+     * Creates the pools of the replicas listed in dbproject.replicas. No
+     * connection is opened until the first read.
+     *
+     * @param dbname   the database
+     * @param user     the user
+     * @param password the password
+     * @return the replicas, or null when none is listed
+     */
+    public static Replicas open(String dbname, String user, String password) {
+        String list = System.getProperty("dbproject.replicas", "").trim();
+        if (list.isEmpty())
+            return null;
+        long timeout = Long.getLong("dbproject.replicas.timeout", 0);
+        String[] endpoints = list.split("\\s*,\\s*");
+        Replica[] replicas = new Replica[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            String endpoint = endpoints[i].contains(":") ? endpoints[i] : "localhost:" + endpoints[i];
+            String url = "jdbc:postgresql://" + endpoint + "/" + dbname + "?stringtype=unspecified"
+                    + (timeout > 0 ? "&options=-c%20statement_timeout%3D" + timeout : "");
+            replicas[i] = new Replica(endpoint, new ConnectionPool(url, user, password));
+        } // end for
+        return new Replicas(replicas);
+    }// end open
+
+    /**
+     * Borrows a connection to a replica for a read, unless the primary must
+     * answer it.
+     *
+     * @return the connection, given back through its pool, or null for the
+     *         primary
+     */
+    ConnectionPool.Pooled borrow() {
+        long now = System.currentTimeMillis();
+        if (now - session.get()[0] < stickyMillis) {
+            sticky.incrementAndGet();
+            return null;
+        } // end if
+        int first = leastLatency ? fastest(now) : Math.floorMod(next.getAndIncrement(), replicas.length);
+        for (int i = 0; i < replicas.length; i++) {
+            Replica r = replicas[(first + i) % replicas.length];
+            if (r.downUntil > now)
+                continue;
+            try {
+                return r.pool.borrow();
+            } catch (SQLException e) {
+                down(r);
+            } // end try
+        } // end for
+        failovers.incrementAndGet();
+        return null;
+    }// end borrow
+
+    // the replica with the lowest mean latency, those not measured yet first
+    private int fastest(long now) {
+        int best = 0;
+        double lowest = Double.MAX_VALUE;
+        for (int i = 0; i < replicas.length; i++) {
+            Replica r = replicas[i];
+            if (r.downUntil <= now && r.latencyNanos < lowest) {
+                lowest = r.latencyNanos;
+                best = i;
+            } // end if
+        } // end for
+        return best;
+    }// end fastest
+
+    /**
+     * Records a read a replica answered.
+     *
+     * @param p     the connection it ran on
+     * @param nanos how long it took
+     */
+    void done(ConnectionPool.Pooled p, long nanos) {
+        Replica r = replica(p);
+        if (r == null)
+            return;
+        r.reads.incrementAndGet();
+        double mean = r.latencyNanos;
+        r.latencyNanos = mean == 0 ? nanos : mean * 0.9 + nanos * 0.1;
+    }// end done
+
+    /**
+     * Tells whether a read that failed on a replica should run again on the
+     * primary: the replica could not be reached, or went away, and is left
+     * alone for a while.
+     *
+     * @param p the connection the read ran on
+     * @param e the failure
+     * @return true when the read should fail over
+     */
+    boolean failed(ConnectionPool.Pooled p, SQLException e) {
+        Replica r = replica(p);
+        String state = e.getSQLState();
+        if (r == null || state == null || !(state.startsWith("08") || state.startsWith("57P")))
+            return false;
+        down(r);
+        failovers.incrementAndGet();
+        return true;
+    }// end failed
+
+    private void down(Replica r) {
+        r.failures.incrementAndGet();
+        r.downUntil = System.currentTimeMillis() + retryMillis;
+    }// end down
+
+    private Replica replica(ConnectionPool.Pooled p) {
+        for (Replica r : replicas) {
+            if (r.pool == p.pool)
+                return r;
+        } // end for
+        return null;
+    }// end replica
+
+    /**
+     * Records that the current session wrote, so its reads go to the
+     * primary for a while.
+     */
+    void wrote() {
+        long now = System.currentTimeMillis();
+        session.get()[0] = now;
+        lastWrite = now;
+    }// end wrote
+
+    /**
+     * Tells whether any session wrote recently, so a replica may not have
+     * its rows yet and its answers must not be cached for everyone.
+     *
+     * @return true within dbproject.replicas.sticky of the last write
+     */
+    boolean unsettled() {
+        return System.currentTimeMillis() - lastWrite < stickyMillis;
+    }// end unsettled
+
+    /**
+     * Binds the calling thread to a session other than its own, or back to
+     * its own when the session is null.
+     *
+     * @param lastWrite the session's time of last write, a one-element array
+     */
+    void session(long[] lastWrite) {
+        if (lastWrite == null)
+            session.remove();
+        else
+            session.set(lastWrite);
+    }// end session
+
+    /**
+     * Sends reads to the replicas and prints which endpoint answered them,
+     * then records a write and checks the session's next read goes to the
+     * primary.
+     *
+     * @param esql  the client, connected with dbproject.replicas
+     * @param calls the number of reads
+     * @return true when the replicas answered and the read after the write
+     *         went to the primary
+     * @throws java.sql.SQLException when a read failed on every endpoint
+     */
+    public static boolean check(DBProject esql, int calls) throws SQLException {
+        Replicas replicas = esql.replicas();
+        if (replicas == null)
+            throw new SQLException("No replicas, set -Ddbproject.replicas=host:port,...");
+        long[] before = new long[replicas.replicas.length];
+        for (int i = 0; i < before.length; i++)
+            before[i] = replicas.replicas[i].reads.get();
+        long sticky = replicas.sticky.get(), failovers = replicas.failovers.get();
+
+        replicas.session(new long[1]);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++)
+                esql.queryInt(Sql.BOOKED_ROOMS, 0, 1 + i % 10);
+            System.out.println(String.format("%d reads in %.1f ms", calls, (System.nanoTime() - start) / 1e6));
+            long answered = 0;
+            for (int i = 0; i < before.length; i++) {
+                Replica r = replicas.replicas[i];
+                long reads = r.reads.get() - before[i];
+                answered += reads;
+                System.out.println(String.format("\t%-24s %8d reads %10.3f ms mean%s", r.endpoint, reads,
+                        r.latencyNanos / 1e6, r.downUntil > System.currentTimeMillis() ? ", down" : ""));
+            } // end for
+            System.out.println(String.format("\t%-24s %8d reads", "primary (failover)",
+                    replicas.failovers.get() - failovers));
+
+            replicas.wrote();
+            esql.queryInt(Sql.BOOKED_ROOMS, 0, 1);
+            boolean stuck = replicas.sticky.get() - sticky == 1;
+            System.out.println("read after a write answered by " + (stuck ? "the primary" : "a replica"));
+            return answered > 0 && stuck;
+        } finally {
+            replicas.session(null);
+        } // end try
+    }// end check
+
+    /**
+     * Closes the pools of the replicas.
+     */
+    public void close() {
+        for (Replica r : replicas)
+            r.pool.close();
+    }// end close
+
+    /**
+     * Returns a one-line summary of the reads each endpoint answered.
+     *
+     * @return the counters
+     */
+    public String stats() {
+        StringBuilder stats = new StringBuilder("replicas:");
+        for (Replica r : replicas)
+            stats.append(String.format(" %s reads=%d failures=%d latency=%.3fms%s;", r.endpoint, r.reads.get(),
+                    r.failures.get(), r.latencyNanos / 1e6, r.downUntil > System.currentTimeMillis() ? " down" : ""));
+        return stats.append(String.format(" primary sticky=%d failovers=%d", sticky.get(), failovers.get()))
+                .toString();
+    }// end stats
+
+}// end Replicas
@@ -0,0 +1,28 @@
+import java.sql.Types;
+
+/**
+ * A row of Request, a repair request raised by a manager. The date is an
+ * epoch day, see Dates.
+ *
+ * Queries mapped by MAPPER select reqid, managerid, repairid,
+ * requestdate - DATE '1970-01-01' and description, in this order.
+ */
+public record Request(int reqId, int managerId, int repairId, int day, String description) {
+
+    public static final String[] COLUMNS = { "reqid", "managerid", "repairid", "requestdate", "description" };
+    public static final int[] TYPES = { Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.DATE, Types.VARCHAR };
+
+    public static final RowMapper<Request> MAPPER = rs -> new Request(rs.getInt(1), rs.getInt(2), rs.getInt(3),
+            rs.getInt(4), rs.getString(5));
+
+    /**
+     * Returns the row as the text Postgres prints for it, in COLUMNS order.
+     *
+     * @return the values
+     */
+    public String[] values() {
+        return new String[] { String.valueOf(reqId), String.valueOf(managerId), String.valueOf(repairId),
+                Dates.iso(day), description };
+    }// end values
+
+}// end Request
@@ -0,0 +1,448 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Writes query results row by row to a buffered writer, so a result is never
+ * held in memory as a whole. The format is chosen with the dbproject.format
+ * system property: tsv (the original console layout), csv or json (one JSON
+ * object per line).
+ *
+ * text is an opt-in variant of tsv written to standard out as bytes, in
+ * UTF-8, that formats integers in place and, on pgjdbc only, copies the
+ * values of character columns as the server sent them, so a row costs no
+ * String for those. It relies on pgjdbc's getBytes returning the raw
+ * text-format value of a non-bytea column, which is driver behaviour rather
+ * than part of JDBC: with any other driver character columns go through
+ * getString as in tsv. Other columns always do. Where the rows go to a
+ * Writer, as for the server's clients, text is tsv.
+ */
+public abstract class ResultSink {
+
+    protected final Writer out;
+    protected String[] columns;
+    protected int[] types;
+
+    protected ResultSink(Writer out) {
+        this.out = out;
+    }// end ResultSink
+
+    /**
+     * Creates a sink for the given format.
+     *
+     * @param format tsv, csv or json
+     * @param out    where the rows are written
+     * @return the sink
+     */
+    public static ResultSink create(String format, Writer out) {
+        switch (format) {
+        case "tsv":
+        case "text":
+            return new Tsv(out);
+        case "csv":
+            return new Csv(out);
+        case "json":
+            return new JsonLines(out);
+        default:
+            throw new IllegalArgumentException("Unknown output format: " + format);
+        }
+    }// end create
+
+    /**
+     * Creates a sink on standard out in the format of the dbproject.format
+     * property.
+     *
+     * @return the sink
+     */
+    public static ResultSink stdout() {
+        return create(System.getProperty("dbproject.format", "tsv"), System.out);
+    }// end stdout
+
+    /**
+     * Creates a sink for the given format on a byte stream.
+     *
+     * @param format tsv, text, csv or json
+     * @param out    where the rows are written, buffered by the sink
+     * @return the sink
+     */
+    public static ResultSink create(String format, OutputStream out) {
+        if (format.equals("text"))
+            return new Text(new BufferedOutputStream(out, 1 << 16));
+        return create(format, new BufferedWriter(new OutputStreamWriter(out), 1 << 16));
+    }// end create
+
+    /**
+     * Writes every row of a result set and closes it.
+     *
+     * @param rs the result set
+     * @return the number of rows written
+     * @throws java.sql.SQLException when a row could not be read
+     */
+    public int write(ResultSet rs) throws SQLException {
+        try {
+            ResultSetMetaData rsmd = rs.getMetaData();
+            String[] names = new String[rsmd.getColumnCount()];
+            int[] columnTypes = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = rsmd.getColumnName(i + 1);
+                columnTypes[i] = rsmd.getColumnType(i + 1);
+            } // end for
+            start(names, columnTypes);
+
+            // one array reused for every row
+            String[] values = new String[names.length];
+            int rowCount = 0;
+            while (rs.next()) {
+                if (rowCount == 0)
+                    header();
+                for (int i = 0; i < values.length; i++)
+                    values[i] = rs.getString(i + 1);
+                row(values);
+                ++rowCount;
+            } // end while
+            finish();
+            return rowCount;
+        } catch (IOException e) {
+            throw new SQLException("Could not write the result: " + e.getMessage(), e);
+        } finally {
+            rs.close();
+        } // end try
+    }// end write
+
+    /**
+     * Writes rows that were read earlier, e.g. from the query cache.
+     *
+     * @param names       the column names
+     * @param columnTypes the java.sql.Types of the columns
+     * @param rows        the rows
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the writer failed
+     */
+    public int write(String[] names, int[] columnTypes, List<String[]> rows) throws SQLException {
+        try {
+            start(names, columnTypes);
+            if (!rows.isEmpty())
+                header();
+            for (String[] values : rows)
+                row(values);
+            finish();
+            return rows.size();
+        } catch (IOException e) {
+            throw new SQLException("Could not write the result: " + e.getMessage(), e);
+        } // end try
+    }// end write
+
+    /**
+     * Called before the rows of every result.
+     *
+     * @param names       the column names
+     * @param columnTypes the java.sql.Types of the columns
+     */
+    protected void start(String[] names, int[] columnTypes) {
+        this.columns = names;
+        this.types = columnTypes;
+    }// end start
+
+    /**
+     * Called after the last row of every result.
+     *
+     * @throws java.io.IOException when the writer failed
+     */
+    protected void finish() throws IOException {
+        out.flush();
+    }// end finish
+
+    /**
+     * Writes the header, called before the first row only.
+     *
+     * @throws java.io.IOException when the writer failed
+     */
+    protected abstract void header() throws IOException;
+
+    /**
+     * Writes one row. The array may be reused for the next row.
+     *
+     * @param values the values as text, null for NULL
+     * @throws java.io.IOException when the writer failed
+     */
+    protected abstract void row(String[] values) throws IOException;
+
+    // tab separated, every value followed by a tab, as the console always printed it
+    static class Tsv extends ResultSink {
+        Tsv(Writer out) {
+            super(out);
+        }
+
+        protected void header() throws IOException {
+            for (String column : columns) {
+                out.write(column);
+                out.write('\t');
+            } // end for
+            out.write('\n');
+        }
+
+        protected void row(String[] values) throws IOException {
+            for (String value : values) {
+                out.write(String.valueOf(value));
+                out.write('\t');
+            } // end for
+            out.write('\n');
+        }
+    }// end Tsv
+
+    // the tsv layout as bytes, see the class comment
+    static class Text extends ResultSink {
+        private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+        private static final int INTEGER = 0, CHARACTER = 1, OTHER = 2;
+
+        private final OutputStream bytes;
+        private final byte[] digits = new byte[20];
+
+        Text(OutputStream bytes) {
+            super(Writer.nullWriter());
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int write(ResultSet rs) throws SQLException {
+            try {
+                ResultSetMetaData rsmd = rs.getMetaData();
+                String[] names = new String[rsmd.getColumnCount()];
+                int[] columnTypes = new int[names.length];
+                int[] kinds = new int[names.length];
+                boolean raw = pgjdbc(rs);
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = rsmd.getColumnName(i + 1);
+                    columnTypes[i] = rsmd.getColumnType(i + 1);
+                    kinds[i] = kind(columnTypes[i]);
+                    if (kinds[i] == CHARACTER && !raw)
+                        kinds[i] = OTHER;
+                } // end for
+                start(names, columnTypes);
+
+                int rowCount = 0;
+                while (rs.next()) {
+                    if (rowCount == 0)
+                        header();
+                    for (int i = 0; i < kinds.length; i++) {
+                        if (kinds[i] == INTEGER) {
+                            long value = rs.getLong(i + 1);
+                            if (rs.wasNull())
+                                bytes.write(NULL);
+                            else
+                                digits(value);
+                        } else if (kinds[i] == CHARACTER) {
+                            // pgjdbc returns its row buffer itself for a text-format value
+                            byte[] value = rs.getBytes(i + 1);
+                            bytes.write(value == null ? NULL : value);
+                        } else {
+                            text(rs.getString(i + 1));
+                        } // end if
+                        bytes.write('\t');
+                    } // end for
+                    bytes.write('\n');
+                    ++rowCount;
+                } // end while
+                finish();
+                return rowCount;
+            } catch (IOException e) {
+                throw new SQLException("Could not write the result: " + e.getMessage(), e);
+            } finally {
+                rs.close();
+            } // end try
+        }
+
+        // whether the result set comes from pgjdbc, whose getBytes is the raw value
+        private static boolean pgjdbc(ResultSet rs) throws SQLException {
+            Statement stmt = rs.getStatement();
+            return stmt != null && "PostgreSQL JDBC Driver".equals(stmt.getConnection().getMetaData().getDriverName());
+        }
+
+        // pgjdbc never sends character columns in binary, so their bytes are the text
+        private static int kind(int type) {
+            switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return INTEGER;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+                return CHARACTER;
+            default:
+                return OTHER;
+            }
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            bytes.flush();
+        }
+
+        protected void header() throws IOException {
+            for (String column : columns) {
+                text(column);
+                bytes.write('\t');
+            } // end for
+            bytes.write('\n');
+        }
+
+        protected void row(String[] values) throws IOException {
+            for (String value : values) {
+                text(value);
+                bytes.write('\t');
+            } // end for
+            bytes.write('\n');
+        }
+
+        private void text(String value) throws IOException {
+            bytes.write(value == null ? NULL : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void digits(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                text(String.valueOf(value));
+                return;
+            } // end if
+            if (value < 0) {
+                bytes.write('-');
+                value = -value;
+            } // end if
+            int at = digits.length;
+            do {
+                digits[--at] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            bytes.write(digits, at, digits.length - at);
+        }
+    }// end Text
+
+    // comma separated with RFC 4180 quoting, NULL as an empty field
+    static class Csv extends ResultSink {
+        Csv(Writer out) {
+            super(out);
+        }
+
+        protected void header() throws IOException {
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0)
+                    out.write(',');
+                field(columns[i]);
+            } // end for
+            out.write('\n');
+        }
+
+        protected void row(String[] values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0)
+                    out.write(',');
+                if (values[i] != null)
+                    field(values[i]);
+            } // end for
+            out.write('\n');
+        }
+
+        private void field(String value) throws IOException {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                    && value.indexOf('\r') < 0) {
+                out.write(value);
+                return;
+            } // end if
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+    }// end Csv
+
+    // one object per row keyed by column name, numbers and booleans unquoted
+    static class JsonLines extends ResultSink {
+        JsonLines(Writer out) {
+            super(out);
+        }
+
+        protected void header() {
+            // every line carries its column names.
+        }
+
+        protected void row(String[] values) throws IOException {
+            out.write('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0)
+                    out.write(',');
+                string(columns[i]);
+                out.write(':');
+                String value = values[i];
+                if (value == null)
+                    out.write("null");
+                else if (isNumeric(types[i]))
+                    out.write(value);
+                else if (types[i] == Types.BOOLEAN || types[i] == Types.BIT)
+                    out.write(value.equals("t") || value.equals("true") ? "true" : "false");
+                else
+                    string(value);
+            } // end for
+            out.write("}\n");
+        }
+
+        private static boolean isNumeric(int type) {
+            switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        private void string(String value) throws IOException {
+            out.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        out.write(String.format("\\u%04x", (int) c));
+                    else
+                        out.write(c);
+                }
+            } // end for
+            out.write('"');
+        }
+    }// end JsonLines
+
+}// end ResultSink
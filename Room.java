@@ -0,0 +1,25 @@
+import java.sql.Types;
+
+/**
+ * A row of Room.
+ *
+ * Queries mapped by MAPPER select hotelid, roomno and roomtype, in this
+ * order.
+ */
+public record Room(int hotelId, int roomNo, String type) {
+
+    public static final String[] COLUMNS = { "hotelid", "roomno", "roomtype" };
+    public static final int[] TYPES = { Types.INTEGER, Types.INTEGER, Types.VARCHAR };
+
+    public static final RowMapper<Room> MAPPER = rs -> new Room(rs.getInt(1), rs.getInt(2), rs.getString(3));
+
+    /**
+     * Returns the row as the text Postgres prints for it, in COLUMNS order.
+     *
+     * @return the values
+     */
+    public String[] values() {
+        return new String[] { String.valueOf(hotelId), String.valueOf(roomNo), type };
+    }// end values
+
+}// end Room
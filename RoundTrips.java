@@ -0,0 +1,262 @@
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Counts the round trips each thread makes to the server.
+ *
+ * With -Ddbproject.roundTrips=true the pool hands out connections whose
+ * statement executions, commits, rollbacks, savepoints and validations are
+ * counted for the calling thread. Ids come from reserved blocks shared by
+ * dbproject.idBlock inserts, so the round trips of a block reservation are
+ * counted apart, as shared.
+ *
+ * The round-trips mode runs every menu operation and checks it against its
+ * budget of one round trip per call.
+ */
+public final class RoundTrips {
+
+    // the JDBC calls that go to the server and wait for its answer
+    private static final Set<String> CONNECTION_TRIPS = Set.of("commit", "rollback", "setSavepoint",
+            "releaseSavepoint", "isValid");
+    private static final Set<String> STATEMENT_TRIPS = Set.of("execute", "executeQuery", "executeUpdate",
+            "executeLargeUpdate", "executeBatch", "executeLargeBatch");
+
+    // per thread: round trips of its own, round trips shared with other calls
+    private static final ThreadLocal<long[]> COUNTS = ThreadLocal.withInitial(() -> new long[2]);
+
+    private RoundTrips() {
+    }
+
+    /**
+     * One menu operation called by the check.
+     */
+    interface Call {
+        void run(int i) throws SQLException;
+    }// end Call
+
+    /**
+     * Returns the round trips counted for this thread so far, not counting
+     * the shared ones.
+     *
+     * @return the count
+     */
+    public static long count() {
+        return COUNTS.get()[0];
+    }// end count
+
+    /**
+     * Returns the round trips of this thread shared with other calls.
+     *
+     * @return the count
+     */
+    public static long shared() {
+        return COUNTS.get()[1];
+    }// end shared
+
+    /**
+     * Moves round trips this thread made on behalf of many calls, such as an
+     * id block reservation, from its own count to the shared count.
+     *
+     * @param since the count() before the shared work
+     */
+    static void share(long since) {
+        long[] counts = COUNTS.get();
+        counts[1] += counts[0] - since;
+        counts[0] = since;
+    }// end share
+
+    /**
+     * Wraps a connection so its round trips are counted.
+     *
+     * @param connection the physical connection
+     * @return the counting connection
+     */
+    static Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                    if (CONNECTION_TRIPS.contains(method.getName()))
+                        COUNTS.get()[0]++;
+                    Object result = invoke(connection, method, args);
+                    if (result instanceof Statement && method.getReturnType().isInterface())
+                        return wrap((Statement) result, method.getReturnType(), (Connection) proxy);
+                    return result;
+                });
+    }// end wrap
+
+    private static Object wrap(Statement statement, Class<?> type, Connection connection) {
+        return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getConnection"))
+                        return connection;
+                    if (STATEMENT_TRIPS.contains(method.getName()))
+                        COUNTS.get()[0]++;
+                    return invoke(statement, method, args);
+                });
+    }// end wrap
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } // end try
+    }// end invoke
+
+    /**
+     * Calls every menu operation, once to warm the caches and indexes and
+     * then the given number of times, and prints the round trips per call
+     * against the budget of one. Writes commit and their rows are deleted
+     * afterwards; bookings go to nights of 2099. Results are formatted but
+     * written nowhere.
+     *
+     * @param esql  the client, connected with -Ddbproject.roundTrips=true
+     * @param calls the number of counted calls per operation
+     * @return the number of operations over budget
+     * @throws java.sql.SQLException when the arguments could not be drawn or
+     *                               an operation failed
+     */
+    public static int check(DBProject esql, int calls) throws SQLException {
+        int hotel = 0, room = 0, company = 0, repair = 0, ssn = 0;
+        String fname = null, lname = null, companyName = null;
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT hotelid, roomno FROM booking LIMIT 1");
+            if (rs.next()) {
+                hotel = rs.getInt(1);
+                room = rs.getInt(2);
+            } // end if
+            rs = stmt.executeQuery("SELECT fname, lname FROM customer GROUP BY fname, lname HAVING COUNT(*) = 1 "
+                    + "LIMIT 1");
+            if (rs.next()) {
+                fname = rs.getString(1).trim();
+                lname = rs.getString(2).trim();
+            } // end if
+            rs = stmt.executeQuery("SELECT cmpid, name FROM maintenancecompany LIMIT 1");
+            if (rs.next()) {
+                company = rs.getInt(1);
+                companyName = rs.getString(2).trim();
+            } // end if
+            rs = stmt.executeQuery("SELECT rid FROM repair LIMIT 1");
+            if (rs.next())
+                repair = rs.getInt(1);
+            rs = stmt.executeQuery("SELECT ssn FROM staff LIMIT 1");
+            if (rs.next())
+                ssn = Integer.parseInt(rs.getString(1).trim());
+        } finally {
+            esql.pool().release(p);
+        } // end try
+        if (fname == null || companyName == null || repair == 0 || ssn == 0)
+            throw new SQLException("The check needs bookings, customers, companies, repairs and staff");
+
+        List<Integer> customers = new ArrayList<>(), rooms = new ArrayList<>(), companies = new ArrayList<>();
+        List<Integer> repairs = new ArrayList<>(), bookings = new ArrayList<>(), assigned = new ArrayList<>();
+        List<Integer> requests = new ArrayList<>();
+        int firstNight = Dates.of(2099, 1, 1);
+        final int h = hotel, r = room, c = company, rid = repair, staff = ssn;
+        final String f = fname, l = lname, name = companyName;
+
+        List<String> names = new ArrayList<>();
+        List<Call> operations = new ArrayList<>();
+        add(names, operations, "addCustomer", i -> customers.add(DBProject.addCustomer(esql, "Trip", "Check",
+                "1 Check Street", 9000000000L, "01/01/1990", "Other")));
+        add(names, operations, "addRoom", i -> rooms.add(DBProject.addRoom(esql, h, "Suite")));
+        add(names, operations, "addMaintenanceCompany",
+                i -> companies.add(DBProject.addMaintenanceCompany(esql, "Trip Check", "1 Check Street", true)));
+        add(names, operations, "addRepair", i -> repairs.add(DBProject.addRepair(esql, h, r, c, "01/01/2099",
+                "round trip check", "Small")));
+        add(names, operations, "bookRoom", i -> bookings.add(DBProject.bookRoom(esql, h, r, f, l,
+                Dates.prompt(firstNight + i), 1, 100.0).bid));
+        add(names, operations, "assignHouseCleaningToRoom", i -> assigned.add(DBProject.assignHouseCleaningToRoom(
+                esql, String.valueOf(staff), String.valueOf(h), String.valueOf(r))));
+        add(names, operations, "repairRequest",
+                i -> requests.add(DBProject.repairRequest(esql, staff, rid, "01/01/2099", "round trip check")));
+        add(names, operations, "numberOfAvailableRooms",
+                i -> DBProject.numberOfAvailableRooms(esql, h, null, null));
+        add(names, operations, "numberOfAvailableRooms dates",
+                i -> DBProject.numberOfAvailableRooms(esql, h, "05/01/2020", "05/07/2020"));
+        add(names, operations, "numberOfBookedRooms", i -> DBProject.numberOfBookedRooms(esql, h));
+        add(names, operations, "listHotelRoomBookingsForAWeek",
+                i -> DBProject.listHotelRoomBookingsForAWeek(esql, h, "05/01/2020"));
+        add(names, operations, "topKHighestRoomPriceForADateRange",
+                i -> DBProject.topKHighestRoomPriceForADateRange(esql, 10, "05/01/2020", "05/31/2020"));
+        add(names, operations, "topKHighestPriceBookingsForACustomer",
+                i -> DBProject.topKHighestPriceBookingsForACustomer(esql, f, l, 10));
+        add(names, operations, "totalCostForCustomer",
+                i -> DBProject.totalCostForCustomer(esql, h, f, l, "01/01/2015", "12/31/2024"));
+        add(names, operations, "listRepairsMade", i -> DBProject.listRepairsMade(esql, name));
+        add(names, operations, "topKMaintenanceCompany", i -> DBProject.topKMaintenanceCompany(esql, 5));
+        add(names, operations, "numberOfRepairsForEachRoomPerYear",
+                i -> DBProject.numberOfRepairsForEachRoomPerYear(esql, h, r));
+
+        System.out.println(String.format("%-36s %8s %8s %8s %10s %8s", "operation", "calls", "mean", "max",
+                "shared", "budget"));
+        int over = 0;
+        esql.redirect(ResultSink.create(System.getProperty("dbproject.format", "tsv"), Writer.nullWriter()));
+        try {
+            for (int n = 0; n < operations.size(); n++) {
+                Call call = operations.get(n);
+                call.run(calls);
+                long total = 0, max = 0, shared = shared();
+                for (int i = 0; i < calls; i++) {
+                    long before = count();
+                    call.run(i);
+                    long trips = count() - before;
+                    total += trips;
+                    max = Math.max(max, trips);
+                } // end for
+                boolean ok = max <= 1;
+                if (!ok)
+                    over++;
+                System.out.println(String.format("%-36s %8d %8.2f %8d %10.3f %8s", names.get(n), calls,
+                        total / (double) calls, max, (shared() - shared) / (double) calls, ok ? "1 ok" : "1 OVER"));
+            } // end for
+        } finally {
+            esql.redirect(null);
+            if (esql.writeBehind() != null) {
+                try {
+                    esql.writeBehind().flush();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } // end try
+            } // end if
+            Bench.delete(esql, "request", "reqid", requests);
+            Bench.delete(esql, "assigned", "asgid", assigned);
+            Bench.delete(esql, "repair", "rid", repairs);
+            Bench.delete(esql, "room_night", "bid", bookings);
+            Bench.delete(esql, "booking", "bid", bookings);
+            deleteRooms(esql, hotel, rooms);
+            Bench.delete(esql, "maintenancecompany", "cmpid", companies);
+            Bench.delete(esql, "customer", "customerid", customers);
+            esql.forgetUncommitted();
+        } // end try
+        return over;
+    }// end check
+
+    private static void add(List<String> names, List<Call> operations, String name, Call call) {
+        names.add(name);
+        operations.add(call);
+    }// end add
+
+    private static void deleteRooms(DBProject esql, int hotel, List<Integer> rooms) throws SQLException {
+        ConnectionPool.Pooled p = esql.pool().borrow();
+        try (PreparedStatement delete = p.connection
+                .prepareStatement("DELETE FROM room WHERE hotelid = ? AND roomno = ANY(?)")) {
+            delete.setInt(1, hotel);
+            delete.setArray(2, p.connection.createArrayOf("integer", rooms.toArray()));
+            delete.executeUpdate();
+        } finally {
+            esql.pool().release(p);
+        } // end try
+    }// end deleteRooms
+
+}// end RoundTrips
@@ -0,0 +1,21 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a result set into an object, reading the columns
+ * by their index.
+ *
+ * @param <T> the row type
+ */
+public interface RowMapper<T> {
+
+    /**
+     * Reads the row the result set is on.
+     *
+     * @param rs the result set, positioned on a row
+     * @return the row
+     * @throws java.sql.SQLException when a column could not be read
+     */
+    T map(ResultSet rs) throws SQLException;
+
+}// end RowMapper
@@ -0,0 +1,287 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned DDL on top of the course schema, and a plan check for the named
+ * queries.
+ *
+ * Every migration is applied once, in its own transaction, and recorded in
+ * schema_version. The indexes follow the predicates of the statements in
+ * Sql: each one names the queries it serves.
+ */
+public class Schema {
+
+    /**
+     * One schema change.
+     */
+    static final class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }// end Migration
+
+    static final List<Migration> MIGRATIONS = new ArrayList<>();
+
+    static {
+        // AVAILABLE_ROOMS, AVAILABLE_ROOMS_BETWEEN, BOOKED_ROOMS (index only)
+        // BOOKINGS_FOR_WEEK and the availability index load by hotel
+        MIGRATIONS.add(new Migration(1, "booking by hotel, room and day",
+                "CREATE INDEX IF NOT EXISTS booking_hotel_room_date ON booking (hotelid, roomno, bookingdate)",
+                "CREATE INDEX IF NOT EXISTS booking_hotel_date ON booking (hotelid, bookingdate)"));
+        // TOTAL_COST reads the price from the index, TOP_K_CUSTOMER_BOOKINGS stops after k
+        MIGRATIONS.add(new Migration(2, "booking by customer",
+                "CREATE INDEX IF NOT EXISTS booking_customer_hotel_date ON booking (customer, hotelid, bookingdate) "
+                        + "INCLUDE (price)",
+                "CREATE INDEX IF NOT EXISTS booking_customer_price ON booking (customer, price DESC)"));
+        // TOP_K_ROOM_PRICE
+        MIGRATIONS.add(new Migration(3, "booking by day",
+                "CREATE INDEX IF NOT EXISTS booking_date ON booking (bookingdate) INCLUDE (price, hotelid, roomno)"));
+        // CUSTOMER_ID and the customer directory misses, BOOK_ROOM, TOP_K_CUSTOMER_BOOKINGS
+        MIGRATIONS.add(new Migration(4, "customer by name",
+                "CREATE INDEX IF NOT EXISTS customer_name ON customer (fname, lname)"));
+        // REPAIRS_BY_COMPANY, TOP_K_COMPANIES, REPAIRS_PER_YEAR
+        MIGRATIONS.add(new Migration(5, "repair by company and by room",
+                "CREATE INDEX IF NOT EXISTS repair_company ON repair (mcompany)",
+                "CREATE INDEX IF NOT EXISTS repair_hotel_room_date ON repair (hotelid, roomno, repairdate)",
+                "CREATE INDEX IF NOT EXISTS maintenancecompany_name ON maintenancecompany (name)"));
+        // BOOK_ROOM_NIGHT, see BookingEngine; nights already booked twice keep their first booking
+        MIGRATIONS.add(new Migration(6, "room-night claims",
+                "CREATE TABLE IF NOT EXISTS room_night (hotelid INTEGER NOT NULL, roomno INTEGER NOT NULL, "
+                        + "night DATE NOT NULL, bid INTEGER NOT NULL, PRIMARY KEY (hotelid, roomno, night))",
+                "INSERT INTO room_night SELECT hotelid, roomno, bookingdate, MIN(bid) FROM booking "
+                        + "GROUP BY hotelid, roomno, bookingdate ON CONFLICT DO NOTHING"));
+        // TOTAL_COST_AGGREGATE, TOP_K_COMPANIES_AGGREGATE, REPAIRS_PER_YEAR_AGGREGATE
+        MIGRATIONS.add(new Migration(7, "aggregates maintained by triggers", Aggregates.DDL));
+        // the date ranges of BOOKINGS_FOR_WEEK, TOP_K_ROOM_PRICE, TOP_ROOM_PRICES_BY_DAY, TOTAL_COST and
+        // AVAILABLE_ROOMS_BETWEEN pick their partitions, see Partitions; indexes and triggers are built again
+        List<String> partitioned = new ArrayList<>();
+        partitioned.add(Partitions.CREATE_PARTITION);
+        partitioned.addAll(List.of(Partitions.migration("booking", "bookingdate", "bid", true)));
+        for (int version = 1; version <= 3; version++)
+            partitioned.addAll(List.of(MIGRATIONS.get(version - 1).statements));
+        partitioned.addAll(List.of(Aggregates.triggers("booking")));
+        partitioned.addAll(List.of(Partitions.migration("repair", "repairdate", "rid", false)));
+        partitioned.addAll(List.of(MIGRATIONS.get(4).statements));
+        partitioned.addAll(List.of(Aggregates.triggers("repair")));
+        MIGRATIONS.add(new Migration(8, "booking by month and repair by year", partitioned.toArray(new String[0])));
+        // BOOKINGS_PAGE, CUSTOMER_BOOKINGS_PAGE(_AFTER), REPAIRS_BY_COMPANY_PAGE seek past the last key of
+        // a page; each index extends the one it replaces, which served the same queries
+        MIGRATIONS.add(new Migration(9, "keyset pages",
+                "CREATE INDEX IF NOT EXISTS booking_hotel_date_bid ON booking (hotelid, bookingdate, bid)",
+                "DROP INDEX IF EXISTS booking_hotel_date",
+                "CREATE INDEX IF NOT EXISTS booking_customer_price_bid ON booking (customer, price DESC, bid DESC)",
+                "DROP INDEX IF EXISTS booking_customer_price",
+                "CREATE INDEX IF NOT EXISTS repair_company_rid ON repair (mcompany, rid)",
+                "DROP INDEX IF EXISTS repair_company"));
+        // the primary keys of migration 8 include the date, see Partitions
+        List<String> ids = new ArrayList<>(List.of(Partitions.ids("booking", "bid")));
+        ids.addAll(List.of(Partitions.ids("repair", "rid")));
+        MIGRATIONS.add(new Migration(10, "unique booking and repair ids", ids.toArray(new String[0])));
+    }
+
+    /**
+     * Returns the version of the newest migration.
+     *
+     * @return the version the code expects
+     */
+    public static int latest() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }// end latest
+
+    /**
+     * Returns the version recorded in the database.
+     *
+     * @param pool the pool to read it with
+     * @return the version, 0 when no migration was applied
+     * @throws java.sql.SQLException when the version could not be read
+     */
+    public static int current(ConnectionPool pool) throws SQLException {
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            return current(stmt);
+        } finally {
+            pool.release(p);
+        } // end try
+    }// end current
+
+    private static int current(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, "
+                + "description VARCHAR(200) NOT NULL, applied_at TIMESTAMP NOT NULL DEFAULT now())");
+        try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            rs.next();
+            return rs.getInt(1);
+        } // end try
+    }// end current
+
+    /**
+     * Applies every migration newer than the recorded version, each in its
+     * own transaction. Index builds take a lock on their table, so run it
+     * while the hotel is quiet.
+     *
+     * @param pool the pool to run the DDL on
+     * @return the number of migrations applied
+     * @throws java.sql.SQLException when a migration failed; the earlier ones stay applied
+     */
+    public static int migrate(ConnectionPool pool) throws SQLException {
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            int version = current(stmt);
+            int applied = 0;
+            p.connection.setAutoCommit(false);
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version <= version)
+                    continue;
+                long start = System.nanoTime();
+                try {
+                    for (String ddl : migration.statements)
+                        stmt.execute(ddl);
+                    PreparedStatement record = p.connection
+                            .prepareStatement("INSERT INTO schema_version (version, description) VALUES (?, ?)");
+                    record.setInt(1, migration.version);
+                    record.setString(2, migration.description);
+                    record.executeUpdate();
+                    record.close();
+                    p.connection.commit();
+                } catch (SQLException e) {
+                    p.connection.rollback();
+                    throw new SQLException("Migration " + migration.version + " (" + migration.description
+                            + ") failed: " + e.getMessage(), e.getSQLState(), e);
+                } // end try
+                applied++;
+                System.out.println(String.format("\t%d %s (%.1f s)", migration.version, migration.description,
+                        (System.nanoTime() - start) / 1e9));
+            } // end for
+            stmt.execute("ANALYZE");
+            p.connection.commit();
+            return applied;
+        } finally {
+            pool.release(p);
+        } // end try
+    }// end migrate
+
+    /**
+     * Runs EXPLAIN (ANALYZE, BUFFERS) for every named query with arguments
+     * taken from the database, prints the plans and flags each sequential
+     * scan of a table estimated at dbproject.explain.minRows rows or more.
+     * Writes are explained in a transaction that is rolled back.
+     *
+     * @param esql    the connected client
+     * @param verbose whether to print the whole plans, not only the flags
+     * @return the number of flagged scans
+     * @throws java.sql.SQLException when a query could not be explained
+     */
+    public static int explain(DBProject esql, boolean verbose) throws SQLException {
+        long minRows = Long.getLong("dbproject.explain.minRows", 1000);
+        int flagged = 0;
+
+        esql.begin();
+        ConnectionPool.Pooled p = esql.acquire();
+        try (Statement stmt = p.connection.createStatement()) {
+            Map<Sql, Object[]> queries = samples(stmt);
+            for (Map.Entry<Sql, Object[]> query : queries.entrySet()) {
+                PreparedStatement ps = p.connection
+                        .prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + query.getKey().text);
+                DBProject.bind(ps, query.getValue());
+                List<String> plan = new ArrayList<>();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next())
+                        plan.add(rs.getString(1));
+                } finally {
+                    ps.close();
+                } // end try
+
+                List<String> scans = new ArrayList<>();
+                for (String line : plan) {
+                    int at = line.indexOf("Seq Scan on ");
+                    if (at < 0)
+                        continue;
+                    String table = line.substring(at + 12).split(" ")[0];
+                    if (count(stmt, "SELECT COALESCE(MAX(reltuples), 0)::bigint FROM pg_class WHERE relname = '"
+                            + table.toLowerCase() + "'") >= minRows)
+                        scans.add(table);
+                } // end for
+                flagged += scans.size();
+
+                String time = plan.isEmpty() ? "" : plan.get(plan.size() - 1).trim();
+                System.out.println(String.format("%-26s %s %s", query.getKey(), scans.isEmpty() ? "ok        "
+                        : "SEQ SCAN  ", scans.isEmpty() ? time : String.join(", ", scans) + "; " + time));
+                if (verbose || !scans.isEmpty()) {
+                    for (String line : plan)
+                        System.out.println("\t" + line);
+                } // end if
+            } // end for
+        } finally {
+            esql.end();
+        } // end try
+        return flagged;
+    }// end explain
+
+    // arguments for each named query, drawn from rows that exist
+    private static Map<Sql, Object[]> samples(Statement stmt) throws SQLException {
+        int hotel = 0, room = 0, customerid = 0;
+        String fname = "", lname = "", company = "";
+        try (ResultSet rs = stmt.executeQuery("SELECT b.hotelid, b.roomno, c.customerid, c.fname, c.lname "
+                + "FROM booking b JOIN customer c ON c.customerid = b.customer LIMIT 1")) {
+            if (rs.next()) {
+                hotel = rs.getInt(1);
+                room = rs.getInt(2);
+                customerid = rs.getInt(3);
+                fname = rs.getString(4).trim();
+                lname = rs.getString(5).trim();
+            } // end if
+        } // end try
+        try (ResultSet rs = stmt.executeQuery("SELECT name FROM maintenancecompany LIMIT 1")) {
+            if (rs.next())
+                company = rs.getString(1).trim();
+        } // end try
+
+        Map<Sql, Object[]> queries = new LinkedHashMap<>();
+        queries.put(Sql.BOOK_ROOM, new Object[] { -1, hotel, room, "01/01/2020", 1, 100, fname, lname });
+        queries.put(Sql.AVAILABLE_ROOMS, new Object[] { hotel });
+        queries.put(Sql.AVAILABLE_ROOMS_BETWEEN, new Object[] { hotel, "05/01/2020", "05/07/2020" });
+        queries.put(Sql.BOOKED_ROOMS, new Object[] { hotel });
+        queries.put(Sql.BOOKINGS_FOR_WEEK, new Object[] { hotel, "05/01/2020", "05/07/2020" });
+        queries.put(Sql.TOP_K_ROOM_PRICE, new Object[] { "05/01/2020", "05/07/2020", 10 });
+        queries.put(Sql.TOP_K_CUSTOMER_BOOKINGS, new Object[] { fname, lname, 10 });
+        queries.put(Sql.CUSTOMER_ID, new Object[] { fname, lname });
+        queries.put(Sql.TOP_K_CUSTOMER_ID_BOOKINGS, new Object[] { customerid, 10 });
+        queries.put(Sql.TOTAL_COST, new Object[] { hotel, customerid, "01/01/2019", "12/31/2020" });
+        queries.put(Sql.REPAIRS_BY_COMPANY, new Object[] { company });
+        queries.put(Sql.TOP_K_COMPANIES, new Object[] { 5 });
+        queries.put(Sql.TOP_ROOM_PRICES_BY_DAY, new Object[] { "05/01/2020", "05/07/2020", 50 });
+        queries.put(Sql.COMPANY_REPAIRS, new Object[] {});
+        queries.put(Sql.REPAIRS_PER_YEAR, new Object[] { hotel, room });
+        queries.put(Sql.BOOKINGS_PAGE, new Object[] { hotel, "05/01/2020", "05/07/2020", "05/03/2020", 0, 20 });
+        queries.put(Sql.CUSTOMER_BOOKINGS_PAGE_AFTER, new Object[] { customerid, 100, 0, 20 });
+        queries.put(Sql.REPAIRS_BY_COMPANY_PAGE, new Object[] { company, 0, 20 });
+        queries.put(Sql.CUSTOMER, new Object[] { customerid });
+        queries.put(Sql.ROOMS, new Object[] { hotel });
+        if (count(stmt, "SELECT COUNT(*) FROM pg_tables WHERE tablename = 'company_repairs'") > 0) {
+            queries.put(Sql.TOTAL_COST_AGGREGATE, new Object[] { hotel, customerid, "01/01/2019", "12/31/2020" });
+            queries.put(Sql.TOP_K_COMPANIES_AGGREGATE, new Object[] { 5 });
+            queries.put(Sql.COMPANY_REPAIRS_AGGREGATE, new Object[] {});
+            queries.put(Sql.REPAIRS_PER_YEAR_AGGREGATE, new Object[] { hotel, room });
+        } // end if
+        return queries;
+    }// end samples
+
+    private static long count(Statement stmt, String query) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery(query)) {
+            rs.next();
+            return rs.getLong(1);
+        } // end try
+    }// end count
+
+}// end Schema
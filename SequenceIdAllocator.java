@@ -0,0 +1,66 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Reserves ids from one Postgres sequence per table. Each sequence is created
+ * by migrate() with INCREMENT BY set to the block size, so a single nextval
+ * reserves a whole block.
+ */
+public class SequenceIdAllocator extends BlockIdAllocator {
+
+    public SequenceIdAllocator(ConnectionPool pool) {
+        super(pool);
+    }// end SequenceIdAllocator
+
+    static String sequenceName(String tableName, String fieldName) {
+        return tableName.toLowerCase() + "_" + fieldName.toLowerCase() + "_seq";
+    }// end sequenceName
+
+    protected Block reserve(String tableName, String fieldName) throws SQLException {
+        String seq = sequenceName(tableName, fieldName);
+        String query = "SELECT nextval('" + seq + "'), increment_by FROM pg_sequences "
+                + "WHERE schemaname = current_schema() AND sequencename = '" + seq + "'";
+
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery(query);
+            if (!rs.next())
+                throw new SQLException("Missing sequence " + seq + ", run the migrate-ids mode first");
+            long first = rs.getLong(1);
+            return new Block(first, first + rs.getLong(2));
+        } finally {
+            pool.release(p);
+        } // end try
+    }// end reserve
+
+    /**
+     * Moves every table to a sequence that hands out blocks of the given size.
+     * The sequence starts after the current MAX of the key column and becomes
+     * the column default. Run it while no other client is connected.
+     *
+     * @param pool      the pool to run the DDL on
+     * @param blockSize the number of ids reserved by one nextval
+     * @throws java.sql.SQLException when the migration failed
+     */
+    public static void migrate(ConnectionPool pool, int blockSize) throws SQLException {
+        ConnectionPool.Pooled p = pool.borrow();
+        try (Statement stmt = p.connection.createStatement()) {
+            for (String[] column : ID_COLUMNS) {
+                String table = column[0], field = column[1];
+                String seq = sequenceName(table, field);
+
+                stmt.execute(String.format("CREATE SEQUENCE IF NOT EXISTS %s OWNED BY %s.%s", seq, table, field));
+                stmt.execute(String.format("ALTER SEQUENCE %s INCREMENT BY %s", seq, blockSize));
+                stmt.execute(String.format("SELECT setval('%s', COALESCE(MAX(%s), 0) + 1, false) FROM %s", seq,
+                        field, table));
+                stmt.execute(String.format("ALTER TABLE %s ALTER COLUMN %s SET DEFAULT nextval('%s')", table,
+                        field, seq));
+                System.out.println("\t" + table + "." + field + " -> " + seq);
+            } // end for
+        } finally {
+            pool.release(p);
+        } // end try
+    }// end migrate
+
+}// end SequenceIdAllocator
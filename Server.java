@@ -0,0 +1,379 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the menu commands to many front desks over a line protocol.
+ *
+ * A client sends one command per line, in the syntax of Commands. The reply
+ * is the result rows in the dbproject.format layout followed by one status
+ * line, "#OK status" or "#ERR message". Every command runs in its own
+ * transaction on a bounded pool of dbproject.server.workers threads in front
+ * of the connection pool. Each worker holds a connection for its command, so
+ * by default there are two workers fewer than connections: id reservations,
+ * the analytics refresh and the availability reload borrow a connection of
+ * their own while a worker waits on them.
+ *
+ * Backpressure: at most dbproject.server.queue commands wait for a worker;
+ * beyond that a command is refused at once with "#ERR busy". A command that
+ * has not finished after dbproject.server.timeout milliseconds, counted from
+ * its arrival, is cancelled on the server by statement_timeout or rolled
+ * back before its commit, and answered with "#ERR timeout". A read that
+ * overruns is answered at once; a write is answered with its real outcome,
+ * so "#ERR timeout" always means nothing was committed.
+ *
+ * With dbproject.replicas, the commands that only read run outside a
+ * transaction so a replica can answer them, within its
+ * dbproject.replicas.timeout; each client is a session of its own for the
+ * read-your-writes rule of Replicas.
+ *
+ * "stats" answers with the server counters and "metrics" with the database
+ * call counters in the Prometheus text format, without its comment lines.
+ */
+public class Server {
+
+    private final DBProject esql;
+    private final int port;
+    private final long timeoutMillis = Long.getLong("dbproject.server.timeout", 5000);
+    private final ThreadPoolExecutor workers;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    // connections left to the borrowers that run on behalf of a worker
+    private static final int SPARE_CONNECTIONS = 2;
+
+    public Server(DBProject esql, int port) {
+        this.esql = esql;
+        this.port = port;
+        int threads = Integer.getInteger("dbproject.server.workers",
+                Math.max(1, esql.pool().size() - SPARE_CONNECTIONS));
+        if (threads >= esql.pool().size())
+            System.err.println("Warning: " + threads + " workers for " + esql.pool().size()
+                    + " connections, id reservations may time out under load");
+        int queue = Integer.getInteger("dbproject.server.queue", threads * 4);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    Thread t = new Thread(r, "worker");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }// end Server
+
+    /**
+     * Accepts sessions until the process is stopped. Each session has its own
+     * reader thread with a small stack; only the workers touch the database.
+     *
+     * @throws java.io.IOException when the port could not be opened
+     */
+    public void serve() throws IOException {
+        try (ServerSocket listener = new ServerSocket(port, 1024)) {
+            System.out.println(String.format("Listening on port %d, %d workers, queue %d, timeout %d ms", port,
+                    workers.getMaximumPoolSize(), workers.getQueue().remainingCapacity(), timeoutMillis));
+            while (true) {
+                Socket socket = listener.accept();
+                Thread session = new Thread(null, () -> session(socket), "session", 256 * 1024);
+                session.setDaemon(true);
+                session.start();
+            } // end while
+        } finally {
+            workers.shutdownNow();
+        } // end try
+    }// end serve
+
+    private void session(Socket socket) {
+        sessions.incrementAndGet();
+        // the time of this client's last write, see Replicas
+        long[] lastWrite = new long[1];
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+                Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"))) {
+            s.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty())
+                    continue;
+                if (trimmed.equalsIgnoreCase("quit"))
+                    break;
+                out.write(handle(trimmed, lastWrite));
+                out.flush();
+            } // end while
+        } catch (IOException e) {
+            // the client went away.
+        } finally {
+            sessions.decrementAndGet();
+        } // end try
+    }// end session
+
+    // runs one command on a worker and returns the whole reply
+    private String handle(String line, long[] lastWrite) {
+        if (line.equalsIgnoreCase("stats"))
+            return "#OK " + stats() + "\n";
+        if (line.equalsIgnoreCase("metrics"))
+            // the comment lines would read as a status line
+            return esql.metrics().getPrometheus().replaceAll("(?m)^#.*\n", "") + "#OK metrics\n";
+
+        // the worker owns the deadline: it rolls back a command that reaches its commit too late
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        Future<String> reply;
+        try {
+            reply = workers.submit(() -> run(line, lastWrite, deadline));
+        } catch (RejectedExecutionException e) {
+            refused.incrementAndGet();
+            return "#ERR busy\n";
+        } // end try
+
+        try {
+            try {
+                // statement_timeout stops the query, this only bounds the wait for a worker and the pool
+                return reply.get(timeoutMillis + 1000, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (writes(line))
+                    // a write may still commit, so the client waits for what really happened
+                    return reply.get();
+                reply.cancel(true);
+                timedOut.incrementAndGet();
+                return "#ERR timeout\n";
+            } // end try
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            return "#ERR " + oneLine(e.getCause()) + "\n";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "#ERR interrupted\n";
+        } // end try
+    }// end handle
+
+    // whether a command line names a write command
+    private static boolean writes(String line) {
+        try {
+            List<String> tokens = Commands.tokenize(line);
+            Commands.Command command = tokens.isEmpty() ? null : Commands.find(tokens.get(0));
+            return command != null && command.write;
+        } catch (IllegalArgumentException e) {
+            return false;
+        } // end try
+    }// end writes
+
+    private String run(String line, long[] lastWrite, long deadline) throws Exception {
+        StringWriter rows = new StringWriter();
+        esql.redirect(ResultSink.create(System.getProperty("dbproject.format", "tsv"), rows));
+        Replicas replicas = esql.replicas();
+        List<String> tokens = Commands.tokenize(line);
+        Commands.Command command = tokens.isEmpty() ? null : Commands.find(tokens.get(0));
+        boolean transaction = replicas == null || command == null || command.write;
+        if (replicas != null)
+            replicas.session(lastWrite);
+        if (transaction)
+            esql.begin();
+        try {
+            long left = (deadline - System.nanoTime()) / 1000000;
+            if (left <= 0) {
+                timedOut.incrementAndGet();
+                return "#ERR timeout\n";
+            } // end if
+            if (transaction) {
+                ConnectionPool.Pooled p = esql.acquire();
+                try (Statement stmt = p.connection.createStatement()) {
+                    stmt.execute("SET LOCAL statement_timeout = " + left);
+                } // end try
+            } // end if
+
+            String status;
+            try {
+                status = Commands.execute(esql, tokens);
+                if (transaction) {
+                    // statement_timeout bounds each statement, not the command
+                    if (System.nanoTime() > deadline) {
+                        esql.rollback();
+                        if (command != null && command.write)
+                            esql.forgetUncommitted();
+                        timedOut.incrementAndGet();
+                        return "#ERR timeout\n";
+                    } // end if
+                    esql.commit();
+                } // end if
+            } catch (SQLException e) {
+                if (transaction)
+                    esql.rollback();
+                // the caches may have recorded the write that was rolled back
+                if (command != null && command.write)
+                    esql.forgetUncommitted();
+                if ("57014".equals(e.getSQLState())) {
+                    timedOut.incrementAndGet();
+                    return "#ERR timeout\n";
+                } // end if
+                failed.incrementAndGet();
+                return "#ERR " + oneLine(e) + "\n";
+            } catch (Exception e) {
+                if (transaction)
+                    esql.rollback();
+                if (command != null && command.write)
+                    esql.forgetUncommitted();
+                failed.incrementAndGet();
+                return "#ERR " + oneLine(e) + "\n";
+            } // end try
+            served.incrementAndGet();
+            return rows.toString() + "#OK " + status + "\n";
+        } finally {
+            esql.end();
+            esql.redirect(null);
+            if (replicas != null)
+                replicas.session(null);
+        } // end try
+    }// end run
+
+    private static String oneLine(Throwable e) {
+        String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        return message.replace('\n', ' ');
+    }// end oneLine
+
+    /**
+     * Returns a one-line summary of the server counters.
+     *
+     * @return the counters
+     */
+    public String stats() {
+        return String.format("sessions=%d served=%d refused=%d timeouts=%d errors=%d queued=%d %s", sessions.get(),
+                served.get(), refused.get(), timedOut.get(), failed.get(), workers.getQueue().size(),
+                esql.pool().metrics());
+    }// end stats
+
+    /**
+     * Opens many sessions to a server, sends the same command from each of
+     * them in a loop for a while and reports the latency percentiles and the
+     * refused and failed commands.
+     *
+     * @param host     the server host
+     * @param port     the server port
+     * @param clients  the number of concurrent sessions, e.g. 1000
+     * @param seconds  how long to run
+     * @param commands the commands to send, in turn
+     * @throws java.lang.InterruptedException when interrupted while waiting
+     */
+    public static void load(String host, int port, int clients, int seconds, List<String> commands)
+            throws InterruptedException {
+        long[][] samples = new long[clients][];
+        int[] counts = new int[clients];
+        AtomicLong busy = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] threads = new Thread[clients];
+
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            threads[c] = new Thread(null, () -> {
+                long[] mine = new long[1024];
+                int n = 0;
+                try (Socket socket = new Socket(host, port);
+                        BufferedReader in = new BufferedReader(
+                                new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"))) {
+                    socket.setTcpNoDelay(true);
+                    connected.countDown();
+                    go.await();
+                    for (int i = client; System.nanoTime() < deadline[0]; i++) {
+                        long t0 = System.nanoTime();
+                        out.write(commands.get(i % commands.size()));
+                        out.write('\n');
+                        out.flush();
+                        String line;
+                        while ((line = in.readLine()) != null && !line.startsWith("#"))
+                            ;
+                        if (line == null)
+                            break;
+                        if (line.startsWith("#ERR busy"))
+                            busy.incrementAndGet();
+                        else if (line.startsWith("#ERR"))
+                            errors.incrementAndGet();
+                        if (n == mine.length)
+                            mine = Arrays.copyOf(mine, n * 2);
+                        mine[n++] = System.nanoTime() - t0;
+                    } // end for
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    connected.countDown();
+                } catch (InterruptedException e) {
+                    // stopping.
+                } // end try
+                samples[client] = mine;
+                counts[client] = n;
+            }, "client", 256 * 1024);
+            threads[c].start();
+        } // end for
+
+        connected.await();
+        deadline[0] = System.nanoTime() + seconds * 1000000000L;
+        go.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        int total = 0;
+        for (int n : counts)
+            total += n;
+        long[] all = new long[total];
+        int at = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(samples[c], 0, all, at, counts[c]);
+            at += counts[c];
+        } // end for
+        Arrays.sort(all);
+        if (total == 0) {
+            System.out.println("No command completed, " + errors.get() + " errors");
+            return;
+        } // end if
+        System.out.println(String.format(
+                "%d sessions, %d commands in %d s (%.0f/s), p50 %.2f ms, p99 %.2f ms, max %.2f ms, busy %d, errors %d",
+                clients, total, seconds, total / (double) seconds, all[(total - 1) / 2] / 1e6,
+                all[(int) Math.ceil(total * 0.99) - 1] / 1e6, all[total - 1] / 1e6, busy.get(), errors.get()));
+    }// end load
+
+    /**
+     * Runs the load generator without a database connection:
+     * java Server host port [sessions] [seconds] [command]...
+     *
+     * @param args the command line arguments
+     * @throws java.lang.Exception when the load could not be generated
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java Server <host> <port> [sessions] [seconds] [command]...");
+            return;
+        } // end if
+        List<String> commands = new ArrayList<>();
+        for (int i = 4; i < args.length; i++)
+            commands.add(args[i]);
+        if (commands.isEmpty())
+            commands.add("numberOfBookedRooms 1");
+        load(args[0], Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 1000,
+                args.length > 3 ? Integer.parseInt(args[3]) : 10, commands);
+    }// end main
+
+}// end Server
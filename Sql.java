@@ -0,0 +1,99 @@
+/**
+ * The named, parameterized statements issued by the menu operations. Each one
+ * is prepared once per connection by StatementCache and reused.
+ */
+public enum Sql {
+
+    ADD_CUSTOMER("INSERT INTO CUSTOMER(CUSTOMERID,FNAME,LNAME,ADDRESS,PHNO,DOB,GENDER) VALUES(?,?,?,?,?,?,?)"),
+    ADD_ROOM("INSERT INTO Room VALUES (?, ?, ?)"),
+    ADD_MAINTENANCE_COMPANY("INSERT INTO MaintenanceCompany(cmpID, name, address, isCertified) VALUES(?,?,?,?)"),
+    ADD_REPAIR("INSERT INTO Repair VALUES (?, ?, ?, ?, ?, ?, ?)"),
+    BOOK_ROOM("insert into booking select ?, c.customerid, ?, ?, CAST(? AS DATE), ?, ? from customer c "
+            + "where c.fname = ? and c.lname = ? limit 1"),
+    BOOK_ROOM_NIGHT("WITH claim AS (INSERT INTO room_night (hotelid, roomno, night, bid) "
+            + "SELECT ?, ?, CAST(? AS DATE), ? WHERE NOT EXISTS (SELECT 1 FROM Booking B WHERE B.hotelid = ? "
+            + "AND B.roomno = ? AND B.bookingdate = CAST(? AS DATE)) ON CONFLICT DO NOTHING "
+            + "RETURNING bid, hotelid, roomno, night) "
+            + "INSERT INTO Booking SELECT bid, ?, hotelid, roomno, night, ?, ? FROM claim"),
+    BOOK_ROOM_IF_FREE("INSERT INTO Booking SELECT ?, ?, ?, ?, CAST(? AS DATE), ?, ? WHERE NOT EXISTS "
+            + "(SELECT 1 FROM Booking B WHERE B.hotelid = ? AND B.roomno = ? AND B.bookingdate = CAST(? AS DATE))"),
+    ASSIGN_HOUSE_CLEANING("INSERT INTO Assigned VALUES (?, ?, ?, ?)"),
+    REPAIR_REQUEST("INSERT INTO request VALUES(?, ?, ?, ?, ?)"),
+    AVAILABLE_ROOMS("SELECT COUNT(*) FROM Room R WHERE R.hotelid = ? AND NOT EXISTS "
+            + "(SELECT 1 FROM Booking B WHERE B.hotelid = R.hotelid AND B.roomno = R.roomno)", true),
+    AVAILABLE_ROOMS_BETWEEN("SELECT COUNT(*) FROM Room R WHERE R.hotelid = ? AND NOT EXISTS "
+            + "(SELECT 1 FROM Booking B WHERE B.hotelid = R.hotelid AND B.roomno = R.roomno "
+            + "AND B.bookingdate BETWEEN ? AND ?)", true),
+    BOOKED_ROOMS("Select count(*) as TotalBookings from booking where hotelid = ?", true),
+    BOOKINGS_FOR_WEEK("SELECT * from Booking WHERE hotelid = ? and bookingdate BETWEEN ? AND ?", true),
+    BOOKINGS_SINCE("SELECT B.*, B.bookingdate - DATE '1970-01-01' FROM Booking B WHERE B.bid > ?"),
+    TOP_K_ROOM_PRICE("select hotelID, roomNo, price, bookingDate from booking where bookingDate between ? and ? "
+            + "order by price DESC limit ?", true),
+    TOP_ROOM_PRICES_BY_DAY("SELECT hotelid, roomno, price, bookingdate - DATE '1970-01-01' FROM (SELECT hotelid, "
+            + "roomno, price, bookingdate, row_number() OVER (PARTITION BY bookingdate ORDER BY price DESC) AS rn "
+            + "FROM booking WHERE bookingdate BETWEEN ? AND ?) b WHERE rn <= ?"),
+    TOP_K_CUSTOMER_BOOKINGS("SELECT B.price FROM Booking B, Customer C "
+            + "WHERE C.customerid = B.customer AND C.fName = ? AND C.lName = ? ORDER BY B.price DESC LIMIT ?", true),
+    TOP_K_CUSTOMER_ID_BOOKINGS("SELECT price FROM Booking WHERE customer = ? ORDER BY price DESC LIMIT ?", true),
+    CUSTOMER_ID("select customerid from customer where fname = ? and lname = ? order by customerid", true),
+    CUSTOMERS("SELECT customerid, fname, lname FROM Customer ORDER BY customerid"),
+    CUSTOMERS_BY_PREFIX("SELECT customerid, rtrim(fname) AS fname, rtrim(lname) AS lname FROM Customer "
+            + "WHERE lower(fname || ' ' || lname) LIKE ? ORDER BY lower(fname || ' ' || lname), customerid "
+            + "LIMIT ?", true),
+    TOTAL_COST("select COALESCE(sum(price), 0) as TotalIncurred from booking "
+            + "where hotelID = ? and customer = ? and bookingdate between ? and ?", true),
+    TOTAL_COST_AGGREGATE("select COALESCE(sum(total), 0) as TotalIncurred from revenue_daily "
+            + "where hotelID = ? and customer = ? and day between ? and ?", true),
+    REPAIRS_BY_COMPANY("SELECT r.rid, r.hotelid, r.roomNo, r.repairType FROM maintenancecompany mc, repair r "
+            + "WHERE mc.name = ? AND mc.cmpid = r.mcompany"),
+    TOP_K_COMPANIES("select m.name, count(m.cmpID) as RepairCount from MaintenanceCompany m, repair r "
+            + "where m.cmpID = r.mCompany group by m.cmpID order by RepairCount DESC limit ?", true),
+    COMPANY_REPAIRS("select m.cmpID, m.name, count(*) from MaintenanceCompany m, repair r "
+            + "where m.cmpID = r.mCompany group by m.cmpID"),
+    COMPANY_REPAIRS_AGGREGATE("select m.cmpID, m.name, c.repairs from company_repairs c "
+            + "join MaintenanceCompany m on m.cmpID = c.cmpid"),
+    TOP_K_COMPANIES_AGGREGATE("select m.name, c.repairs as RepairCount from company_repairs c "
+            + "join MaintenanceCompany m on m.cmpID = c.cmpid where c.repairs > 0 order by c.repairs DESC "
+            + "limit ?", true),
+    BOOKINGS_PAGE("SELECT bid, customer, hotelid, roomno, bookingdate - DATE '1970-01-01', noofpeople, price "
+            + "FROM Booking WHERE hotelid = ? AND bookingdate BETWEEN ? AND ? AND (bookingdate, bid) > (?, ?) "
+            + "ORDER BY bookingdate, bid LIMIT ?", true),
+    CUSTOMER_BOOKINGS_PAGE("SELECT bid, customer, hotelid, roomno, bookingdate - DATE '1970-01-01', noofpeople, "
+            + "price FROM Booking WHERE customer = ? ORDER BY price DESC, bid DESC LIMIT ?", true),
+    CUSTOMER_BOOKINGS_PAGE_AFTER("SELECT bid, customer, hotelid, roomno, bookingdate - DATE '1970-01-01', "
+            + "noofpeople, price FROM Booking WHERE customer = ? AND (price, bid) < (?, ?) "
+            + "ORDER BY price DESC, bid DESC LIMIT ?", true),
+    REPAIRS_BY_COMPANY_PAGE("SELECT r.rid, r.hotelid, r.roomno, r.mcompany, r.repairdate - DATE '1970-01-01', "
+            + "r.description, r.repairtype FROM maintenancecompany mc JOIN repair r ON r.mcompany = mc.cmpid "
+            + "WHERE mc.name = ? AND r.rid > ? ORDER BY r.rid LIMIT ?", true),
+    CUSTOMER("SELECT customerid, rtrim(fname), rtrim(lname), address, phno, dob - DATE '1970-01-01', gender "
+            + "FROM Customer WHERE customerid = ?", true),
+    ROOMS("SELECT hotelid, roomno, roomtype FROM Room WHERE hotelid = ? ORDER BY roomno", true),
+    MAINTENANCE_COMPANY("SELECT cmpid, name, address, iscertified FROM MaintenanceCompany WHERE cmpid = ?", true),
+    REQUEST("SELECT reqid, managerid, repairid, requestdate - DATE '1970-01-01', description FROM Request "
+            + "WHERE reqid = ?", true),
+    REPAIRS_PER_YEAR_AGGREGATE("SELECT repairs as number_of_repairs, year FROM repair_yearly "
+            + "WHERE hotelid = ? and roomno = ? and repairs > 0 ORDER BY year", true),
+    REPAIRS_PER_YEAR("SELECT COUNT(DATE_PART('year', repairdate)) as number_of_repairs, "
+            + "DATE_PART('year', repairdate) as year FROM repair r WHERE r.hotelid = ? and r.roomno = ? "
+            + "GROUP BY DATE_PART('year', repairdate)", true);
+
+    public final String text;
+
+    // a query that changes nothing, which a replica may answer
+    public final boolean read;
+
+    // a query that returns one row or a few, which is read without a cursor
+    public final boolean bounded;
+
+    Sql(String text) {
+        this(text, false);
+    }// end Sql
+
+    Sql(String text, boolean bounded) {
+        this.text = text;
+        this.read = text.regionMatches(true, 0, "SELECT", 0, 6);
+        this.bounded = bounded;
+    }// end Sql
+
+}// end Sql
@@ -0,0 +1,108 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the time goes between launching the client and its first result,
+ * for the scripted runs that start a JVM per command.
+ *
+ * With -Ddbproject.lazyConnect=true the constructor does not wait for the
+ * server: a background thread opens the first connection, prepares every
+ * named statement on it and publishes the metrics over JMX, while main
+ * parses its arguments and loads the classes of the mode. The first
+ * statement waits for that connection. A wrong port or a server that is
+ * down is then reported by the first statement, after at most
+ * dbproject.connectTimeout seconds (the driver's 10 by default).
+ *
+ * With -Ddbproject.startupTimes=true a line like this goes to standard
+ * error once the mode has run:
+ *
+ *   startup: jvm 38.2 ms, client 6.1 ms, first result 21.7 ms, total 66.0 ms (connect 17.4 ms)
+ *
+ *   jvm          JVM start to main(), mostly loading classes
+ *   client       main() to the client constructed
+ *   first result constructed to the mode done, waiting for the connection
+ *   connect      the warm-up thread: connect, authenticate, prepare
+ *
+ * Class-data sharing takes most of the jvm share away: the classes of the
+ * client and of the driver are mapped from an archive made by a training
+ * run instead of being read from the class path and verified. The archive
+ * only takes classes from jars, so the client is packaged first.
+ *
+ *   jar cf dbproject.jar *.class
+ *   java -XX:ArchiveClassesAtExit=dbproject.jsa -Ddbproject.lazyConnect=true \
+ *       -cp dbproject.jar:postgresql.jar DBProject hotel 5432 user exec numberOfBookedRooms 1
+ *   java -XX:SharedArchiveFile=dbproject.jsa -XX:TieredStopAtLevel=1 -XX:+UseSerialGC \
+ *       -Ddbproject.lazyConnect=true -cp dbproject.jar:postgresql.jar DBProject hotel 5432 user exec ...
+ *
+ * Make the archive again after every build or driver upgrade; the JVM
+ * ignores an archive whose class path no longer matches.
+ */
+public final class Startup {
+
+    private static final boolean ENABLED = Boolean.getBoolean("dbproject.startupTimes");
+
+    private static long main;
+    private static long mainMillis;
+    private static long last;
+    private static final List<String> PHASES = new ArrayList<>();
+    private static final List<Double> MILLIS = new ArrayList<>();
+    private static volatile double connectMillis = -1;
+
+    private Startup() {
+    }
+
+    /**
+     * Records the entry to main(); the first call of the client.
+     */
+    static void begin() {
+        if (!ENABLED)
+            return;
+        main = last = System.nanoTime();
+        mainMillis = System.currentTimeMillis();
+    }// end begin
+
+    /**
+     * Records the end of a phase that started where the previous one ended.
+     *
+     * @param phase the name of the phase
+     */
+    static synchronized void mark(String phase) {
+        if (!ENABLED || main == 0)
+            return;
+        long now = System.nanoTime();
+        PHASES.add(phase);
+        MILLIS.add((now - last) / 1e6);
+        last = now;
+    }// end mark
+
+    /**
+     * Records how long the background connection took.
+     *
+     * @param nanos its duration
+     */
+    static void connected(long nanos) {
+        connectMillis = nanos / 1e6;
+    }// end connected
+
+    /**
+     * Prints the phases recorded so far to standard error. The JVM start
+     * time is read only now, as the management classes are slow to load.
+     */
+    static synchronized void report() {
+        if (!ENABLED || main == 0)
+            return;
+        StringBuilder line = new StringBuilder("startup:");
+        double total = Math.max(0, mainMillis - ManagementFactory.getRuntimeMXBean().getStartTime());
+        line.append(String.format(" jvm %.1f ms,", total));
+        for (int i = 0; i < PHASES.size(); i++) {
+            line.append(String.format(" %s %.1f ms,", PHASES.get(i), MILLIS.get(i)));
+            total += MILLIS.get(i);
+        } // end for
+        line.append(String.format(" total %.1f ms", total));
+        if (connectMillis >= 0)
+            line.append(String.format(" (connect %.1f ms)", connectMillis));
+        System.err.println(line);
+    }// end report
+
+}// end Startup
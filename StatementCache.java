@@ -0,0 +1,92 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-connection registry of prepared statements. The named statements in Sql
+ * are prepared on first use and kept for the life of the connection; ad-hoc
+ * SQL is kept in a bounded LRU and closed when evicted.
+ *
+ * Reusing the same PreparedStatement object lets the driver switch to a
+ * server-side prepared statement, so Postgres stops parsing and planning the
+ * text on every call.
+ */
+public class StatementCache {
+
+    private final Connection connection;
+    private final int maxAdHoc;
+    private final EnumMap<Sql, PreparedStatement> named = new EnumMap<>(Sql.class);
+    private final LinkedHashMap<String, PreparedStatement> adHoc;
+
+    public StatementCache(Connection connection, int maxAdHoc) {
+        this.connection = connection;
+        this.maxAdHoc = maxAdHoc;
+        this.adHoc = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= StatementCache.this.maxAdHoc)
+                    return false;
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }// end StatementCache
+
+    /**
+     * Returns the prepared statement for a named operation.
+     *
+     * @param sql the operation
+     * @return the statement, prepared on first use
+     * @throws java.sql.SQLException when the statement could not be prepared
+     */
+    public synchronized PreparedStatement get(Sql sql) throws SQLException {
+        PreparedStatement stmt = named.get(sql);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql.text);
+            named.put(sql, stmt);
+        } // end if
+        return stmt;
+    }// end get
+
+    /**
+     * Returns a prepared statement for ad-hoc SQL, reusing it while it stays
+     * among the most recently used.
+     *
+     * @param sql the SQL text
+     * @return the statement
+     * @throws java.sql.SQLException when the statement could not be prepared
+     */
+    public synchronized PreparedStatement get(String sql) throws SQLException {
+        PreparedStatement stmt = adHoc.get(sql);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql);
+            adHoc.put(sql, stmt);
+        } // end if
+        return stmt;
+    }// end get
+
+    /**
+     * Closes every cached statement.
+     */
+    public synchronized void close() {
+        for (PreparedStatement stmt : named.values())
+            closeQuietly(stmt);
+        named.clear();
+        for (Iterator<PreparedStatement> it = adHoc.values().iterator(); it.hasNext();) {
+            closeQuietly(it.next());
+            it.remove();
+        } // end for
+    }// end close
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // ignored.
+        } // end try
+    }// end closeQuietly
+
+}// end StatementCache
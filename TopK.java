@@ -0,0 +1,335 @@
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Live leaderboards for the top-k reports.
+ *
+ * Room prices: for every day that has been asked about, a bounded min-heap
+ * keeps the dbproject.topk.capacity most expensive bookings of that day. The
+ * k most expensive bookings of a range are among the k most expensive of its
+ * days, so a range whose days are all loaded is answered by merging their
+ * heaps into one heap of size k. Days are loaded with one windowed query per
+ * cold range of up to dbproject.topk.warmDays days, run outside the monitor
+ * so ranges already loaded are answered meanwhile; longer ranges, and any k
+ * above the capacity, stream the ORDER BY ... LIMIT query instead.
+ *
+ * Companies: the repair count of every company, selected with a heap of
+ * size k.
+ *
+ * Bookings and repairs made by this client are offered as they are
+ * inserted. Both boards are dropped after dbproject.topk.maxAge seconds so
+ * writes of other clients are picked up.
+ */
+public class TopK {
+
+    /**
+     * A min-heap that keeps the capacity rows with the highest scores.
+     */
+    static final class Heap {
+        final int capacity;
+        private double[] scores;
+        private String[][] rows;
+        private int size;
+
+        Heap(int capacity) {
+            this.capacity = capacity;
+            this.scores = new double[Math.min(capacity, 16)];
+            this.rows = new String[scores.length][];
+        }
+
+        // keeps the row if it beats the lowest kept one, O(log capacity)
+        void offer(double score, String[] row) {
+            if (size == capacity) {
+                if (score <= scores[0])
+                    return;
+                scores[0] = score;
+                rows[0] = row;
+                down(0);
+                return;
+            } // end if
+            if (size == scores.length) {
+                scores = Arrays.copyOf(scores, Math.min(capacity, size * 2));
+                rows = Arrays.copyOf(rows, scores.length);
+            } // end if
+            scores[size] = score;
+            rows[size] = row;
+            up(size++);
+        }
+
+        // whether offer() would keep a row with this score
+        boolean accepts(double score) {
+            return size < capacity || score > scores[0];
+        }
+
+        // whether a row with the same leading values is kept
+        boolean contains(String[] row, int keyLength) {
+            for (int i = 0; i < size; i++) {
+                if (Arrays.equals(rows[i], 0, keyLength, row, 0, keyLength))
+                    return true;
+            } // end for
+            return false;
+        }
+
+        void addTo(Heap other) {
+            for (int i = 0; i < size; i++)
+                other.offer(scores[i], rows[i]);
+        }
+
+        // the kept rows, highest score first
+        String[][] descending() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+            String[][] sorted = new String[size][];
+            for (int i = 0; i < size; i++)
+                sorted[i] = rows[order[i]];
+            return sorted;
+        }
+
+        private void up(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (scores[parent] <= scores[i])
+                    return;
+                swap(i, parent);
+                i = parent;
+            } // end while
+        }
+
+        private void down(int i) {
+            while (true) {
+                int smallest = i, left = 2 * i + 1, right = left + 1;
+                if (left < size && scores[left] < scores[smallest])
+                    smallest = left;
+                if (right < size && scores[right] < scores[smallest])
+                    smallest = right;
+                if (smallest == i)
+                    return;
+                swap(i, smallest);
+                i = smallest;
+            } // end while
+        }
+
+        private void swap(int a, int b) {
+            double score = scores[a];
+            scores[a] = scores[b];
+            scores[b] = score;
+            String[] row = rows[a];
+            rows[a] = rows[b];
+            rows[b] = row;
+        }
+    }// end Heap
+
+    static final String[] PRICE_COLUMNS = { "hotelid", "roomno", "price", "bookingdate" };
+    static final int[] PRICE_TYPES = { Types.INTEGER, Types.INTEGER, Types.NUMERIC, Types.DATE };
+    static final String[] COMPANY_COLUMNS = { "name", "repaircount" };
+    static final int[] COMPANY_TYPES = { Types.VARCHAR, Types.BIGINT };
+
+    private final int capacity = Integer.getInteger("dbproject.topk.capacity", 50);
+    private final int warmDays = Integer.getInteger("dbproject.topk.warmDays", 366);
+    private final long maxAgeMillis = Long.getLong("dbproject.topk.maxAge", 300) * 1000;
+
+    // epoch day to the most expensive bookings of that day, guarded by this
+    private HashMap<Long, Heap> days = new HashMap<>();
+    private long daysLoadedAt = System.currentTimeMillis();
+
+    // day loads running outside the monitor, and the bookings offered meanwhile to days not yet loaded
+    private int loading = 0;
+    private final List<Object[]> missed = new ArrayList<>();
+
+    // cmpid to { name, repair count }, null until loaded, guarded by this
+    private HashMap<Integer, Object[]> companies = null;
+    private long companiesLoadedAt = 0;
+
+    /**
+     * Writes the k most expensive bookings of a range to the output of the
+     * client, from the leaderboard when possible.
+     *
+     * @param esql the connected client
+     * @param k    the number of bookings
+     * @param from the first day, as an epoch day
+     * @param to   the last day, as an epoch day
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the bookings could not be read
+     */
+    public int roomPrices(DBProject esql, int k, long from, long to) throws SQLException {
+        if (k < 0)
+            throw new IllegalArgumentException("k must not be negative");
+        if (k > capacity || to - from >= warmDays)
+            return esql.executeQuery(Sql.TOP_K_ROOM_PRICE, Dates.sql(from), Dates.sql(to), k);
+
+        Heap top = new Heap(Math.max(k, 1));
+        long cold;
+        List<Heap> warm = new ArrayList<>();
+        synchronized (this) {
+            if (System.currentTimeMillis() - daysLoadedAt > maxAgeMillis) {
+                days = new HashMap<>();
+                daysLoadedAt = System.currentTimeMillis();
+            } // end if
+            cold = from;
+            while (cold <= to && days.containsKey(cold))
+                cold++;
+            if (cold > to) {
+                for (long day = from; day <= to; day++)
+                    days.get(day).addTo(top);
+            } else {
+                for (long day = from; day < cold; day++)
+                    warm.add(days.get(day));
+                loading++;
+            } // end if
+        } // end synchronized
+
+        if (cold <= to) {
+            // the query runs outside the monitor, so questions about warm days are not held up
+            HashMap<Long, Heap> loaded = null;
+            try {
+                loaded = loadDays(esql, cold, to);
+            } finally {
+                merge(loaded);
+            } // end try
+            synchronized (this) {
+                for (Heap heap : warm)
+                    heap.addTo(top);
+                for (long day = cold; day <= to; day++) {
+                    Heap heap = days.get(day);
+                    (heap != null ? heap : loaded.get(day)).addTo(top);
+                } // end for
+            } // end synchronized
+        } // end if
+        return esql.output().write(PRICE_COLUMNS, PRICE_TYPES, k == 0 ? List.of() : Arrays.asList(top.descending()));
+    }// end roomPrices
+
+    // loads the most expensive bookings of every day of [from, to]
+    private HashMap<Long, Heap> loadDays(DBProject esql, long from, long to) throws SQLException {
+        HashMap<Long, Heap> loaded = new HashMap<>();
+        for (long day = from; day <= to; day++)
+            loaded.put(day, new Heap(capacity));
+        ConnectionPool.Pooled p = esql.acquire();
+        try {
+            PreparedStatement stmt = p.statements.get(Sql.TOP_ROOM_PRICES_BY_DAY);
+            DBProject.bind(stmt, Dates.sql(from), Dates.sql(to), capacity);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    BigDecimal price = rs.getBigDecimal(3);
+                    int day = rs.getInt(4);
+                    loaded.get((long) day).offer(price.doubleValue(),
+                            new String[] { rs.getString(1), rs.getString(2), rs.getString(3), Dates.iso(day) });
+                } // end while
+            } // end try
+        } finally {
+            esql.release(p);
+        } // end try
+        return loaded;
+    }// end loadDays
+
+    // adds the days another load did not bring in meanwhile, with the bookings offered during the load
+    private synchronized void merge(HashMap<Long, Heap> loaded) {
+        if (loaded != null) {
+            for (Object[] offer : missed) {
+                Heap heap = loaded.get((Long) offer[0]);
+                String[] row = (String[]) offer[2];
+                // the query may have read the booking already; a room is booked once a day
+                if (heap != null && !heap.contains(row, 2))
+                    heap.offer((Double) offer[1], row);
+            } // end for
+            for (Map.Entry<Long, Heap> day : loaded.entrySet())
+                days.putIfAbsent(day.getKey(), day.getValue());
+        } // end if
+        if (--loading == 0)
+            missed.clear();
+    }// end merge
+
+    /**
+     * Writes the k companies with the most repairs to the output of the
+     * client.
+     *
+     * @param esql the connected client
+     * @param k    the number of companies
+     * @return the number of rows written
+     * @throws java.sql.SQLException when the counts could not be read
+     */
+    public int companies(DBProject esql, int k) throws SQLException {
+        if (k < 0)
+            throw new IllegalArgumentException("k must not be negative");
+        Heap top = new Heap(Math.max(k, 1));
+        synchronized (this) {
+            if (companies == null || System.currentTimeMillis() - companiesLoadedAt > maxAgeMillis)
+                loadCompanies(esql);
+            for (Object[] company : companies.values()) {
+                long repairs = (Long) company[1];
+                if (repairs > 0)
+                    top.offer(repairs, new String[] { (String) company[0], String.valueOf(repairs) });
+            } // end for
+        } // end synchronized
+        return esql.output().write(COMPANY_COLUMNS, COMPANY_TYPES,
+                k == 0 ? List.of() : Arrays.asList(top.descending()));
+    }// end companies
+
+    private void loadCompanies(DBProject esql) throws SQLException {
+        HashMap<Integer, Object[]> loaded = new HashMap<>();
+        ConnectionPool.Pooled p = esql.acquire();
+        try {
+            PreparedStatement stmt = p.statements.get(Aggregates.available(esql) ? Sql.COMPANY_REPAIRS_AGGREGATE
+                    : Sql.COMPANY_REPAIRS);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next())
+                    loaded.put(rs.getInt(1), new Object[] { rs.getString(2), rs.getLong(3) });
+            } // end try
+        } finally {
+            esql.release(p);
+        } // end try
+        companies = loaded;
+        companiesLoadedAt = System.currentTimeMillis();
+    }// end loadCompanies
+
+    /**
+     * Offers a booking made by this client to the board of its day.
+     *
+     * @param hotel  the hotel id
+     * @param roomNo the room number
+     * @param price  the price
+     * @param day    the booked day, as an epoch day
+     */
+    public synchronized void booked(int hotel, int roomNo, BigDecimal price, long day) {
+        Heap heap = days.get(day);
+        String[] row = { String.valueOf(hotel), String.valueOf(roomNo), price.toPlainString(), Dates.iso((int) day) };
+        if (heap != null)
+            heap.offer(price.doubleValue(), row);
+        else if (loading > 0)
+            missed.add(new Object[] { day, price.doubleValue(), row });
+    }// end booked
+
+    /**
+     * Counts a repair made by this client.
+     *
+     * @param compID the company
+     */
+    public synchronized void repaired(int compID) {
+        if (companies == null)
+            return;
+        Object[] company = companies.get(compID);
+        if (company == null)
+            companies = null; // added by another client, reload
+        else
+            company[1] = (Long) company[1] + 1;
+    }// end repaired
+
+    /**
+     * Drops both boards so the next question reloads them.
+     */
+    public synchronized void invalidate() {
+        days = new HashMap<>();
+        daysLoadedAt = System.currentTimeMillis();
+        companies = null;
+    }// end invalidate
+
+}// end TopK
@@ -0,0 +1,527 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Queues the inserts nobody waits for - addRepair, assignHouseCleaningToRoom
+ * and repairRequest - and commits them in the background.
+ *
+ * A queued write is first appended to the log file dbproject.writeBehind.log
+ * (writebehind.log) and forced to disk, unless dbproject.writeBehind.fsync is
+ * false, so it survives a crash of the client. A writer thread takes up to
+ * dbproject.writeBehind.batch writes from the queue of
+ * dbproject.writeBehind.queue entries, runs them as JDBC batches in one
+ * transaction and appends a checkpoint line once they are committed. The log
+ * is truncated whenever everything in it has been committed.
+ *
+ * Every queued statement inserts a primary key taken from the id allocator,
+ * so a write that was committed but not checkpointed fails with a unique
+ * violation when it is replayed, and is skipped. A write the database
+ * refuses for any other reason is appended to the .rejected file next to
+ * the log.
+ */
+public class WriteBehind {
+
+    // one queued statement
+    static final class Entry {
+        final long seq;
+        final Sql sql;
+        final Object[] params;
+
+        Entry(long seq, Sql sql, Object[] params) {
+            this.seq = seq;
+            this.sql = sql;
+            this.params = params;
+        }
+    }// end Entry
+
+    // what applying a list of entries did
+    static final class Outcome {
+        int applied, skipped, rejected;
+    }// end Outcome
+
+    private final DBProject esql;
+    private final Path path;
+    private final FileChannel log;
+    private final boolean fsync = !"false".equals(System.getProperty("dbproject.writeBehind.fsync"));
+    private final int batchSize = Integer.getInteger("dbproject.writeBehind.batch", 100);
+    private final long lingerMillis = Long.getLong("dbproject.writeBehind.linger", 2);
+    private final long compactBytes = Long.getLong("dbproject.writeBehind.compactBytes", 1 << 20);
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    // free places in the queue, taken before the log is appended to
+    private final Semaphore space;
+    private final Thread writer;
+    private volatile boolean closing = false;
+
+    // last sequence number appended, guarded by this
+    private long lastSeq = 0;
+    // last sequence number committed, guarded by this
+    private long committedSeq = 0;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private WriteBehind(DBProject esql, Path path, FileChannel log) {
+        this.esql = esql;
+        this.path = path;
+        this.log = log;
+        this.space = new Semaphore(Integer.getInteger("dbproject.writeBehind.queue", 10000));
+        this.writer = new Thread(this::run, "write-behind");
+        this.writer.setDaemon(true);
+    }// end WriteBehind
+
+    /**
+     * Opens the log, applies the writes a previous client left in it and
+     * starts the background writer.
+     *
+     * @param esql the connected client
+     * @return the queue
+     * @throws java.sql.SQLException when the log could not be opened or replayed
+     */
+    public static WriteBehind open(DBProject esql) throws SQLException {
+        Path path = Paths.get(System.getProperty("dbproject.writeBehind.log", "writebehind.log"));
+        FileChannel log = lock(path);
+        try {
+            recover(esql, path, log);
+            WriteBehind queue = new WriteBehind(esql, path, log);
+            queue.writer.start();
+            return queue;
+        } catch (IOException e) {
+            close(log);
+            throw new SQLException("Write-behind log " + path + ": " + e.getMessage(), e);
+        } catch (SQLException | RuntimeException e) {
+            close(log);
+            throw e;
+        } // end try
+    }// end open
+
+    /**
+     * Applies the writes left in a log by a client that did not flush it and
+     * empties the log.
+     *
+     * @param esql the connected client
+     * @param path the log
+     * @return the number of writes applied
+     * @throws java.sql.SQLException when the log could not be read or a write failed to reach the
+     *                               database; the log is kept
+     */
+    public static int replay(DBProject esql, Path path) throws SQLException {
+        if (!Files.exists(path))
+            throw new SQLException("No write-behind log at " + path);
+        FileChannel log = lock(path);
+        try {
+            return recover(esql, path, log).applied;
+        } catch (IOException e) {
+            throw new SQLException("Write-behind log " + path + ": " + e.getMessage(), e);
+        } finally {
+            close(log);
+        } // end try
+    }// end replay
+
+    // opens the log, locked against other clients until the channel is closed
+    private static FileChannel lock(Path path) throws SQLException {
+        FileChannel log;
+        try {
+            log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new SQLException("Write-behind log " + path + ": " + e.getMessage(), e);
+        } // end try
+        try {
+            if (log.tryLock() != null)
+                return log;
+        } catch (IOException | OverlappingFileLockException e) {
+            // already held by this process, or the file system cannot lock
+        } // end try
+        close(log);
+        throw new SQLException("Write-behind log " + path + " is in use by another client");
+    }// end lock
+
+    private static void close(FileChannel log) {
+        try {
+            log.close();
+        } catch (IOException e) {
+            // nothing left to lose.
+        } // end try
+    }// end close
+
+    // applies the writes after the last checkpoint, then empties the log
+    private static Outcome recover(DBProject esql, Path path, FileChannel log) throws IOException, SQLException {
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        long checkpoint = 0;
+        int torn = 0;
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = verify(line);
+                if (fields == null) {
+                    torn++; // cut short by a crash while it was appended
+                    continue;
+                } // end if
+                if (fields[0].equals("C"))
+                    checkpoint = Math.max(checkpoint, Long.parseLong(fields[1]));
+                else
+                    entries.put(Long.parseLong(fields[1]), decode(fields));
+            } // end while
+        } // end try
+
+        List<Entry> pending = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.seq > checkpoint)
+                pending.add(entry);
+        } // end for
+        Outcome outcome = new Outcome();
+        if (!pending.isEmpty()) {
+            outcome = apply(esql, pending, path);
+            System.out.println(String.format("Write-behind log %s: %d writes applied, %d already applied, "
+                    + "%d rejected, %d torn lines", path, outcome.applied, outcome.skipped, outcome.rejected, torn));
+        } // end if
+        log.truncate(0);
+        log.force(true);
+        return outcome;
+    }// end recover
+
+    /**
+     * Queues an insert. It is in the log when this returns; it is committed
+     * by the writer thread, which then calls DBProject.written(). Waits while
+     * the queue is full.
+     *
+     * @param sql    the insert
+     * @param params the values bound to the placeholders, in order
+     * @throws java.sql.SQLException when the write could not be logged
+     */
+    public void enqueue(Sql sql, Object... params) throws SQLException {
+        if (closing)
+            throw new SQLException("The write-behind queue is closed");
+        try {
+            // wait outside the lock, the writer needs it to checkpoint
+            space.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for room in the write-behind queue", e);
+        } // end try
+        synchronized (this) {
+            long seq = lastSeq + 1;
+            try {
+                append(sign("E\t" + seq + "\t" + encode(sql, params)), fsync);
+            } catch (IOException e) {
+                space.release();
+                throw new SQLException("Write-behind log " + path + ": " + e.getMessage(), e);
+            } // end try
+            lastSeq = seq;
+            queue.add(new Entry(seq, sql, params));
+        } // end synchronized
+    }// end enqueue
+
+    // appends a line to the log, guarded by this
+    private void append(String line, boolean force) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining())
+            log.write(bytes, log.size());
+        if (force)
+            log.force(false);
+    }// end append
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        int failures = 0;
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    Entry first = queue.poll(closing ? 0 : 100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (closing)
+                            return;
+                        continue;
+                    } // end if
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - batch.size());
+                    if (batch.size() < batchSize && lingerMillis > 0 && !closing) {
+                        // let the operators fill the group a little more
+                        Thread.sleep(lingerMillis);
+                        queue.drainTo(batch, batchSize - batch.size());
+                    } // end if
+                    space.release(batch.size());
+                } // end if
+
+                Outcome outcome = apply(esql, batch, path);
+                batches.incrementAndGet();
+                committed.addAndGet(outcome.applied);
+                skipped.addAndGet(outcome.skipped);
+                rejected.addAndGet(outcome.rejected);
+                checkpoint(batch.get(batch.size() - 1).seq);
+                batch.clear();
+                failures = 0;
+            } catch (SQLException e) {
+                // the database is unreachable, keep the batch and try again
+                failures++;
+                System.err.println("Write-behind batch failed (" + failures + "): " + e.getMessage());
+                if (closing && failures >= 3)
+                    return;
+                try {
+                    Thread.sleep(Math.min(5000, 100L << Math.min(failures, 6)));
+                } catch (InterruptedException stop) {
+                    return;
+                } // end try
+            } catch (IOException e) {
+                System.err.println("Write-behind log " + path + " could not be written: " + e.getMessage());
+                return;
+            } catch (InterruptedException e) {
+                return;
+            } // end try
+        } // end while
+    }// end run
+
+    // records that everything up to seq is committed and empties the log when nothing else is in it
+    private synchronized void checkpoint(long seq) throws IOException {
+        committedSeq = seq;
+        if (committedSeq == lastSeq && log.size() >= compactBytes) {
+            log.truncate(0);
+            log.force(false);
+        } else {
+            append(sign("C\t" + seq), false);
+        } // end if
+        notifyAll();
+    }// end checkpoint
+
+    /**
+     * Runs the entries in order in one transaction, consecutive entries of
+     * the same statement as one JDBC batch. When the transaction fails on a
+     * row, the entries are run again one at a time: a unique violation means
+     * the entry was applied before, any other refusal rejects it.
+     *
+     * @return the counts
+     * @throws java.sql.SQLException when the database could not be reached; nothing is committed
+     */
+    private static Outcome apply(DBProject esql, List<Entry> entries, Path path) throws SQLException {
+        Outcome outcome = new Outcome();
+        SQLException failure = null;
+        long start = System.nanoTime();
+        esql.begin();
+        try {
+            ConnectionPool.Pooled p = esql.acquire();
+            int i = 0;
+            while (i < entries.size()) {
+                Sql sql = entries.get(i).sql;
+                PreparedStatement stmt = p.statements.get(sql);
+                for (; i < entries.size() && entries.get(i).sql == sql; i++) {
+                    DBProject.bind(stmt, entries.get(i).params);
+                    stmt.addBatch();
+                } // end for
+                stmt.executeBatch();
+            } // end while
+            esql.commit();
+        } catch (SQLException e) {
+            failure = e;
+        } finally {
+            // rolls back unless committed
+            esql.end();
+        } // end try
+
+        if (failure == null) {
+            esql.metrics().ok("writeBehind.batch", start, entries.size(), null);
+            outcome.applied = entries.size();
+            for (Entry entry : entries)
+                esql.written(entry.sql, entry.params);
+            return outcome;
+        } // end if
+        esql.metrics().failed("writeBehind.batch", start, failure, null);
+        if (unreachable(failure))
+            throw failure;
+
+        for (Entry entry : entries) {
+            try {
+                esql.executeUpdate(entry.sql, entry.params);
+                outcome.applied++;
+            } catch (SQLException e) {
+                if (unreachable(e))
+                    throw e;
+                if (!"23505".equals(e.getSQLState())) {
+                    outcome.rejected++;
+                    reject(path, entry, e);
+                    continue;
+                } // end if
+                outcome.skipped++;
+            } // end try
+            esql.written(entry.sql, entry.params);
+        } // end for
+        return outcome;
+    }// end apply
+
+    // connection failures, shutdown and cancellation: the write may succeed later
+    private static boolean unreachable(SQLException e) {
+        String state = e.getSQLState();
+        return state == null || state.startsWith("08") || state.startsWith("57") || state.equals("40001")
+                || state.equals("40P01") || state.equals("53300");
+    }// end unreachable
+
+    private static void reject(Path path, Entry entry, SQLException e) {
+        Path rejects = path.resolveSibling(path.getFileName() + ".rejected");
+        System.err.println("Write-behind rejected " + entry.sql + ": " + e.getMessage() + " (see " + rejects + ")");
+        try (Writer out = Files.newBufferedWriter(rejects, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            out.write(sign("E\t" + entry.seq + "\t" + encode(entry.sql, entry.params)));
+            out.write("# " + e.getSQLState() + " " + String.valueOf(e.getMessage()).replace('\n', ' ') + "\n");
+        } catch (IOException io) {
+            System.err.println("Write-behind rejects could not be written to " + rejects + ": " + io.getMessage());
+        } // end try
+    }// end reject
+
+    /**
+     * Waits until every write queued so far is committed, or the writer has
+     * given up.
+     *
+     * @throws java.lang.InterruptedException when interrupted while waiting
+     */
+    public synchronized void flush() throws InterruptedException {
+        long target = lastSeq;
+        while (committedSeq < target && writer.isAlive())
+            wait(100);
+    }// end flush
+
+    /**
+     * Stops taking writes, commits everything queued and closes the log.
+     * Writes the writer could not commit stay in the log and are applied by
+     * the next client that opens it, or by the replay mode.
+     */
+    public void close() {
+        closing = true;
+        try {
+            writer.join(Long.getLong("dbproject.writeBehind.flushTimeout", 30000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } // end try
+        writer.interrupt();
+        synchronized (this) {
+            if (committedSeq < lastSeq)
+                System.err.println(String.format("%d queued writes were not committed, they stay in %s for replay",
+                        lastSeq - committedSeq, path));
+            close(log);
+        } // end synchronized
+    }// end close
+
+    /**
+     * Returns a one-line summary of the queue counters.
+     *
+     * @return the counters
+     */
+    public String stats() {
+        return String.format("write-behind queued=%d batches=%d committed=%d skipped=%d rejected=%d", queue.size(),
+                batches.get(), committed.get(), skipped.get(), rejected.get());
+    }// end stats
+
+    // ---------------------------------------------------------------- log lines
+
+    // appends the CRC-32 of the line, so a line cut short by a crash is recognised
+    private static String sign(String line) {
+        CRC32 crc = new CRC32();
+        crc.update(line.getBytes(StandardCharsets.UTF_8));
+        return line + "\t" + Long.toHexString(crc.getValue()) + "\n";
+    }// end sign
+
+    // the fields of a signed line, or null when its checksum does not match
+    private static String[] verify(String line) {
+        int tab = line.lastIndexOf('\t');
+        if (tab < 0)
+            return null;
+        CRC32 crc = new CRC32();
+        crc.update(line.substring(0, tab).getBytes(StandardCharsets.UTF_8));
+        if (!Long.toHexString(crc.getValue()).equals(line.substring(tab + 1)))
+            return null;
+        return line.substring(0, tab).split("\t", -1);
+    }// end verify
+
+    // the statement name and each parameter as a type letter and its text
+    static String encode(Sql sql, Object[] params) {
+        StringBuilder out = new StringBuilder(sql.name());
+        for (Object value : params) {
+            out.append('\t');
+            if (value == null)
+                out.append('Z');
+            else if (value instanceof Integer)
+                out.append('I').append(value);
+            else if (value instanceof Long)
+                out.append('L').append(value);
+            else if (value instanceof Double)
+                out.append('D').append(value);
+            else if (value instanceof BigDecimal)
+                out.append('N').append(((BigDecimal) value).toPlainString());
+            else if (value instanceof Boolean)
+                out.append('B').append(value);
+            else
+                out.append('S').append(String.valueOf(value).replace("\\", "\\\\").replace("\t", "\\t")
+                        .replace("\n", "\\n").replace("\r", "\\r"));
+        } // end for
+        return out.toString();
+    }// end encode
+
+    // the entry of the fields of an "E" line
+    static Entry decode(String[] fields) {
+        Object[] params = new Object[fields.length - 3];
+        for (int i = 0; i < params.length; i++) {
+            String field = fields[i + 3];
+            String text = field.substring(1);
+            switch (field.charAt(0)) {
+            case 'Z':
+                params[i] = null;
+                break;
+            case 'I':
+                params[i] = Integer.valueOf(text);
+                break;
+            case 'L':
+                params[i] = Long.valueOf(text);
+                break;
+            case 'D':
+                params[i] = Double.valueOf(text);
+                break;
+            case 'N':
+                params[i] = new BigDecimal(text);
+                break;
+            case 'B':
+                params[i] = Boolean.valueOf(text);
+                break;
+            default:
+                params[i] = unescape(text);
+            } // end switch
+        } // end for
+        return new Entry(Long.parseLong(fields[1]), Sql.valueOf(fields[2]), params);
+    }// end decode
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0)
+            return text;
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 == text.length()) {
+                out.append(c);
+                continue;
+            } // end if
+            char next = text.charAt(++i);
+            out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+        } // end for
+        return out.toString();
+    }// end unescape
+
+}// end WriteBehind